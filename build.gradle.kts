@@ -26,9 +26,40 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 
 }
 
 tasks.test {
     useJUnitPlatform()
 }
+
+// JMH benchmarks in src/jmh/java. They are not part of `build`; run them with
+//   gradle jmh                                   (all benchmarks, GC profiler on)
+//   gradle jmh -Pjmh.args="Decompress -p corpus=fib41_comp.txt"
+val jmhVersion = "1.37"
+
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH benchmarks over the bundled corpora and synthetic grammars."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    // The corpora are looked up relative to the project directory
+    workingDir = projectDir
+    val results = layout.buildDirectory.file("reports/jmh/results.json").get().asFile
+    val extraArgs = (findProperty("jmh.args") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList()
+    args(listOf("-prof", "gc", "-rf", "json", "-rff", results.path) + extraArgs)
+    doFirst { results.parentFile.mkdirs() }
+}
@@ -0,0 +1,62 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Inputs of the benchmarks. A name is a grammar file of the project directory, one of the
+ * synthetic texts below, which are compressed with {@link RePairCompressor} when loaded, or a
+ * {@link GrammarGenerator} spec such as "fibonacci:60" (e.g. {@code -p corpus=random:100000:40}).
+ * Synthetic inputs are seeded, so every fork sees the same grammar.
+ */
+final class Corpora {
+    /** 1 MiB of uniformly random lowercase letters: little repetition, many short rules. */
+    static final String SYNTHETIC_RANDOM = "synthetic-random-1M";
+    /** 1 MiB of slightly mutated copies of one 4 KiB document: long, deeply nested rules. */
+    static final String SYNTHETIC_REPETITIVE = "synthetic-repetitive-1M";
+
+    private static final int SYNTHETIC_LENGTH = 1 << 20;
+    private static final long SEED = 42;
+
+    private Corpora() {
+    }
+
+    static Parser.ParsedGrammar load(String name) throws IOException {
+        return switch (name) {
+            case SYNTHETIC_RANDOM -> RePairCompressor.compress(randomText());
+            case SYNTHETIC_REPETITIVE -> RePairCompressor.compress(repetitiveText());
+            default -> name.contains(":") ? GrammarGenerator.generate(name) : Parser.parseFile(Path.of(name));
+        };
+    }
+
+    /** The grammar as a file in the text format; synthetic grammars are written to a temporary file. */
+    static Path file(String name) throws IOException {
+        if (!name.startsWith("synthetic-") && !name.contains(":")) return Path.of(name);
+        Path file = Files.createTempFile(name.replace(':', '-'), ".txt");
+        file.toFile().deleteOnExit();
+        Extractor.writeGrammarToFile(load(name), file.toString());
+        return file;
+    }
+
+    private static byte[] randomText() {
+        Random random = new Random(SEED);
+        byte[] text = new byte[SYNTHETIC_LENGTH];
+        for (int i = 0; i < text.length; i++) text[i] = (byte) ('a' + random.nextInt(26));
+        return text;
+    }
+
+    private static byte[] repetitiveText() {
+        Random random = new Random(SEED);
+        byte[] document = new byte[4096];
+        for (int i = 0; i < document.length; i++) document[i] = (byte) ('a' + random.nextInt(26));
+        byte[] text = new byte[SYNTHETIC_LENGTH];
+        for (int i = 0; i < text.length; i += document.length) {
+            // Each copy differs from the original in a few places
+            for (int k = 0; k < 4; k++) document[random.nextInt(document.length)] = (byte) ('a' + random.nextInt(26));
+            System.arraycopy(document, 0, text, i, Math.min(document.length, text.length - i));
+        }
+        return text;
+    }
+}
@@ -0,0 +1,55 @@
+package grammarextractor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decompression of the whole text and extraction of an excerpt from its middle. {@code excerpt}
+ * is the length of the excerpt as a fraction of the text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xss64m", "-Xmx3g"})
+public class DecompressBenchmark {
+    @Param({"A_tale_of_two_cities_translated.txt", "fib41_comp.txt", "einstein_translated.txt",
+            Corpora.SYNTHETIC_RANDOM, Corpora.SYNTHETIC_REPETITIVE})
+    public String corpus;
+
+    private Parser.ParsedGrammar grammar;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        grammar = Corpora.load(corpus);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Range {
+        @Param({"0.001", "0.5"})
+        public double excerpt;
+
+        long from;
+        long to;
+
+        @Setup(Level.Trial)
+        public void setUp(DecompressBenchmark benchmark) {
+            long length = Extractor.getUncompressedSize(benchmark.grammar);
+            from = length / 4;
+            to = from + (long) (length * excerpt);
+        }
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return Decompressor.decompressToBytes(grammar);
+    }
+
+    @Benchmark
+    public Parser.ParsedGrammar extractExcerpt(Range range) {
+        return Extractor.extractExcerpt(grammar, range.from, range.to, false);
+    }
+}
@@ -0,0 +1,35 @@
+package grammarextractor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Parsing a grammar file in the text format, sequentially and on all cores. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xss64m", "-Xmx3g"})
+public class ParseBenchmark {
+    @Param({"A_tale_of_two_cities_translated.txt", "fib41_comp.txt", "einstein_translated.txt",
+            Corpora.SYNTHETIC_RANDOM, Corpora.SYNTHETIC_REPETITIVE})
+    public String corpus;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Corpora.file(corpus);
+    }
+
+    @Benchmark
+    public Parser.ParsedGrammar parseFile() throws IOException {
+        return Parser.parseFile(file, parallel);
+    }
+}
@@ -0,0 +1,131 @@
+package grammarextractor;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of the first recompression pass, as {@link Recompressor#recompressNTimes} runs them:
+ * metadata, bigram frequencies, uncrossing the most frequent bigram, replacing it and removing
+ * redundant rules. The steps that change the rules get a fresh copy of the rules as they were
+ * before that step for every invocation; copying is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xss64m", "-Xmx3g"})
+public class RecompressionBenchmark {
+    @Param({"A_tale_of_two_cities_translated.txt", "fib41_comp.txt", "einstein_translated.txt",
+            Corpora.SYNTHETIC_RANDOM, Corpora.SYNTHETIC_REPETITIVE})
+    public String corpus;
+
+    private final Set<Integer> artificialTerminals = new HashSet<>();
+    private List<Integer> sequence;
+    private MetadataTable metadata;
+    private Parser.ParsedGrammar workingGrammar;
+    private int c1;
+    private int c2;
+    private int newRuleId;
+
+    // The rules before each of the mutating steps
+    private Map<Integer, List<Integer>> beforeUncross;
+    private Map<Integer, List<Integer>> beforeReplace;
+    private Map<Integer, List<Integer>> beforeCleanup;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Parser.ParsedGrammar initialized =
+                Recompressor.initializeWithSentinelsAndRootRule(Corpora.load(corpus)).grammar();
+        beforeUncross = copy(initialized.grammarRules());
+        sequence = new ArrayList<>(initialized.sequence());
+        metadata = RuleMetadata.computeAll(
+                new Parser.ParsedGrammar(beforeUncross, sequence, MetadataTable.EMPTY), artificialTerminals);
+        workingGrammar = new Parser.ParsedGrammar(beforeUncross, sequence, metadata);
+
+        Pair<Integer, Integer> bigram = Recompressor.getMostFrequentBigram(
+                Recompressor.computeBigramFrequencies(workingGrammar, artificialTerminals, false, null),
+                artificialTerminals);
+        c1 = bigram.first;
+        c2 = bigram.second;
+        newRuleId = Collections.max(beforeUncross.keySet()) + 1;
+
+        beforeReplace = copy(beforeUncross);
+        Recompressor.uncrossBigrams(c1, c2, beforeReplace, metadata, artificialTerminals);
+        beforeCleanup = copy(beforeReplace);
+        Recompressor.replaceBigramInRules(c1, c2, newRuleId, beforeCleanup, artificialTerminals);
+    }
+
+    @State(Scope.Thread)
+    public static class UncrossInput {
+        Map<Integer, List<Integer>> rules;
+
+        @Setup(Level.Invocation)
+        public void setUp(RecompressionBenchmark pass) {
+            rules = copy(pass.beforeUncross);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ReplaceInput {
+        Map<Integer, List<Integer>> rules;
+
+        @Setup(Level.Invocation)
+        public void setUp(RecompressionBenchmark pass) {
+            rules = copy(pass.beforeReplace);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class CleanupInput {
+        Map<Integer, List<Integer>> rules;
+        List<Integer> sequence;
+
+        @Setup(Level.Invocation)
+        public void setUp(RecompressionBenchmark pass) {
+            rules = copy(pass.beforeCleanup);
+            sequence = new ArrayList<>(pass.sequence);
+        }
+    }
+
+    @Benchmark
+    public MetadataTable computeMetadata() {
+        return RuleMetadata.computeAll(
+                new Parser.ParsedGrammar(beforeUncross, sequence, MetadataTable.EMPTY), artificialTerminals);
+    }
+
+    @Benchmark
+    public Map<Pair<Integer, Integer>, Long> computeBigramFrequencies() {
+        return Recompressor.computeBigramFrequencies(workingGrammar, artificialTerminals, false, null);
+    }
+
+    @Benchmark
+    public Map<Integer, List<Integer>> uncrossBigrams(UncrossInput input) {
+        Recompressor.uncrossBigrams(c1, c2, input.rules, metadata, artificialTerminals);
+        return input.rules;
+    }
+
+    @Benchmark
+    public Map<Integer, List<Integer>> replaceBigramInRules(ReplaceInput input) {
+        Recompressor.replaceBigramInRules(c1, c2, newRuleId, input.rules, artificialTerminals);
+        return input.rules;
+    }
+
+    @Benchmark
+    public Map<Integer, List<Integer>> removeRedundantRules(CleanupInput input) {
+        Recompressor.removeRedundantRules(input.rules, input.sequence);
+        return input.rules;
+    }
+
+    // Same copy as at the start of recompressNTimes: the steps modify the rule bodies in place
+    private static Map<Integer, List<Integer>> copy(Map<Integer, List<Integer>> rules) {
+        Map<Integer, List<Integer>> copy = new LinkedHashMap<>();
+        for (Map.Entry<Integer, List<Integer>> entry : rules.entrySet()) {
+            copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return copy;
+    }
+}
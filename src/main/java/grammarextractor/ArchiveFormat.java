@@ -0,0 +1,479 @@
+package grammarextractor;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Archival grammar container, made for the smallest possible file rather than fast loading.
+ *
+ * <pre>
+ *   magic "SLPA", version byte
+ *   varint ruleCount, varint sequenceLength, varint textLength, varint tokenCount
+ *   bit stream, MSB first, last byte zero-padded:
+ *     two canonical Huffman tables (tokens, rule lengths), each as a 9-bit entry count followed
+ *       by one code length per entry: bit 0 for unused, bit 1 and 5 bits for lengths 1..20
+ *     tokenCount tokens
+ * </pre>
+ *
+ * The tokens are a post-order walk of the sequence, as in the .rp format: every rule is written
+ * where it is first used and gets the next id (256, 257, ...) at that point; rules not reachable
+ * from the sequence are dropped. Tokens operate on a stack, which holds the sequence at the end:
+ * <ul>
+ *   <li>0..255 push a terminal,</li>
+ *   <li>256..318 push an already defined rule, as its distance {@code d} to the next id. The
+ *       token is the class of d, two per power of two ({@code 1, 2, 3, 4-5, 6-7, 8-11, ...}),
+ *       followed by the bits of d below the class,</li>
+ *   <li>{@link #REDUCE_PAIR} pops two symbols and pushes a new rule made of them,</li>
+ *   <li>{@link #REDUCE} does the same for {@code k} symbols. It is followed by the rule length
+ *       table's code for {@code b = floor(log2(k + 1))} and the low b bits of k + 1.</li>
+ * </ul>
+ * Terminals, distance classes and the rule structure thus share one Huffman code, while rules
+ * defined right before their use cost no reference at all.
+ */
+public class ArchiveFormat {
+    static final byte[] MAGIC = {'S', 'L', 'P', 'A'};
+    static final int VERSION = 1;
+
+    private static final int REDUCE_PAIR = 256 + 63;
+    private static final int REDUCE = REDUCE_PAIR + 1;
+    private static final int TOKEN_ALPHABET = REDUCE + 1;
+    private static final int LENGTH_ALPHABET = 32;
+    private static final int MAX_CODE_LENGTH = 20;
+
+    /** Size of a written archive next to the text and the grammar it holds. */
+    public record Summary(long bytes, long textLength, long grammarSize) {
+        public double bitsPerCharacter() {
+            return textLength == 0 ? 0.0 : 8.0 * bytes / textLength;
+        }
+    }
+
+    /** True if the file starts with the archive magic. */
+    public static boolean isArchive(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        }
+    }
+
+    /**
+     * Writes the archive and returns its size in bits per character of the text, next to the
+     * grammar size reported by {@link Parser#sizeOfGrammar}.
+     */
+    public static Summary write(Parser.ParsedGrammar grammar, Path outputFile) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("write");
+        TokenStream stream = new TokenStream(grammar);
+
+        long[] tokenFreq = new long[TOKEN_ALPHABET];
+        long[] lengthFreq = new long[LENGTH_ALPHABET];
+        for (int k = 0, v = 0; k < stream.tokens.size(); k++) {
+            int token = stream.tokens.getInt(k);
+            tokenFreq[token]++;
+            if (token == REDUCE) lengthFreq[bucket(stream.values.getInt(v++))]++;
+            else if (token >= 256 && token < REDUCE_PAIR) v++;
+        }
+        HuffmanCode tokenCode = HuffmanCode.fromFrequencies(tokenFreq);
+        HuffmanCode lengthCode = HuffmanCode.fromFrequencies(lengthFreq);
+
+        try (GrammarWriter writer = GrammarWriter.open(outputFile)) {
+            for (byte b : MAGIC) writer.writeByte(b);
+            writer.writeByte(VERSION);
+            writer.writeVarInt(stream.ruleCount);
+            writer.writeVarInt(stream.sequenceLength);
+            writer.writeVarLong(stream.textLength);
+            writer.writeVarInt(stream.tokens.size());
+
+            BitWriter out = new BitWriter(writer);
+            tokenCode.writeLengths(out);
+            lengthCode.writeLengths(out);
+            for (int k = 0, v = 0; k < stream.tokens.size(); k++) {
+                int token = stream.tokens.getInt(k);
+                tokenCode.write(out, token);
+                if (token == REDUCE) {
+                    int value = stream.values.getInt(v++);
+                    int b = bucket(value);
+                    lengthCode.write(out, b);
+                    out.writeBits(value, b);
+                } else if (token >= 256 && token < REDUCE_PAIR) {
+                    int value = stream.values.getInt(v++);
+                    out.writeBits(value, extraBits(token - 256));
+                }
+            }
+            out.finish();
+        }
+
+        long bytes = Files.size(outputFile);
+        span.end("writing the archive", grammar, bytes);
+        return new Summary(bytes, stream.textLength, Parser.sizeOfGrammar(grammar));
+    }
+
+    /** Decodes an archive while reading it. Metadata is computed lazily, as for the other formats. */
+    public static Parser.ParsedGrammar read(Path inputFile) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("parse");
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(inputFile), 1 << 16)) {
+            if (!Arrays.equals(in.readNBytes(MAGIC.length), MAGIC)) {
+                throw new IOException("Not a grammar archive: " + inputFile);
+            }
+            int version = in.read();
+            if (version != VERSION) throw new IOException("Unsupported grammar archive version " + version);
+            int ruleCount = readVarInt(in);
+            int sequenceLength = readVarInt(in);
+            readVarLong(in); // text length, only used for the report
+            int tokenCount = readVarInt(in);
+
+            BitReader bits = new BitReader(in);
+            HuffmanCode tokenCode = HuffmanCode.readLengths(bits, TOKEN_ALPHABET);
+            HuffmanCode lengthCode = HuffmanCode.readLengths(bits, LENGTH_ALPHABET);
+
+            Map<Integer, List<Integer>> rules = new HashMap<>(Math.max(16, (int) (ruleCount / 0.75f) + 1));
+            IntList stack = new IntList(sequenceLength);
+            int nextId = 256;
+            for (int k = 0; k < tokenCount; k++) {
+                int token = tokenCode.read(bits);
+                if (token < 256) {
+                    stack.addInt(token);
+                } else if (token < REDUCE_PAIR) {
+                    int c = token - 256;
+                    int extra = extraBits(c);
+                    long ruleId = nextId - (classBase(c) | bits.readBits(extra));
+                    if (ruleId < 256) throw new IOException("Corrupt rule reference in archive");
+                    stack.addInt((int) ruleId);
+                } else {
+                    int length = 2;
+                    if (token == REDUCE) {
+                        int b = lengthCode.read(bits);
+                        length = (int) (((1L << b) | bits.readBits(b)) - 1);
+                    }
+                    int from = stack.size() - length;
+                    if (length < 0 || from < 0) throw new IOException("Corrupt rule in archive");
+                    IntList rhs = new IntList(length);
+                    for (int s = from; s < stack.size(); s++) rhs.addInt(stack.getInt(s));
+                    stack.removeRange(from, stack.size());
+                    rules.put(nextId, rhs);
+                    stack.addInt(nextId++);
+                }
+            }
+            if (nextId - 256 != ruleCount || stack.size() != sequenceLength) {
+                throw new IOException("Corrupt grammar archive: rule or sequence count mismatch");
+            }
+
+            Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, stack);
+            span.end("reading the archive", grammar, Files.size(inputFile));
+            return grammar;
+        }
+    }
+
+    private static int bucket(long value) {
+        return 63 - Long.numberOfLeadingZeros(value);
+    }
+
+    /** Two classes per power of two: the class also fixes the bit below the leading one. */
+    private static int distanceClass(int distance) {
+        int b = bucket(distance);
+        return b == 0 ? 0 : 2 * b - 1 + ((distance >>> (b - 1)) & 1);
+    }
+
+    private static int extraBits(int distanceClass) {
+        return distanceClass == 0 ? 0 : (distanceClass - 1) / 2;
+    }
+
+    private static long classBase(int distanceClass) {
+        if (distanceClass == 0) return 1;
+        int b = (distanceClass + 1) / 2;
+        return (1L << b) | ((long) ((distanceClass + 1) & 1) << (b - 1));
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        long value = readVarLong(in);
+        if (value > Integer.MAX_VALUE) throw new IOException("Corrupt count in grammar archive");
+        return (int) value;
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Unexpected end of grammar archive");
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) return value;
+        }
+        throw new IOException("Malformed varint in grammar archive");
+    }
+
+    /**
+     * The post-order token walk of a grammar. {@code values} holds, in token order, the distance
+     * of every rule reference and {@code k + 1} of every {@link #REDUCE}.
+     */
+    private static final class TokenStream {
+        final IntList tokens = new IntList();
+        final IntList values = new IntList();
+        int ruleCount;
+        int sequenceLength;
+        long textLength;
+
+        private final Map<Integer, List<Integer>> rules;
+        // New id per old rule id; 0 = not written yet, -1 = on the stack
+        private final int[] newIds;
+        private long[] expandedLength = new long[16];
+
+        TokenStream(Parser.ParsedGrammar grammar) throws IOException {
+            rules = grammar.grammarRules();
+            int maxRuleId = 255;
+            for (int ruleId : rules.keySet()) maxRuleId = Math.max(maxRuleId, ruleId);
+            newIds = new int[maxRuleId - 255];
+
+            int[] stack = new int[64];
+            for (int symbol : grammar.sequence()) {
+                sequenceLength++;
+                if (symbol < 256 || !markOnStack(symbol)) {
+                    textLength += emitLeaf(symbol);
+                    continue;
+                }
+                // Iterative post-order walk; stack holds rule id and next child index
+                int depth = 0;
+                stack[depth++] = symbol;
+                stack[depth++] = 0;
+                while (depth > 0) {
+                    int ruleId = stack[depth - 2];
+                    List<Integer> rhs = rules.get(ruleId);
+                    if (rhs == null) throw new IOException("Undefined rule R" + ruleId);
+                    int next = stack[depth - 1];
+                    if (next < rhs.size()) {
+                        stack[depth - 1]++;
+                        int child = rhs.get(next);
+                        if (child >= 256 && markOnStack(child)) {
+                            if (depth + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+                            stack[depth++] = child;
+                            stack[depth++] = 0;
+                        } else {
+                            emitLeaf(child);
+                        }
+                        continue;
+                    }
+                    depth -= 2;
+                    long length = 0;
+                    for (int child : rhs) length += child < 256 ? 1 : expandedLength[newIds[child - 256] - 256];
+                    emitReduce(ruleId, rhs.size(), length);
+                }
+                textLength += expandedLength[newIds[symbol - 256] - 256];
+            }
+        }
+
+        /** Writes a terminal or a reference to a written rule; returns its expanded length. */
+        private long emitLeaf(int symbol) {
+            if (symbol < 256) {
+                tokens.addInt(symbol);
+                return 1;
+            }
+            int newId = newIds[symbol - 256];
+            int distance = 256 + ruleCount - newId;
+            tokens.addInt(256 + distanceClass(distance));
+            values.addInt(distance);
+            return expandedLength[newId - 256];
+        }
+
+        private void emitReduce(int ruleId, int rhsLength, long length) {
+            if (rhsLength == 2) {
+                tokens.addInt(REDUCE_PAIR);
+            } else {
+                tokens.addInt(REDUCE);
+                values.addInt(rhsLength + 1);
+            }
+            if (ruleCount == expandedLength.length) expandedLength = Arrays.copyOf(expandedLength, ruleCount * 2);
+            expandedLength[ruleCount] = length;
+            newIds[ruleId - 256] = 256 + ruleCount++;
+        }
+
+        /** Returns false if the rule was written already, marks it as on the stack otherwise. */
+        private boolean markOnStack(int ruleId) throws IOException {
+            if (ruleId - 256 >= newIds.length) throw new IOException("Undefined rule R" + ruleId);
+            if (newIds[ruleId - 256] > 0) return false;
+            if (newIds[ruleId - 256] < 0) throw new IOException("Cyclic rule R" + ruleId);
+            newIds[ruleId - 256] = -1;
+            return true;
+        }
+    }
+
+    /** Length-limited canonical Huffman code over a small alphabet. */
+    private static final class HuffmanCode {
+        final int[] lengths;
+        final int[] codes;
+        // Decoding: number of codes per length and the symbols sorted by (length, symbol)
+        final int[] counts = new int[MAX_CODE_LENGTH + 1];
+        final int[] sorted;
+
+        private HuffmanCode(int[] lengths) {
+            this.lengths = lengths;
+            this.codes = new int[lengths.length];
+            int used = 0;
+            for (int length : lengths) {
+                if (length > 0) {
+                    counts[length]++;
+                    used++;
+                }
+            }
+            sorted = new int[used];
+            int[] nextCode = new int[MAX_CODE_LENGTH + 2];
+            int[] offset = new int[MAX_CODE_LENGTH + 2];
+            for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+                nextCode[len + 1] = (nextCode[len] + counts[len]) << 1;
+                offset[len + 1] = offset[len] + counts[len];
+            }
+            for (int symbol = 0; symbol < lengths.length; symbol++) {
+                int len = lengths[symbol];
+                if (len == 0) continue;
+                codes[symbol] = nextCode[len]++;
+                sorted[offset[len]++] = symbol;
+            }
+        }
+
+        static HuffmanCode fromFrequencies(long[] freq) {
+            long[] weights = freq.clone();
+            while (true) {
+                int[] lengths = huffmanLengths(weights);
+                int max = 0;
+                for (int length : lengths) max = Math.max(max, length);
+                if (max <= MAX_CODE_LENGTH) return new HuffmanCode(lengths);
+                // Flatten the distribution until the longest code fits
+                for (int s = 0; s < weights.length; s++) {
+                    if (weights[s] > 0) weights[s] = (weights[s] >>> 1) | 1;
+                }
+            }
+        }
+
+        /** Code lengths of a Huffman tree for the symbols with non-zero weight. */
+        private static int[] huffmanLengths(long[] weights) {
+            int[] lengths = new int[weights.length];
+            int leaves = 0;
+            for (long w : weights) if (w > 0) leaves++;
+            if (leaves == 0) return lengths;
+            if (leaves == 1) {
+                for (int s = 0; s < weights.length; s++) if (weights[s] > 0) lengths[s] = 1;
+                return lengths;
+            }
+
+            // Leaves sorted by weight, internal nodes in creation order (also sorted): two-queue merge
+            Integer[] order = new Integer[leaves];
+            int n = 0;
+            for (int s = 0; s < weights.length; s++) if (weights[s] > 0) order[n++] = s;
+            Arrays.sort(order, Comparator.comparingLong(s -> weights[s]));
+
+            long[] weight = new long[2 * leaves - 1];
+            int[] parent = new int[2 * leaves - 1];
+            for (int i = 0; i < leaves; i++) weight[i] = weights[order[i]];
+            int nextLeaf = 0;
+            int nextInternal = leaves;
+            for (int node = leaves; node < 2 * leaves - 1; node++) {
+                long sum = 0;
+                for (int pick = 0; pick < 2; pick++) {
+                    int child = nextLeaf < leaves && (nextInternal == node || weight[nextLeaf] <= weight[nextInternal])
+                            ? nextLeaf++ : nextInternal++;
+                    parent[child] = node;
+                    sum += weight[child];
+                }
+                weight[node] = sum;
+            }
+
+            int root = 2 * leaves - 2;
+            int[] depth = new int[2 * leaves - 1];
+            for (int node = root - 1; node >= 0; node--) depth[node] = depth[parent[node]] + 1;
+            for (int i = 0; i < leaves; i++) lengths[order[i]] = depth[i];
+            return lengths;
+        }
+
+        void writeLengths(BitWriter out) throws IOException {
+            int entries = lengths.length;
+            while (entries > 0 && lengths[entries - 1] == 0) entries--;
+            out.writeBits(entries, 9);
+            for (int s = 0; s < entries; s++) {
+                if (lengths[s] == 0) {
+                    out.writeBits(0, 1);
+                } else {
+                    out.writeBits(1, 1);
+                    out.writeBits(lengths[s], 5);
+                }
+            }
+        }
+
+        static HuffmanCode readLengths(BitReader in, int alphabetSize) throws IOException {
+            int entries = (int) in.readBits(9);
+            if (entries > alphabetSize) throw new IOException("Corrupt Huffman table in archive");
+            int[] lengths = new int[alphabetSize];
+            for (int s = 0; s < entries; s++) {
+                if (in.readBits(1) == 0) continue;
+                lengths[s] = (int) in.readBits(5);
+                if (lengths[s] > MAX_CODE_LENGTH) throw new IOException("Corrupt Huffman table in archive");
+            }
+            return new HuffmanCode(lengths);
+        }
+
+        void write(BitWriter out, int symbol) throws IOException {
+            out.writeBits(codes[symbol], lengths[symbol]);
+        }
+
+        /** Canonical decoding, one bit and one comparison per code length. */
+        int read(BitReader in) throws IOException {
+            int code = 0;
+            int first = 0;
+            int index = 0;
+            for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+                code |= (int) in.readBits(1);
+                int count = counts[len];
+                if (code - first < count) return sorted[index + code - first];
+                index += count;
+                first = (first + count) << 1;
+                code <<= 1;
+            }
+            throw new IOException("Invalid Huffman code in archive");
+        }
+    }
+
+    private static final class BitWriter {
+        private final GrammarWriter out;
+        private long bits;
+        private int count;
+
+        BitWriter(GrammarWriter out) {
+            this.out = out;
+        }
+
+        /** Writes the low {@code length} bits of value, at most 32. */
+        void writeBits(long value, int length) throws IOException {
+            bits = (bits << length) | (value & ((1L << length) - 1));
+            count += length;
+            while (count >= 8) {
+                count -= 8;
+                out.writeByte((int) (bits >>> count));
+            }
+        }
+
+        void finish() throws IOException {
+            if (count > 0) out.writeByte((int) (bits << (8 - count)));
+            count = 0;
+        }
+    }
+
+    private static final class BitReader {
+        private final InputStream in;
+        private long bits;
+        private int count;
+
+        BitReader(InputStream in) {
+            this.in = in;
+        }
+
+        /** Reads {@code length} bits, at most 32. */
+        long readBits(int length) throws IOException {
+            while (count < length) {
+                int b = in.read();
+                if (b < 0) throw new IOException("Unexpected end of grammar archive");
+                bits = (bits << 8) | b;
+                count += 8;
+            }
+            count -= length;
+            return (bits >>> count) & ((1L << length) - 1);
+        }
+    }
+}
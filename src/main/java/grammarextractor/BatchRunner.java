@@ -0,0 +1,260 @@
+package grammarextractor;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the jobs of a manifest in one JVM. Jobs on the same grammar share one parse of it, and
+ * the jobs of a grammar run concurrently on virtual threads. Grammars are handled one after the
+ * other, so only one of them is in memory at a time.
+ *
+ * <p>The manifest has one job per line, the operation followed by key=value fields; blank lines
+ * and lines starting with '#' are skipped. Paths are relative to the working directory. A
+ * recompression always writes its output; a verbosity above 0 also writes &lt;output&gt;_logs.txt.
+ *
+ * <pre>
+ *   extract    input=g.txt from=0 to=1000 output=excerpt.txt [slp=true]
+ *   recompress input=g.txt from=0 to=1000 passes=5 output=out.txt [verbosity=0]
+ *   decompress input=g.txt output=text.txt [from=0] [to=1000] [cache=bytes]
+ *   compress   input=text.txt [output=text.txt.rp]
+ * </pre>
+ *
+ * Concurrency is bounded twice: by a number of job slots, and by the heap left after parsing.
+ * Each job takes as many MiB from the second limit as it is estimated to need, so a few large
+ * recompressions don't run next to each other while many small extracts do.
+ */
+public class BatchRunner {
+    private static final long MIB = 1 << 20;
+    /** Heap per grammar symbol while an excerpt is built or recompressed. */
+    private static final long BYTES_PER_SYMBOL = 64;
+    /** Heap per text byte while compressing with RePair. */
+    private static final long BYTES_PER_TEXT_BYTE = 32;
+
+    public record Job(int line, String operation, Path input, Path output, long from, long to, int passes,
+                      int verbosity, boolean slp, long cache) {
+        static final long UNSET = -1;
+
+        boolean hasRange() {
+            return from != UNSET || to != UNSET;
+        }
+    }
+
+    public record Result(Job job, boolean ok, String message, long millis) {
+    }
+
+    public static List<Job> readManifest(Path manifest) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        List<String> lines = Files.readAllLines(manifest);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            jobs.add(parseJob(i + 1, line));
+        }
+        return jobs;
+    }
+
+    private static Job parseJob(int lineNumber, String line) {
+        String[] tokens = line.split("\\s+");
+        String operation = tokens[0];
+        Map<String, String> fields = new HashMap<>();
+        for (int k = 1; k < tokens.length; k++) {
+            int eq = tokens[k].indexOf('=');
+            if (eq <= 0) throw new IllegalArgumentException("Line " + lineNumber + ": expected key=value, got " + tokens[k]);
+            fields.put(tokens[k].substring(0, eq), tokens[k].substring(eq + 1));
+        }
+        List<String> required = switch (operation) {
+            case "extract" -> List.of("input", "from", "to", "output");
+            case "recompress" -> List.of("input", "from", "to", "passes", "output");
+            case "decompress" -> List.of("input", "output");
+            case "compress" -> List.of("input");
+            default -> throw new IllegalArgumentException("Line " + lineNumber + ": unknown operation " + operation);
+        };
+        for (String key : required) {
+            if (!fields.containsKey(key)) throw new IllegalArgumentException("Line " + lineNumber + ": missing " + key + "= for " + operation);
+        }
+        Set<String> known = Set.of("input", "output", "from", "to", "passes", "verbosity", "slp", "cache");
+        for (String key : fields.keySet()) {
+            if (!known.contains(key)) throw new IllegalArgumentException("Line " + lineNumber + ": unknown field " + key);
+        }
+        try {
+            Path input = Path.of(fields.get("input"));
+            Path output = Path.of(fields.getOrDefault("output", fields.get("input") + ".rp"));
+            return new Job(lineNumber, operation, input, output,
+                    Long.parseLong(fields.getOrDefault("from", "-1")),
+                    Long.parseLong(fields.getOrDefault("to", "-1")),
+                    Integer.parseInt(fields.getOrDefault("passes", "0")),
+                    Integer.parseInt(fields.getOrDefault("verbosity", "0")),
+                    Boolean.parseBoolean(fields.getOrDefault("slp", "false")),
+                    Long.parseLong(fields.getOrDefault("cache", "0")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Runs the jobs, at most {@code slots} at a time, and returns their results in manifest order.
+     * A failing job, or a grammar that cannot be parsed, only fails the jobs concerned.
+     */
+    public static List<Result> run(List<Job> jobs, int slots) throws InterruptedException {
+        MetricsRegistry.Span span = MetricsRegistry.start("batch");
+        // Jobs by input grammar, in order of first appearance; compress jobs read text and need no parse
+        Map<Path, List<Integer>> groups = new LinkedHashMap<>();
+        List<Integer> textJobs = new ArrayList<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            if (job.operation().equals("compress")) {
+                textJobs.add(i);
+            } else {
+                groups.computeIfAbsent(job.input().toAbsolutePath().normalize(), k -> new ArrayList<>()).add(i);
+            }
+        }
+
+        Result[] results = new Result[jobs.size()];
+        Semaphore slotLimit = new Semaphore(Math.max(1, slots));
+        if (!textJobs.isEmpty()) runGroup(jobs, textJobs, null, slotLimit, results);
+        for (Map.Entry<Path, List<Integer>> group : groups.entrySet()) {
+            Parser.ParsedGrammar grammar;
+            long parseStart = System.nanoTime();
+            try {
+                grammar = Parser.parseFile(group.getKey());
+            } catch (IOException | RuntimeException e) {
+                for (int i : group.getValue()) results[i] = new Result(jobs.get(i), false, "parsing failed: " + e, 0);
+                continue;
+            }
+            long parseEnd = System.nanoTime();
+            MetricsRegistry.print("Time required for parsing " + group.getKey().getFileName() + ": "
+                    + (parseEnd - parseStart) / 1_000_000 + "ms (" + group.getValue().size() + " jobs)");
+            runGroup(jobs, group.getValue(), grammar, slotLimit, results);
+        }
+
+        long millis = span.end(null) / 1_000_000;
+        long failed = Arrays.stream(results).filter(r -> !r.ok()).count();
+        MetricsRegistry.print("Time required for the batch in total: " + millis + "ms ("
+                + (results.length - failed) + " ok, " + failed + " failed)");
+        return Arrays.asList(results);
+    }
+
+    private static void runGroup(List<Job> jobs, List<Integer> indices, Parser.ParsedGrammar grammar,
+                                 Semaphore slotLimit, Result[] results) throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        int memoryPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, freeHeap / 4 * 3 / MIB));
+        Semaphore memoryLimit = new Semaphore(memoryPermits);
+        long grammarSize = grammar != null ? Parser.sizeOfGrammar(grammar) : 0;
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i : indices) {
+                Job job = jobs.get(i);
+                int permits = (int) Math.min(memoryPermits, Math.max(1, estimateBytes(job, grammarSize) / MIB));
+                executor.submit(() -> {
+                    slotLimit.acquire();
+                    try {
+                        memoryLimit.acquire(permits);
+                        try {
+                            results[i] = execute(job, grammar);
+                        } finally {
+                            memoryLimit.release(permits);
+                        }
+                    } finally {
+                        slotLimit.release();
+                    }
+                    return null;
+                });
+            }
+        } // close() waits for all jobs of the group
+        for (int i : indices) {
+            if (results[i] == null) results[i] = new Result(jobs.get(i), false, "interrupted", 0);
+        }
+        if (Thread.interrupted()) throw new InterruptedException();
+    }
+
+    /** Rough peak heap of a job beyond the shared grammar. */
+    private static long estimateBytes(Job job, long grammarSize) {
+        long rangeLength = job.hasRange() ? Math.max(0, job.to() - job.from()) : Long.MAX_VALUE;
+        return switch (job.operation()) {
+            case "extract", "recompress" -> Math.min(grammarSize, rangeLength) * BYTES_PER_SYMBOL;
+            case "decompress" -> Math.max(0, job.cache()) + MIB;
+            case "compress" -> {
+                try {
+                    yield Files.size(job.input()) * BYTES_PER_TEXT_BYTE;
+                } catch (IOException e) {
+                    yield MIB; // the job reports the error
+                }
+            }
+            default -> MIB;
+        };
+    }
+
+    private static Result execute(Job job, Parser.ParsedGrammar grammar) {
+        long startTime = System.nanoTime();
+        try {
+            switch (job.operation()) {
+                case "extract" -> {
+                    if (job.slp()) {
+                        Extractor.extractView(grammar, job.from(), job.to()).writeToFile(job.output().toString());
+                    } else {
+                        Extractor.writeGrammarToFile(Extractor.extractExcerpt(grammar, job.from(), job.to(), false),
+                                job.output().toString());
+                    }
+                }
+                case "recompress" -> {
+                    ExcerptView excerpt = Extractor.extractView(grammar, job.from(), job.to());
+                    Recompressor.recompressToFile(excerpt.asGrammar(), job.passes(), job.verbosity(), true, false,
+                            job.output());
+                }
+                case "decompress" -> {
+                    ExpansionCache cache = job.cache() > 0 ? new ExpansionCache(grammar, job.cache()) : null;
+                    if (job.hasRange()) {
+                        long from = job.from() != Job.UNSET ? job.from() : 0;
+                        long to = job.to() != Job.UNSET ? job.to() : Extractor.getUncompressedSize(grammar);
+                        try (FileChannel channel = FileChannel.open(job.output(), StandardOpenOption.CREATE,
+                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                            Decompressor.decompressRange(grammar, from, to, cache, channel);
+                        }
+                    } else {
+                        Decompressor.decompressToFile(grammar, job.output(), cache);
+                    }
+                }
+                case "compress" -> RePairFormat.write(RePairCompressor.compressFile(job.input()), job.output());
+                default -> throw new IllegalArgumentException("Unknown operation " + job.operation());
+            }
+        } catch (Exception e) {
+            return new Result(job, false, e.toString(), (System.nanoTime() - startTime) / 1_000_000);
+        }
+        return new Result(job, true, "", (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    public static void printReport(List<Result> results) {
+        System.out.println("\n=== Batch report ===");
+        System.out.printf("%-6s %-11s %-7s %10s  %s%n", "line", "operation", "status", "time(ms)", "output / error");
+        for (Result result : results) {
+            Job job = result.job();
+            System.out.printf("%-6d %-11s %-7s %10d  %s%n", job.line(), job.operation(), result.ok() ? "ok" : "FAILED",
+                    result.millis(), result.ok() ? job.output() : result.message());
+        }
+    }
+
+    /** One CSV row per job, in manifest order. */
+    public static void writeReport(List<Result> results, Path report) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(report)) {
+            writer.write("line,operation,input,output,status,millis,message\n");
+            for (Result result : results) {
+                Job job = result.job();
+                writer.write(job.line() + "," + job.operation() + "," + csv(job.input().toString()) + ","
+                        + csv(job.output().toString()) + "," + (result.ok() ? "ok" : "failed") + ","
+                        + result.millis() + "," + csv(result.message()) + "\n");
+            }
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,329 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Ground truth for {@link Recompressor#computeBigramFrequencies}: bigram frequencies counted on
+ * the text itself. The text is streamed from the decompressor, which copies the expansions of
+ * hot rules from an {@link ExpansionCache}, and is never held in memory as a whole. A
+ * maximal run c^len adds len / 2 to (c, c), and every position where two different symbols meet
+ * adds one to their pair. Counts go into a flat table indexed by both symbols.
+ *
+ * <p>With several threads the text is split into ranges that are decompressed independently. A
+ * range leaves its first and last run uncounted, since they may continue in its neighbours; the
+ * ranges are then merged in order and runs crossing a border are counted whole.
+ *
+ * <p>Artificial terminals, the letters recompression adds, can be kept as symbols instead of
+ * being expanded. They take the table indices after the 256 bytes.
+ */
+public class BigramCounter {
+    /** Texts shorter than this are counted on the calling thread. */
+    private static final long MIN_PARALLEL_LENGTH = 1 << 20;
+    /** Largest alphabet counted in a flat table; larger ones are hashed. */
+    private static final int MAX_FLAT_ALPHABET = 2048;
+
+    /** Counts the bigrams of the fully expanded text using {@code threads} threads. */
+    public static Map<Pair<Integer, Integer>, Long> count(Parser.ParsedGrammar grammar, boolean removeSentinels,
+                                                          boolean addSentinels, int threads) {
+        MetricsRegistry.Span span = MetricsRegistry.start("bigrams");
+        long length = Extractor.getUncompressedSize(grammar);
+        int parts = (int) Math.max(1, Math.min(threads, length / MIN_PARALLEL_LENGTH));
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < parts; i++) chunks.add(new Chunk(new Table(256), removeSentinels));
+        if (addSentinels) chunks.get(0).accept('#');
+        try {
+            if (parts == 1) {
+                Decompressor.decompress(grammar, chunks.get(0), new ExpansionCache(grammar));
+            } else {
+                countInParallel(grammar, length, chunks);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e); // the chunks only count, there is no I/O
+        }
+        if (addSentinels) chunks.get(parts - 1).accept('$');
+        Map<Pair<Integer, Integer>, Long> frequencies = merge(chunks, new Table(256)).toMap(null);
+        long millis = span.end(null, 0, 0, length) / 1_000_000;
+        MetricsRegistry.print("Time required for streaming bigram counting: " + millis
+                + "ms (" + parts + " range" + (parts == 1 ? "" : "s") + ")");
+        return frequencies;
+    }
+
+    /**
+     * Counts the bigrams of the text with the artificial terminals left unexpanded, as
+     * {@link Recompressor#computeBigramFrequencies} sees it during recompression. Artificial
+     * terminals need no rule. Single-threaded, unless there are no artificial terminals and the
+     * text is counted on all cores as above.
+     */
+    public static Map<Pair<Integer, Integer>, Long> count(Parser.ParsedGrammar grammar, Set<Integer> artificialTerminals,
+                                                          boolean removeSentinels, boolean addSentinels) {
+        int[] symbols = artificialTerminals.stream().mapToInt(Integer::intValue).filter(s -> s >= 256).sorted().toArray();
+        if (symbols.length == 0) {
+            return count(grammar, removeSentinels, addSentinels, Runtime.getRuntime().availableProcessors());
+        }
+        MetricsRegistry.Span span = MetricsRegistry.start("bigrams");
+        Decompressor.FlatRules rules = new Decompressor.FlatRules(grammar.grammarRules());
+        int maxSymbol = symbols.length == 0 ? 255 : symbols[symbols.length - 1];
+        // Table index of every artificial terminal, 0 for ordinary rules
+        int[] index = new int[Math.max(rules.defined.length, maxSymbol - 255)];
+        for (int k = 0; k < symbols.length; k++) index[symbols[k] - 256] = 256 + k;
+
+        Table table = new Table(256 + symbols.length);
+        Chunk chunk = new Chunk(table, removeSentinels);
+        if (addSentinels) chunk.accept('#');
+        int[] stack = new int[64];
+        for (int symbol : grammar.sequence()) {
+            int depth = 0;
+            stack[depth++] = symbol;
+            while (depth > 0) {
+                int current = stack[--depth];
+                // Same descent as the decompressor, stopping at artificial terminals
+                while (current >= 256 && index[current - 256] == 0) {
+                    int i = current - 256;
+                    if (i >= rules.defined.length || !rules.defined[i]) {
+                        throw new IllegalArgumentException("Missing rule for non-terminal: R" + current);
+                    }
+                    int from = rules.starts[i];
+                    int to = rules.starts[i + 1];
+                    if (from == to) break;
+                    if (depth + to - from > stack.length) stack = Arrays.copyOf(stack, Math.max(stack.length * 2, depth + to - from));
+                    for (int k = to - 1; k > from; k--) stack[depth++] = rules.bodies[k];
+                    current = rules.bodies[from];
+                }
+                if (current < 256) {
+                    chunk.accept(current);
+                } else if (index[current - 256] != 0) {
+                    chunk.accept(index[current - 256]);
+                }
+            }
+        }
+        if (addSentinels) chunk.accept('$');
+        Map<Pair<Integer, Integer>, Long> frequencies = merge(List.of(chunk), new Table(table.alphabet)).toMap(symbols);
+        span.end("streaming bigram counting");
+        return frequencies;
+    }
+
+    private static void countInParallel(Parser.ParsedGrammar grammar, long length, List<Chunk> chunks) throws IOException {
+        int parts = chunks.size();
+        ExecutorService pool = Executors.newFixedThreadPool(parts);
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int i = 0; i < parts; i++) {
+                long from = length * i / parts;
+                long to = length * (i + 1) / parts;
+                Chunk chunk = chunks.get(i);
+                pending.add(pool.submit(() -> {
+                    ExpansionCache cache = new ExpansionCache(grammar, ExpansionCache.DEFAULT_BUDGET / parts);
+                    Decompressor.decompressRange(grammar, from, to, cache, chunk);
+                    return null;
+                }));
+            }
+            for (Future<?> future : pending) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while counting bigrams", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IllegalStateException("Counting bigrams failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds up the chunks in text order. A run that starts in one chunk is carried over the
+     * following ones while they continue it, and counted once it ends.
+     */
+    private static Table merge(List<Chunk> chunks, Table total) {
+        int carried = -1;
+        long carriedRun = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.first < 0) continue; // nothing in this range, e.g. only removed sentinels
+            total.addAll(chunk.counts);
+            boolean singleRun = chunk.leadingRun < 0;
+            long leadingRun = singleRun ? chunk.run : chunk.leadingRun;
+            if (chunk.first == carried) {
+                if (singleRun) {
+                    carriedRun += leadingRun;
+                    continue;
+                }
+                total.addRun(carried, carriedRun + leadingRun);
+            } else {
+                if (carried >= 0) {
+                    total.add(carried, chunk.first, 1);
+                    total.addRun(carried, carriedRun);
+                }
+                if (singleRun) {
+                    carried = chunk.first;
+                    carriedRun = leadingRun;
+                    continue;
+                }
+                total.addRun(chunk.first, leadingRun);
+            }
+            carried = chunk.previous;
+            carriedRun = chunk.run;
+        }
+        if (carried >= 0) total.addRun(carried, carriedRun);
+        return total;
+    }
+
+    /**
+     * Counts one contiguous piece of the text, symbol by symbol, with the current run as the only
+     * state. The first and the last run are left to {@link #merge}.
+     */
+    private static final class Chunk implements WritableByteChannel {
+        final Table counts;
+        final boolean removeSentinels;
+        int first = -1;
+        long leadingRun = -1; // length of the first run, once it has ended
+        int previous = -1;
+        long run;
+
+        Chunk(Table counts, boolean removeSentinels) {
+            this.counts = counts;
+            this.removeSentinels = removeSentinels;
+        }
+
+        void accept(int symbol) {
+            if (symbol == previous) {
+                run++;
+                return;
+            }
+            if (removeSentinels && (symbol == '#' || symbol == '$')) return;
+            if (previous < 0) {
+                first = symbol;
+            } else {
+                counts.add(previous, symbol, 1);
+                if (leadingRun < 0) {
+                    leadingRun = run;
+                } else {
+                    counts.addRun(previous, run);
+                }
+            }
+            previous = symbol;
+            run = 1;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            if (src.hasArray()) {
+                byte[] bytes = src.array();
+                int from = src.arrayOffset() + src.position();
+                for (int i = from; i < from + n; i++) accept(bytes[i] & 0xFF);
+                src.position(src.limit());
+            } else {
+                while (src.hasRemaining()) accept(src.get() & 0xFF);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Pair counts indexed by a * alphabet + b. Flat up to {@link #MAX_FLAT_ALPHABET} symbols,
+     * open addressing on the same index above that.
+     */
+    private static final class Table {
+        final int alphabet;
+        final long[] flat;
+        long[] keys; // index + 1, 0 for a free slot
+        long[] values;
+        int size;
+
+        Table(int alphabet) {
+            this.alphabet = alphabet;
+            if (alphabet <= MAX_FLAT_ALPHABET) {
+                flat = new long[alphabet * alphabet];
+            } else {
+                flat = null;
+                keys = new long[1 << 16];
+                values = new long[1 << 16];
+            }
+        }
+
+        void add(int a, int b, long n) {
+            long index = (long) a * alphabet + b;
+            if (flat != null) {
+                flat[(int) index] += n;
+            } else {
+                addHashed(index, n);
+            }
+        }
+
+        void addRun(int symbol, long length) {
+            if (length >= 2) add(symbol, symbol, length / 2);
+        }
+
+        private void addHashed(long index, long n) {
+            int mask = keys.length - 1;
+            int slot = (int) (index * 0x9E3779B97F4A7C15L >>> 40) & mask;
+            while (keys[slot] != 0 && keys[slot] != index + 1) slot = (slot + 1) & mask;
+            if (keys[slot] == 0) {
+                keys[slot] = index + 1;
+                if (++size * 2 > keys.length) {
+                    values[slot] = n;
+                    grow();
+                    return;
+                }
+            }
+            values[slot] += n;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldKeys[slot] != 0) addHashed(oldKeys[slot] - 1, oldValues[slot]);
+            }
+        }
+
+        void addAll(Table other) {
+            if (flat != null) {
+                for (int i = 0; i < flat.length; i++) flat[i] += other.flat[i];
+            } else {
+                for (int slot = 0; slot < other.keys.length; slot++) {
+                    if (other.keys[slot] != 0) addHashed(other.keys[slot] - 1, other.values[slot]);
+                }
+            }
+        }
+
+        /** The non-zero counts; {@code artificial} maps indices from 256 up back to their symbols. */
+        Map<Pair<Integer, Integer>, Long> toMap(int[] artificial) {
+            Map<Pair<Integer, Integer>, Long> map = new HashMap<>();
+            if (flat != null) {
+                for (int i = 0; i < flat.length; i++) {
+                    if (flat[i] != 0) map.put(pair(i, artificial), flat[i]);
+                }
+            } else {
+                for (int slot = 0; slot < keys.length; slot++) {
+                    if (keys[slot] != 0 && values[slot] != 0) map.put(pair(keys[slot] - 1, artificial), values[slot]);
+                }
+            }
+            return map;
+        }
+
+        private Pair<Integer, Integer> pair(long index, int[] artificial) {
+            return Pair.of(symbol((int) (index / alphabet), artificial), symbol((int) (index % alphabet), artificial));
+        }
+
+        private static int symbol(int index, int[] artificial) {
+            return index < 256 ? index : artificial[index - 256];
+        }
+    }
+}
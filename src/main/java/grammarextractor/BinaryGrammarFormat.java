@@ -0,0 +1,155 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compact binary counterpart of the text grammar format.
+ *
+ * <pre>
+ *   magic "SLPG", version byte
+ *   varint ruleCount, varint sequenceLength
+ *   ruleCount times, in ascending rule id order:
+ *     varint (ruleId - previousRuleId - 1), previousRuleId starting at 255
+ *     varint rhsLength, then rhsLength symbol codes
+ *   sequenceLength varints (plain symbols)
+ * </pre>
+ *
+ * Varints are unsigned LEB128. A symbol code is {@code symbol << 1} for a terminal and
+ * {@code zigzag(ruleId - symbol) << 1 | 1} for a nonterminal, so rules that refer to nearby
+ * rules need one or two bytes per symbol no matter how large the ids get. Symbol codes are
+ * 33-bit values, so a rule can refer to any other rule; below 2^31 they take the same bytes as
+ * a plain int varint.
+ */
+public class BinaryGrammarFormat {
+    static final byte[] MAGIC = {'S', 'L', 'P', 'G'};
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** True if the file starts with the binary grammar magic. */
+    public static boolean isBinaryGrammar(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+            while (head.hasRemaining() && channel.read(head) > 0) { }
+            return !head.hasRemaining() && Arrays.equals(head.array(), MAGIC);
+        }
+    }
+
+    public static void write(Parser.ParsedGrammar grammar, Path outputFile) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("write");
+        GrammarWriter.writeBinaryFile(grammar, outputFile);
+        span.end("writing the binary grammar", grammar, Files.size(outputFile));
+    }
+
+    /**
+     * Loads a binary grammar. Every rule body and the sequence are decoded straight into
+     * pre-sized IntLists. Metadata is computed lazily, as for text grammars.
+     */
+    public static Parser.ParsedGrammar read(Path inputFile) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("parse");
+        try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            VarIntReader in = new VarIntReader(channel);
+            for (byte b : MAGIC) {
+                if (in.readByte() != b) throw new IOException("Not a binary grammar file: " + inputFile);
+            }
+            int version = in.readByte();
+            if (version != VERSION) throw new IOException("Unsupported binary grammar version " + version);
+
+            int ruleCount = in.readVarInt();
+            int sequenceLength = in.readVarInt();
+
+            Map<Integer, List<Integer>> rules = new HashMap<>(Math.max(16, (int) (ruleCount / 0.75f) + 1));
+            int ruleId = 255;
+            for (int r = 0; r < ruleCount; r++) {
+                ruleId += in.readVarInt() + 1;
+                int length = in.readVarInt();
+                IntList rhs = new IntList(length);
+                for (int k = 0; k < length; k++) {
+                    long code = in.readVarLong();
+                    rhs.addInt((code & 1) == 0 ? (int) (code >>> 1) : ruleId - unzigzag((int) (code >>> 1)));
+                }
+                rules.put(ruleId, rhs);
+            }
+
+            IntList sequence = new IntList(sequenceLength);
+            for (int k = 0; k < sequenceLength; k++) sequence.addInt(in.readVarInt());
+
+            Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, sequence);
+            span.end("loading the binary grammar", grammar, channel.size());
+            return grammar;
+        }
+    }
+
+    /** The code of {@code symbol} inside the body of {@code ruleId}. */
+    static long symbolCode(int ruleId, int symbol) {
+        if (symbol < 256) return (long) symbol << 1;
+        return Integer.toUnsignedLong(zigzag(ruleId - symbol)) << 1 | 1;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Reads bytes and varints from a mapped file, or through a fixed buffer for huge files. */
+    private static final class VarIntReader {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean streaming;
+
+        VarIntReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            long size = channel.size();
+            streaming = size > Integer.MAX_VALUE;
+            if (streaming) {
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        int readByte() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (!streaming) throw new IOException("Unexpected end of binary grammar");
+                buffer.clear();
+                int n;
+                do {
+                    n = channel.read(buffer);
+                } while (n == 0);
+                buffer.flip();
+                if (n < 0) throw new IOException("Unexpected end of binary grammar");
+            }
+            return buffer.get();
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IOException("Malformed varint in binary grammar");
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IOException("Malformed varint in binary grammar");
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Writes synthetic texts of a chosen compressibility for end-to-end runs. The text is cut into
+ * chunks of {@link #CHUNK_SIZE} bytes that are generated on all threads and written to their
+ * offsets in the file; chunk i only depends on the seed and i, so the file is the same for any
+ * number of threads.
+ *
+ * <pre>
+ *   uniform                        uniformly random letters and digits, nearly incompressible
+ *   zipf[:vocabulary[:exponent]]   words drawn from a Zipf distribution (default 10000 words, 1.0)
+ *   markov:k:sampleFile            order-k byte Markov model learned from a sample, 0 &lt;= k &lt;= 7
+ *   versioned[:docSize[:rate]]     versions of one document, each a copy of the previous one with
+ *                                  about rate * docSize edits (default 65536 bytes, 0.001)
+ * </pre>
+ */
+public class CorpusGenerator {
+    public static final int CHUNK_SIZE = 1 << 22;
+    public static final long DEFAULT_SEED = 42;
+
+    /** A text model. Models are immutable once built and are shared by all threads. */
+    public interface Model {
+        /** Fills {@code chunk} using only {@code random} as a source of randomness. */
+        void fill(byte[] chunk, int length, SplittableRandom random);
+    }
+
+    /** Builds the model of a spec as listed above; models that need randomness take it from the seed. */
+    public static Model model(String spec, long seed) throws IOException {
+        String[] parts = spec.split(":", 3);
+        try {
+            return switch (parts[0]) {
+                case "uniform" -> new UniformModel();
+                case "zipf" -> new ZipfModel(
+                        parts.length > 1 ? Integer.parseInt(parts[1]) : 10_000,
+                        parts.length > 2 ? Double.parseDouble(parts[2]) : 1.0,
+                        new SplittableRandom(seed));
+                case "markov" -> new MarkovModel(Files.readAllBytes(Path.of(parts[2])), Integer.parseInt(parts[1]));
+                case "versioned" -> new VersionedModel(
+                        parts.length > 1 ? Integer.parseInt(parts[1]) : 1 << 16,
+                        parts.length > 2 ? Double.parseDouble(parts[2]) : 0.001,
+                        new SplittableRandom(seed));
+                default -> throw new IllegalArgumentException("Unknown text model: " + parts[0]);
+            };
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid text model spec: " + spec, e);
+        }
+    }
+
+    public static void generate(String spec, long length, long seed, int threads, Path outputFile) throws IOException {
+        generate(model(spec, seed), length, seed, threads, outputFile);
+    }
+
+    /** Writes {@code length} bytes of the model's text to the file, using {@code threads} threads. */
+    public static void generate(Model model, long length, long seed, int threads, Path outputFile) throws IOException {
+        if (length < 0) throw new IllegalArgumentException("Negative length: " + length);
+        MetricsRegistry.Span span = MetricsRegistry.start("generate");
+        long chunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            List<Future<?>> pending = new ArrayList<>();
+            for (long chunk = 0; chunk < chunks; chunk++) {
+                long offset = chunk * CHUNK_SIZE;
+                int chunkLength = (int) Math.min(CHUNK_SIZE, length - offset);
+                SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + chunk);
+                pending.add(pool.submit(() -> {
+                    byte[] buffer = buffers.get();
+                    model.fill(buffer, chunkLength, random);
+                    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, chunkLength);
+                    long position = offset;
+                    while (bytes.hasRemaining()) position += channel.write(bytes, position);
+                    return null;
+                }));
+            }
+            for (Future<?> future : pending) future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating " + outputFile, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException("Generating " + outputFile + " failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        long millis = Math.max(1, span.end(null, 0, 0, length) / 1_000_000);
+        MetricsRegistry.print("Time required for generating the corpus: " + millis + "ms ("
+                + length / 1000 / millis + " MB/s)");
+    }
+
+    /** The same text as {@link #generate(Model, long, long, int, Path)} writes, in memory and on the calling thread. */
+    public static byte[] generate(Model model, int length, long seed) {
+        byte[] text = new byte[length];
+        byte[] buffer = new byte[CHUNK_SIZE];
+        for (int chunk = 0; (long) chunk * CHUNK_SIZE < length; chunk++) {
+            int offset = chunk * CHUNK_SIZE;
+            int chunkLength = Math.min(CHUNK_SIZE, length - offset);
+            model.fill(buffer, chunkLength, new SplittableRandom(seed * 0x9E3779B97F4A7C15L + chunk));
+            System.arraycopy(buffer, 0, text, offset, chunkLength);
+        }
+        return text;
+    }
+
+    /** Parses a byte count with an optional K, M or G suffix (powers of 1024), e.g. "4G". */
+    public static long parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ROOT);
+        int shift = switch (s.isEmpty() ? ' ' : s.charAt(s.length() - 1)) {
+            case 'K' -> 10;
+            case 'M' -> 20;
+            case 'G' -> 30;
+            default -> 0;
+        };
+        if (shift != 0) s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) << shift;
+    }
+
+    private static final class UniformModel implements Model {
+        private static final byte[] POOL =
+                "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".getBytes(StandardCharsets.US_ASCII);
+
+        @Override
+        public void fill(byte[] chunk, int length, SplittableRandom random) {
+            for (int i = 0; i < length; i++) chunk[i] = POOL[random.nextInt(POOL.length)];
+        }
+    }
+
+    /**
+     * Words separated by spaces and the occasional newline. The word of rank r is drawn with
+     * probability proportional to 1 / r^exponent, in O(1) with an alias table.
+     */
+    private static final class ZipfModel implements Model {
+        private final byte[][] words;
+        private final double[] probability;
+        private final int[] alias;
+
+        ZipfModel(int vocabulary, double exponent, SplittableRandom random) {
+            if (vocabulary < 1) throw new IllegalArgumentException("Vocabulary must not be empty");
+            words = new byte[vocabulary][];
+            for (int w = 0; w < vocabulary; w++) {
+                // Short words for frequent ranks, as in natural text
+                byte[] word = new byte[1 + Math.min(11, (int) Math.log(w + 2)) + random.nextInt(3)];
+                for (int i = 0; i < word.length; i++) word[i] = (byte) ('a' + random.nextInt(26));
+                words[w] = word;
+            }
+            double[] weights = new double[vocabulary];
+            for (int r = 0; r < vocabulary; r++) weights[r] = 1 / Math.pow(r + 1, exponent);
+            probability = new double[vocabulary];
+            alias = new int[vocabulary];
+            buildAliasTable(weights, probability, alias);
+        }
+
+        @Override
+        public void fill(byte[] chunk, int length, SplittableRandom random) {
+            int i = 0;
+            while (i < length) {
+                int r = random.nextInt(words.length);
+                byte[] word = words[random.nextDouble() < probability[r] ? r : alias[r]];
+                int n = Math.min(word.length, length - i);
+                System.arraycopy(word, 0, chunk, i, n);
+                i += n;
+                if (i < length) chunk[i++] = (byte) (random.nextInt(16) == 0 ? '\n' : ' ');
+            }
+        }
+    }
+
+    /** Vose's alias method: sample i uniformly, keep it with probability[i], else take alias[i]. */
+    static void buildAliasTable(double[] weights, double[] probability, int[] alias) {
+        int n = weights.length;
+        double total = 0;
+        for (double w : weights) total += w;
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = weights[i] * n / total;
+            if (scaled[i] < 1) small[smallCount++] = i;
+            else large[largeCount++] = i;
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount];
+            int l = large[--largeCount];
+            probability[s] = scaled[s];
+            alias[s] = l;
+            scaled[l] += scaled[s] - 1;
+            if (scaled[l] < 1) small[smallCount++] = l;
+            else large[largeCount++] = l;
+        }
+        while (largeCount > 0) probability[large[--largeCount]] = 1;
+        while (smallCount > 0) probability[small[--smallCount]] = 1; // rounding leftovers
+    }
+
+    /**
+     * Each byte is drawn from the bytes that followed the previous k bytes in the sample, with
+     * their sample frequencies, in O(1) with one alias table per context. Contexts are packed into
+     * a long and numbered through an open-addressing table; every successor also stores the number
+     * of the context it leads to, so generation does not hash. A context that never had a
+     * successor restarts at a random sample position.
+     */
+    private static final class MarkovModel implements Model {
+        private final byte[] sample;
+        private final int order;
+        private final long mask;
+        // Hash table from context to its index
+        private final long[] keys;
+        private final int[] indices;
+        // Successors of context c: symbols[starts[c]..starts[c + 1]), with an alias table
+        // relative to starts[c] in probability and alias
+        private final int[] starts;
+        private final byte[] symbols;
+        private final double[] probability;
+        private final int[] alias;
+        // Context reached by each successor, -1 if it has no successors itself
+        private final int[] nextContext;
+
+        MarkovModel(byte[] sample, int order) {
+            if (order < 0 || order > 7) throw new IllegalArgumentException("Markov order must be between 0 and 7: " + order);
+            if (sample.length <= order) throw new IllegalArgumentException("Sample shorter than the Markov order");
+            this.sample = sample;
+            this.order = order;
+            this.mask = order == 0 ? 0 : (1L << (8 * order)) - 1;
+
+            // Sort all (context, next byte) transitions so equal ones are adjacent
+            long[] transitions = new long[sample.length - order];
+            long context = 0;
+            for (int i = 0; i < order; i++) context = ((context << 8) | (sample[i] & 0xFF)) & mask;
+            for (int i = order; i < sample.length; i++) {
+                transitions[i - order] = (context << 8) | (sample[i] & 0xFF);
+                context = ((context << 8) | (sample[i] & 0xFF)) & mask;
+            }
+            Arrays.sort(transitions);
+
+            int contexts = 0;
+            int distinct = 0;
+            for (int i = 0; i < transitions.length; i++) {
+                if (i == 0 || transitions[i] != transitions[i - 1]) distinct++;
+                if (i == 0 || transitions[i] >>> 8 != transitions[i - 1] >>> 8) contexts++;
+            }
+            int capacity = Integer.highestOneBit(Math.max(2, contexts * 2 - 1)) << 1;
+            keys = new long[capacity];
+            indices = new int[capacity];
+            Arrays.fill(indices, -1);
+            starts = new int[contexts + 1];
+            symbols = new byte[distinct];
+            probability = new double[distinct];
+            alias = new int[distinct];
+
+            nextContext = new int[distinct];
+            long[] contextKeys = new long[contexts];
+            double[] counts = new double[distinct];
+            int c = -1;
+            int s = -1;
+            for (int i = 0; i < transitions.length; i++) {
+                long t = transitions[i];
+                if (i == 0 || t >>> 8 != transitions[i - 1] >>> 8) {
+                    c++;
+                    starts[c] = s + 1;
+                    contextKeys[c] = t >>> 8;
+                    insert(t >>> 8, c);
+                }
+                if (i == 0 || t != transitions[i - 1]) {
+                    s++;
+                    symbols[s] = (byte) t;
+                }
+                counts[s]++;
+            }
+            starts[contexts] = distinct;
+
+            for (c = 0; c < contexts; c++) {
+                int from = starts[c];
+                int n = starts[c + 1] - from;
+                double[] p = new double[n];
+                int[] a = new int[n];
+                buildAliasTable(Arrays.copyOfRange(counts, from, from + n), p, a);
+                System.arraycopy(p, 0, probability, from, n);
+                System.arraycopy(a, 0, alias, from, n);
+                for (int k = from; k < from + n; k++) {
+                    nextContext[k] = lookup(((contextKeys[c] << 8) | (symbols[k] & 0xFF)) & mask);
+                }
+            }
+        }
+
+        @Override
+        public void fill(byte[] chunk, int length, SplittableRandom random) {
+            int c = restart(random);
+            for (int i = 0; i < length; i++) {
+                int from = starts[c];
+                int n = starts[c + 1] - from;
+                int successor = from;
+                if (n > 1) {
+                    int r = from + random.nextInt(n);
+                    successor = random.nextDouble() < probability[r] ? r : from + alias[r];
+                }
+                chunk[i] = symbols[successor];
+                c = nextContext[successor];
+                if (c < 0) c = restart(random);
+            }
+        }
+
+        // A context that has a successor: one starting at a random position before the last byte
+        private int restart(SplittableRandom random) {
+            int p = random.nextInt(sample.length - order);
+            long context = 0;
+            for (int i = p; i < p + order; i++) context = ((context << 8) | (sample[i] & 0xFF)) & mask;
+            return lookup(context);
+        }
+
+        private void insert(long key, int index) {
+            int slot = slot(key);
+            while (indices[slot] >= 0) slot = (slot + 1) & (keys.length - 1);
+            keys[slot] = key;
+            indices[slot] = index;
+        }
+
+        private int lookup(long key) {
+            int slot = slot(key);
+            while (indices[slot] >= 0) {
+                if (keys[slot] == key) return indices[slot];
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            return -1;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 40) & (keys.length - 1);
+        }
+    }
+
+    /**
+     * Consecutive versions of one document, like a revision history. Every chunk starts from its
+     * own variant of a common base document (Zipf text); each following version copies the
+     * previous one and applies substitutions, insertions and deletions at random positions.
+     */
+    private static final class VersionedModel implements Model {
+        private final byte[] base;
+        private final double rate;
+
+        VersionedModel(int documentSize, double rate, SplittableRandom random) {
+            if (documentSize < 1) throw new IllegalArgumentException("Document size must be positive");
+            if (rate < 0 || rate >= 1) throw new IllegalArgumentException("Mutation rate must be in [0, 1): " + rate);
+            this.rate = rate;
+            base = new byte[documentSize];
+            new ZipfModel(10_000, 1.0, random).fill(base, documentSize, random);
+        }
+
+        @Override
+        public void fill(byte[] chunk, int length, SplittableRandom random) {
+            byte[] version = mutate(base, random);
+            int i = 0;
+            while (i < length) {
+                int n = Math.min(version.length, length - i);
+                System.arraycopy(version, 0, chunk, i, n);
+                i += n;
+                version = mutate(version, random);
+            }
+        }
+
+        // Copies the document, jumping from edit to edit with geometric gaps
+        private byte[] mutate(byte[] document, SplittableRandom random) {
+            if (rate == 0) return document;
+            byte[] next = new byte[document.length + document.length / 8 + 16];
+            int from = 0;
+            int to = 0;
+            double logKeep = Math.log1p(-rate);
+            while (true) {
+                long gap = (long) (Math.log(1 - random.nextDouble()) / logKeep);
+                int copy = (int) Math.min(gap, document.length - from);
+                if (to + copy + 1 > next.length) next = Arrays.copyOf(next, 2 * (to + copy + 1));
+                System.arraycopy(document, from, next, to, copy);
+                from += copy;
+                to += copy;
+                if (from >= document.length) break;
+                byte letter = (byte) ('a' + random.nextInt(26));
+                switch (random.nextInt(3)) {
+                    case 0 -> { next[to++] = letter; from++; } // substitution
+                    case 1 -> next[to++] = letter;              // insertion
+                    default -> from++;                          // deletion
+                }
+            }
+            return to > 0 ? Arrays.copyOf(next, to) : base;
+        }
+    }
+}
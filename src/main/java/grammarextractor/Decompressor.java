@@ -1,49 +1,412 @@
 package grammarextractor;
 
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
+/**
+ * Expands grammars back into their text. Terminals are bytes and are written as single raw
+ * bytes, so any input, not only ASCII, comes back unchanged. The String methods are a view of
+ * the same bytes in ISO-8859-1, which maps every byte to the char with the same value.
+ */
 public class Decompressor {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Receives the text in chunks of {@code buffer[0..position)}. */
+    private abstract static class Output {
+        byte[] buffer;
+        int position;
+        long flushed; // bytes handed on by overflow() that are no longer in the buffer
+
+        Output(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        /** Called when the buffer is full; must leave room for at least one more byte. */
+        abstract void overflow() throws IOException;
+
+        long written() {
+            return flushed + position;
+        }
+
+        void write(byte[] bytes) throws IOException {
+            int from = 0;
+            while (from < bytes.length) {
+                if (position == buffer.length) overflow();
+                int n = Math.min(bytes.length - from, buffer.length - position);
+                System.arraycopy(bytes, from, buffer, position, n);
+                position += n;
+                from += n;
+            }
+        }
+    }
+
+    /** Keeps the whole text, doubling the buffer when it is full. */
+    private static final class GrowingOutput extends Output {
+        GrowingOutput(int capacity) {
+            super(Math.max(capacity, 16));
+        }
+
+        @Override
+        void overflow() {
+            if (buffer.length >= Integer.MAX_VALUE - 8) throw new OutOfMemoryError("Text too long for a byte array");
+            buffer = Arrays.copyOf(buffer, (int) Math.min(Integer.MAX_VALUE - 8, 2L * buffer.length));
+        }
+    }
 
     public static String decompress(Parser.ParsedGrammar parsedGrammar) {
-        long startTime = System.nanoTime();
-        StringBuilder output = new StringBuilder();
+        return new String(decompressToBytes(parsedGrammar), StandardCharsets.ISO_8859_1);
+    }
+
+    /** The text as bytes, one per terminal. */
+    public static byte[] decompressToBytes(Parser.ParsedGrammar parsedGrammar) {
+        return decompressToBytes(parsedGrammar, null);
+    }
 
-        for (int symbol : parsedGrammar.sequence()) {
-            expand(symbol, parsedGrammar.grammarRules(), output);
+    /** Like {@link #decompressToBytes(Parser.ParsedGrammar)}, copying cached expansions where possible. */
+    public static byte[] decompressToBytes(Parser.ParsedGrammar parsedGrammar, ExpansionCache cache) {
+        Output out = new GrowingOutput(BUFFER_SIZE);
+        try {
+            expand(parsedGrammar, cache, out);
+        } catch (IOException e) {
+            throw new AssertionError(e); // the buffer only grows, there is no I/O
         }
-        long endTime = System.nanoTime();
-        System.out.println("Time required for decompression in total: " + (endTime - startTime) / 1_000_000 + "ms");
-        return output.toString();
+        return Arrays.copyOf(out.buffer, out.position);
     }
 
-    private static void expand(int startSymbol,
-                                        Map<Integer, List<Integer>> grammar,
-                                        StringBuilder output) {
+    /**
+     * Writes the text into {@code target} starting at its position.
+     *
+     * @throws BufferOverflowException if the text does not fit
+     */
+    public static void decompress(Parser.ParsedGrammar parsedGrammar, ByteBuffer target) {
+        Output out = new Output(BUFFER_SIZE) {
+            @Override
+            void overflow() {
+                target.put(buffer, 0, position);
+                flushed += position;
+                position = 0;
+            }
+        };
+        try {
+            expand(parsedGrammar, null, out);
+            out.overflow();
+        } catch (IOException e) {
+            throw new AssertionError(e); // only copies into the target buffer
+        }
+    }
+
+    /** Streams the text into a channel through a fixed buffer. */
+    public static void decompress(Parser.ParsedGrammar parsedGrammar, WritableByteChannel channel) throws IOException {
+        decompress(parsedGrammar, channel, null);
+    }
+
+    /** Like {@link #decompress(Parser.ParsedGrammar, WritableByteChannel)}, copying cached expansions where possible. */
+    public static void decompress(Parser.ParsedGrammar parsedGrammar, WritableByteChannel channel,
+                                  ExpansionCache cache) throws IOException {
+        Output out = new Output(BUFFER_SIZE) {
+            @Override
+            void overflow() throws IOException {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, position);
+                while (chunk.hasRemaining()) channel.write(chunk);
+                flushed += position;
+                position = 0;
+            }
+        };
+        expand(parsedGrammar, cache, out);
+        out.overflow();
+    }
+
+    /** Writes the text to a file, byte for byte. */
+    public static void decompressToFile(Parser.ParsedGrammar parsedGrammar, Path outputFile) throws IOException {
+        decompressToFile(parsedGrammar, outputFile, null);
+    }
 
-        // Use a stack to simulate recursion
-        Deque<Integer> symbolStack = new ArrayDeque<>();
-        symbolStack.push(startSymbol);
+    public static void decompressToFile(Parser.ParsedGrammar parsedGrammar, Path outputFile,
+                                        ExpansionCache cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            decompress(parsedGrammar, channel, cache);
+        }
+    }
 
-        while (!symbolStack.isEmpty()) {
-            int symbol = symbolStack.pop();
+    /**
+     * Random access: the bytes [start, end) of the text. Only the symbols on the two boundary
+     * paths are split; everything in between is expanded whole, or copied from the cache.
+     * {@code cache} may be null.
+     */
+    public static byte[] decompressRange(Parser.ParsedGrammar parsedGrammar, long start, long end,
+                                         ExpansionCache cache) {
+        return decompressRange(new RangeIndex(parsedGrammar), start, end, cache);
+    }
 
-            if (symbol < 256) {
-                output.append((char) symbol);
-                continue;
+    /** Like {@link #decompressRange(Parser.ParsedGrammar, long, long, ExpansionCache)}, reusing a prebuilt index. */
+    static byte[] decompressRange(RangeIndex index, long start, long end, ExpansionCache cache) {
+        index.checkRange(start, end);
+        if (end - start > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Range too long for a byte array");
+        Output out = new Output((int) (end - start)) {
+            @Override
+            void overflow() {
+                throw new IllegalStateException("Expansion longer than its metadata length");
             }
+        };
+        try {
+            expandRange(index, start, end, cache, out);
+        } catch (IOException e) {
+            throw new AssertionError(e); // fixed buffer, there is no I/O
+        }
+        return out.buffer;
+    }
+
+    /** Like {@link #decompressRange(Parser.ParsedGrammar, long, long, ExpansionCache)}, streaming the bytes into a channel. */
+    public static void decompressRange(Parser.ParsedGrammar parsedGrammar, long start, long end,
+                                       ExpansionCache cache, WritableByteChannel channel) throws IOException {
+        decompressRange(new RangeIndex(parsedGrammar), start, end, cache, channel);
+    }
 
-            List<Integer> rhs = grammar.get(symbol);
-            if (rhs == null) {
-                throw new IllegalArgumentException("Missing rule for non-terminal: R" + symbol);
+    /** Like {@link #decompressRange(RangeIndex, long, long, ExpansionCache)}, streaming the bytes into a channel. */
+    static void decompressRange(RangeIndex index, long start, long end, ExpansionCache cache,
+                                WritableByteChannel channel) throws IOException {
+        index.checkRange(start, end);
+        Output out = new Output(BUFFER_SIZE) {
+            @Override
+            void overflow() throws IOException {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, position);
+                while (chunk.hasRemaining()) channel.write(chunk);
+                flushed += position;
+                position = 0;
             }
+        };
+        expandRange(index, start, end, cache, out);
+        out.overflow();
+    }
 
-            // Push symbols in reverse order so they're processed left-to-right
-            for (int i = rhs.size() - 1; i >= 0; i--) {
-                symbolStack.push(rhs.get(i));
+    private static void expandRange(RangeIndex index, long start, long end, ExpansionCache cache,
+                                    Output out) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("decompress");
+        long written = out.written();
+        MetadataTable metadata = index.grammar.metadata();
+        FlatRules rules = index.rules;
+        Expander expander = new Expander(rules, cache);
+        List<Integer> sequence = index.grammar.sequence();
+
+        // Pending pieces (symbol, from, to) of partially covered symbols, last one on top
+        int[] symbols = new int[64];
+        long[] bounds = new long[2 * 64];
+        int depth = 0;
+        for (int i = index.symbolAt(start); i < sequence.size() && index.offsets[i] < end; i++) {
+            int symbol = sequence.get(i);
+            long pos = index.offsets[i];
+            long len = index.offsets[i + 1] - pos;
+            if (len == 0) continue;
+            symbols[0] = symbol;
+            bounds[0] = Math.max(start, pos) - pos;
+            bounds[1] = Math.min(end, pos + len) - pos;
+            depth = 1;
+            while (depth > 0) {
+                depth--;
+                int current = symbols[depth];
+                long from = bounds[2 * depth];
+                long to = bounds[2 * depth + 1];
+                if (from == 0 && to == lengthOf(metadata, current)) {
+                    expander.expand(current, out);
+                    continue;
+                }
+                int r = current - 256;
+                // Children overlapping [from, to), pushed in reverse
+                long childEnd = lengthOf(metadata, current);
+                for (int k = rules.starts[r + 1] - 1; k >= rules.starts[r] && childEnd > from; k--) {
+                    int child = rules.bodies[k];
+                    long childStart = childEnd - lengthOf(metadata, child);
+                    if (childStart < to) {
+                        if (depth == symbols.length) {
+                            symbols = Arrays.copyOf(symbols, depth * 2);
+                            bounds = Arrays.copyOf(bounds, depth * 4);
+                        }
+                        symbols[depth] = child;
+                        bounds[2 * depth] = Math.max(from, childStart) - childStart;
+                        bounds[2 * depth + 1] = Math.min(to, childEnd) - childStart;
+                        depth++;
+                    }
+                    childEnd = childStart;
+                }
+            }
+        }
+        span.end(null, index.grammar, out.written() - written);
+    }
+
+    private static long lengthOf(MetadataTable metadata, int symbol) {
+        return symbol < 256 ? 1 : metadata.length(symbol);
+    }
+
+    private static void expand(Parser.ParsedGrammar parsedGrammar, ExpansionCache cache, Output out) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("decompress");
+        Expander expander = new Expander(new FlatRules(parsedGrammar.grammarRules()), cache);
+        for (int symbol : parsedGrammar.sequence()) expander.expand(symbol, out);
+        span.end("decompression in total", parsedGrammar, out.written());
+    }
+
+    /**
+     * Expands symbols with an explicit stack. With a cache, cached expansions are copied instead
+     * of walked, and candidate rules that miss are expanded into a new array and stored. Rules
+     * inside such an array only read from the cache, so there is never more than one nested
+     * expansion.
+     */
+    private static final class Expander {
+        private final FlatRules rules;
+        private final ExpansionCache cache;
+        private int[] stack = new int[64];
+        private int[] nestedStack = new int[64];
+
+        Expander(FlatRules rules, ExpansionCache cache) {
+            this.rules = rules;
+            this.cache = cache;
+        }
+
+        void expand(int symbol, Output out) throws IOException {
+            stack = expand(symbol, out, stack, true);
+        }
+
+        private int[] expand(int symbol, Output out, int[] stack, boolean fillCache) throws IOException {
+            byte[] buffer = out.buffer;
+            int position = out.position;
+            // Iterative expansion: descend along first children and push the remaining ones in
+            // reverse, so they come off the stack left to right
+            int depth = 0;
+            stack[depth++] = symbol;
+            while (depth > 0) {
+                int current = stack[--depth];
+                while (current >= 256) {
+                    if (cache != null) {
+                        byte[] cached = cache.get(current);
+                        if (cached == null && fillCache && cache.isCandidate(current)) {
+                            cached = expandNested(current);
+                            cache.put(current, cached);
+                        }
+                        if (cached != null) {
+                            out.position = position;
+                            out.write(cached);
+                            buffer = out.buffer;
+                            position = out.position;
+                            break;
+                        }
+                    }
+                    int i = current - 256;
+                    if (i >= rules.defined.length || !rules.defined[i]) {
+                        throw new IllegalArgumentException("Missing rule for non-terminal: R" + current);
+                    }
+                    int from = rules.starts[i];
+                    int to = rules.starts[i + 1];
+                    if (from == to) break;
+                    if (depth + to - from > stack.length) stack = Arrays.copyOf(stack, Math.max(stack.length * 2, depth + to - from));
+                    for (int k = to - 1; k > from; k--) stack[depth++] = rules.bodies[k];
+                    current = rules.bodies[from];
+                }
+                if (current >= 256) continue; // empty rule or copied from the cache
+                if (position == buffer.length) {
+                    out.position = position;
+                    out.overflow();
+                    buffer = out.buffer;
+                    position = out.position;
+                }
+                buffer[position++] = (byte) current;
             }
+            out.position = position;
+            return stack;
+        }
+
+        private byte[] expandNested(int ruleId) throws IOException {
+            Output nested = new GrowingOutput(cache.expansionLength(ruleId));
+            // Skip the cache lookup for the rule itself, which just missed
+            int i = ruleId - 256;
+            for (int k = rules.starts[i]; k < rules.starts[i + 1]; k++) {
+                nestedStack = expand(rules.bodies[k], nested, nestedStack, false);
+            }
+            return nested.position == nested.buffer.length ? nested.buffer : Arrays.copyOf(nested.buffer, nested.position);
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * What range queries on one grammar share, built once in O(|G|): the flattened rules and
+     * the text offset of every sequence symbol, so a query only pays for its two boundary paths
+     * and the bytes it returns.
+     */
+    static final class RangeIndex {
+        final Parser.ParsedGrammar grammar;
+        final FlatRules rules;
+        final long[] offsets; // offsets[i] is where sequence symbol i starts; the last entry is the text length
+
+        RangeIndex(Parser.ParsedGrammar grammar) {
+            this.grammar = grammar;
+            this.rules = new FlatRules(grammar.grammarRules());
+            MetadataTable metadata = grammar.metadata();
+            List<Integer> sequence = grammar.sequence();
+            offsets = new long[sequence.size() + 1];
+            for (int i = 0; i < sequence.size(); i++) offsets[i + 1] = offsets[i] + lengthOf(metadata, sequence.get(i));
+        }
+
+        long textLength() {
+            return offsets[offsets.length - 1];
+        }
+
+        /** Heap of the index itself, on top of {@link Parser#estimatedHeapBytes}. */
+        long estimatedHeapBytes() {
+            return rules.defined.length + 4L * (rules.starts.length + rules.bodies.length) + 8L * offsets.length;
+        }
+
+        void checkRange(long start, long end) {
+            if (start < 0 || start > end || end > textLength()) {
+                throw new IllegalArgumentException("Invalid range [" + start + ", " + end + ") for a text of length " + textLength());
+            }
+        }
+
+        /** Index of the sequence symbol covering {@code position}: the last i with offsets[i] <= position. */
+        int symbolAt(long position) {
+            int i = Arrays.binarySearch(offsets, position);
+            if (i < 0) return -i - 2;
+            while (i > 0 && offsets[i - 1] == position) i--; // skip back over empty symbols
+            return i;
+        }
+    }
+
+    /** All right-hand sides in one array, indexed by ruleId - 256, so expansion needs no map lookups. */
+    static final class FlatRules {
+        final boolean[] defined;
+        final int[] starts;
+        final int[] bodies;
+
+        FlatRules(Map<Integer, List<Integer>> rules) {
+            int maxRuleId = 255;
+            for (int ruleId : rules.keySet()) maxRuleId = Math.max(maxRuleId, ruleId);
+            int capacity = maxRuleId - 255;
+            defined = new boolean[capacity];
+            starts = new int[capacity + 1];
+            long total = 0;
+            for (Map.Entry<Integer, List<Integer>> entry : rules.entrySet()) {
+                if (entry.getKey() < 256) continue;
+                defined[entry.getKey() - 256] = true;
+                starts[entry.getKey() - 256 + 1] = entry.getValue().size();
+                total += entry.getValue().size();
+            }
+            if (total > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Grammar too large to expand");
+            for (int i = 0; i < capacity; i++) starts[i + 1] += starts[i];
+            bodies = new int[(int) total];
+            for (Map.Entry<Integer, List<Integer>> entry : rules.entrySet()) {
+                if (entry.getKey() < 256) continue;
+                List<Integer> rhs = entry.getValue();
+                int at = starts[entry.getKey() - 256];
+                if (rhs instanceof IntList ints) {
+                    for (int k = 0; k < ints.size(); k++) bodies[at + k] = ints.getInt(k);
+                } else {
+                    for (int k = 0; k < rhs.size(); k++) bodies[at + k] = rhs.get(k);
+                }
+            }
+        }
+    }
+}
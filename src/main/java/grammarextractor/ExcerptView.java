@@ -0,0 +1,212 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A lightweight excerpt of a parent grammar. Rules are not copied: lookups go to a small overlay
+ * of new boundary rules first and to the parent's rule storage otherwise. Only the local sequence
+ * and the overlay belong to the view.
+ *
+ * The view is read-only. Decompression, random access, frequency counting and writing work on it
+ * directly; {@link #materialize()} creates an independent grammar for callers that mutate rules.
+ * Metadata and the set of reachable rules are computed on first use.
+ */
+public class ExcerptView {
+    private final Parser.ParsedGrammar parent;
+    private final Map<Integer, List<Integer>> overlayRules;
+    private final Map<Integer, RuleMetadata> overlayMetadata;
+    private final List<Integer> sequence;
+    private final int nextRuleId;
+    private final Map<Integer, List<Integer>> rules = new RulesView();
+
+    private Set<Integer> reachable;
+    private MetadataTable metadata;
+
+    ExcerptView(Parser.ParsedGrammar parent,
+                Map<Integer, List<Integer>> overlayRules,
+                Map<Integer, RuleMetadata> overlayMetadata,
+                List<Integer> sequence,
+                int nextRuleId) {
+        this.parent = parent;
+        this.overlayRules = overlayRules;
+        this.overlayMetadata = overlayMetadata;
+        this.sequence = Collections.unmodifiableList(sequence);
+        this.nextRuleId = nextRuleId;
+    }
+
+    public List<Integer> sequence() { return sequence; }
+
+    /** Rules created for this excerpt; everything else is shared with the parent. */
+    public Map<Integer, List<Integer>> overlayRules() { return Collections.unmodifiableMap(overlayRules); }
+
+    /** Read-only rule map of the excerpt: the overlay plus all parent rules reachable from the sequence. */
+    public Map<Integer, List<Integer>> grammarRules() { return rules; }
+
+    /** Metadata of all reachable rules, with vocc relative to the excerpt. */
+    public synchronized MetadataTable metadata() {
+        if (metadata == null) {
+            metadata = RuleMetadata.inheritFromParent(
+                    new Parser.ParsedGrammar(rules, sequence, MetadataTable.EMPTY),
+                    parent.metadata(), overlayMetadata);
+        }
+        return metadata;
+    }
+
+    /** The view as a (read-only) grammar, for code that only reads rules, sequence and metadata. */
+    public Parser.ParsedGrammar asGrammar() {
+        return new Parser.ParsedGrammar(rules, sequence, this::metadata);
+    }
+
+    public long length() {
+        long total = 0;
+        for (int symbol : sequence) total += lengthOf(symbol);
+        return total;
+    }
+
+    /** Returns the terminal at position pos of the excerpt by walking down from the sequence. */
+    public int charAt(long pos) {
+        if (pos < 0) throw new IndexOutOfBoundsException("pos=" + pos);
+        int symbol = -1;
+        for (int s : sequence) {
+            long len = lengthOf(s);
+            if (pos < len) { symbol = s; break; }
+            pos -= len;
+        }
+        if (symbol == -1) throw new IndexOutOfBoundsException("pos beyond excerpt length");
+
+        while (symbol >= 256) {
+            for (int child : rhs(symbol)) {
+                long len = lengthOf(child);
+                if (pos < len) { symbol = child; break; }
+                pos -= len;
+            }
+        }
+        return symbol;
+    }
+
+    public String decompress() {
+        return Decompressor.decompress(asGrammar());
+    }
+
+    /**
+     * Bigram frequencies of the excerpt text. Like menu option 12, the text is wrapped in the
+     * sentinels '#' and '$' first; the two sentinel rules are added as a further overlay, so the
+     * parent's rules are still not copied.
+     */
+    public Map<Pair<Integer, Integer>, Long> computeBigramFrequencies() {
+        if (sequence.isEmpty()) return new HashMap<>();
+        Map<Integer, List<Integer>> wrappedRules = new HashMap<>(overlayRules);
+        Map<Integer, RuleMetadata> wrappedMeta = new HashMap<>(overlayMetadata);
+        int nextId = nextRuleId;
+
+        int current = 35; // '#'
+        List<Integer> extended = new ArrayList<>(sequence);
+        extended.add(36); // '$'
+        for (int next : extended) {
+            List<Integer> rhs = List.of(current, next);
+            wrappedRules.put(nextId, rhs);
+            wrappedMeta.put(nextId, RuleMetadata.fromChildren(rhs, id -> {
+                RuleMetadata m = wrappedMeta.get(id);
+                return m != null ? m : parent.metadata().get(id);
+            }));
+            current = nextId++;
+        }
+
+        ExcerptView wrapped = new ExcerptView(parent, wrappedRules, wrappedMeta, new ArrayList<>(List.of(current)), nextId);
+        return Recompressor.computeBigramFrequencies(wrapped.asGrammar(), Collections.emptySet(), false, null);
+    }
+
+    public void writeToFile(String outputFile) throws IOException {
+        Extractor.writeGrammarToFile(asGrammar(), outputFile);
+    }
+
+    /**
+     * Copies the reachable rules into an independent grammar. Every RHS is a fresh list, so the
+     * result can be mutated (e.g. by recompression) without touching the parent.
+     */
+    public Parser.ParsedGrammar materialize() {
+        Map<Integer, List<Integer>> copy = new HashMap<>(reachable().size() * 2);
+        for (int ruleId : reachable()) {
+            copy.put(ruleId, new ArrayList<>(rhs(ruleId)));
+        }
+        return new Parser.ParsedGrammar(copy, new ArrayList<>(sequence), this::metadata);
+    }
+
+    private List<Integer> rhs(int ruleId) {
+        List<Integer> rhs = overlayRules.get(ruleId);
+        return rhs != null ? rhs : parent.grammarRules().get(ruleId);
+    }
+
+    private long lengthOf(int symbol) {
+        if (symbol < 256) return 1;
+        if (parent.metadata().contains(symbol)) return parent.metadata().length(symbol);
+        RuleMetadata meta = overlayMetadata.get(symbol);
+        return meta != null ? meta.getLength() : 1;
+    }
+
+    private Set<Integer> reachable() {
+        if (reachable == null) {
+            Set<Integer> visited = new LinkedHashSet<>();
+            Deque<Integer> stack = new ArrayDeque<>(sequence);
+            while (!stack.isEmpty()) {
+                int current = stack.pop();
+                if (current < 256 || visited.contains(current)) continue;
+                List<Integer> rhs = rhs(current);
+                if (rhs == null) continue;
+                visited.add(current);
+                for (int dep : rhs) {
+                    if (dep >= 256 && !visited.contains(dep)) stack.push(dep);
+                }
+            }
+            reachable = visited;
+        }
+        return reachable;
+    }
+
+    // Read-only map over the reachable rules. get() and containsKey() go straight to the overlay or
+    // the parent without checking reachability, iteration only visits reachable rules.
+    private final class RulesView extends AbstractMap<Integer, List<Integer>> {
+        @Override
+        public List<Integer> get(Object key) {
+            if (!(key instanceof Integer id)) return null;
+            List<Integer> rhs = rhs(id);
+            return rhs != null ? Collections.unmodifiableList(rhs) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Integer id && rhs(id) != null;
+        }
+
+        @Override
+        public int size() {
+            return reachable().size();
+        }
+
+        @Override
+        public Set<Entry<Integer, List<Integer>>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Integer, List<Integer>>> iterator() {
+                    Iterator<Integer> ids = reachable().iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() { return ids.hasNext(); }
+
+                        @Override
+                        public Entry<Integer, List<Integer>> next() {
+                            int id = ids.next();
+                            return new SimpleImmutableEntry<>(id, Collections.unmodifiableList(rhs(id)));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return reachable().size();
+                }
+            };
+        }
+    }
+}
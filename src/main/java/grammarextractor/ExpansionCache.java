@@ -0,0 +1,176 @@
+package grammarextractor;
+
+/**
+ * Expansions of frequently used rules as byte arrays, so that decompression can copy them
+ * instead of walking the rule tree again. The cache belongs to one grammar and holds at most
+ * {@code budget} bytes of expansions.
+ *
+ * Only rules that are expanded more than once (vocc &gt;= 2) and whose expansion is between
+ * {@link #MIN_LENGTH} and a sixteenth of the budget long are cached. Entries are evicted in LRU
+ * order, but a new expansion only displaces the least recently used one if it saves at least as
+ * much work, measured as vocc × length; otherwise it is not stored. Not thread-safe.
+ */
+public class ExpansionCache {
+    public static final long DEFAULT_BUDGET = 64L << 20;
+    /** Shorter expansions are as cheap to walk as to look up. */
+    public static final int MIN_LENGTH = 8;
+
+    private static final int NONE = -1;
+
+    private final long budget;
+    // Indexed by ruleId - 256; score is 0 for rules that are never cached
+    private final long[] score;
+    private final int[] length;
+    private final byte[][] entries;
+    // LRU list through the cached entries, most recently used first
+    private final int[] prev;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private long usedBytes;
+    private int size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    public ExpansionCache(Parser.ParsedGrammar grammar) {
+        this(grammar, DEFAULT_BUDGET);
+    }
+
+    public ExpansionCache(Parser.ParsedGrammar grammar, long budget) {
+        if (budget < 0) throw new IllegalArgumentException("Negative cache budget: " + budget);
+        this.budget = budget;
+        MetadataTable metadata = grammar.metadata();
+        int maxRuleId = 255;
+        for (int ruleId : grammar.grammarRules().keySet()) maxRuleId = Math.max(maxRuleId, ruleId);
+        int capacity = maxRuleId - 255;
+        score = new long[capacity];
+        length = new int[capacity];
+        entries = new byte[capacity][];
+        prev = new int[capacity];
+        next = new int[capacity];
+
+        long maxLength = Math.min(Integer.MAX_VALUE - 8, budget / 16);
+        for (int ruleId : grammar.grammarRules().keySet()) {
+            if (ruleId < 256 || !metadata.contains(ruleId)) continue;
+            long vocc = metadata.vocc(ruleId);
+            long len = metadata.length(ruleId);
+            if (vocc < 2 || len < MIN_LENGTH || len > maxLength) continue;
+            int i = ruleId - 256;
+            score[i] = vocc > Long.MAX_VALUE / len ? Long.MAX_VALUE : vocc * len;
+            length[i] = (int) len;
+        }
+    }
+
+    /** True if the expansion of the rule may be stored. */
+    public boolean isCandidate(int ruleId) {
+        int i = ruleId - 256;
+        return i >= 0 && i < score.length && score[i] != 0;
+    }
+
+    /** Length of the expansion of a candidate rule. */
+    public int expansionLength(int ruleId) {
+        return length[ruleId - 256];
+    }
+
+    /**
+     * The cached expansion of the rule, or null. Lookups of candidate rules count as hits or
+     * misses; the returned array must not be modified.
+     */
+    public byte[] get(int ruleId) {
+        if (!isCandidate(ruleId)) return null;
+        int i = ruleId - 256;
+        byte[] entry = entries[i];
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (head != i) {
+            unlink(i);
+            linkFirst(i);
+        }
+        return entry;
+    }
+
+    /** Stores the expansion of a candidate rule, evicting least recently used entries as needed. */
+    public void put(int ruleId, byte[] expansion) {
+        if (!isCandidate(ruleId)) return;
+        int i = ruleId - 256;
+        if (expansion.length != length[i]) {
+            throw new IllegalArgumentException("Expansion of R" + ruleId + " has length " + expansion.length
+                    + ", expected " + length[i]);
+        }
+        if (entries[i] != null) return;
+        while (usedBytes + expansion.length > budget) {
+            if (score[tail] > score[i]) {
+                rejections++;
+                return;
+            }
+            evict(tail);
+        }
+        entries[i] = expansion;
+        usedBytes += expansion.length;
+        size++;
+        linkFirst(i);
+    }
+
+    /** Drops all entries; the counters are kept. */
+    public void clear() {
+        while (tail != NONE) remove(tail);
+    }
+
+    public long budget() { return budget; }
+    public long usedBytes() { return usedBytes; }
+    /** Number of cached expansions. */
+    public int size() { return size; }
+    public long hits() { return hits; }
+    public long misses() { return misses; }
+    public long evictions() { return evictions; }
+    /** Expansions that were not stored because the entries they would displace save more work. */
+    public long rejections() { return rejections; }
+
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public void resetCounters() {
+        hits = misses = evictions = rejections = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Expansion cache: %d hits, %d misses (hit rate %.1f%%), %d evictions, %d rejected, %d of %d bytes used",
+                hits, misses, 100 * hitRate(), evictions, rejections, usedBytes, budget);
+    }
+
+    private void evict(int i) {
+        remove(i);
+        evictions++;
+    }
+
+    private void remove(int i) {
+        unlink(i);
+        usedBytes -= entries[i].length;
+        entries[i] = null;
+        size--;
+    }
+
+    private void linkFirst(int i) {
+        prev[i] = NONE;
+        next[i] = head;
+        if (head != NONE) prev[head] = i;
+        head = i;
+        if (tail == NONE) tail = i;
+    }
+
+    private void unlink(int i) {
+        if (prev[i] != NONE) next[prev[i]] = next[i];
+        else head = next[i];
+        if (next[i] != NONE) prev[next[i]] = prev[i];
+        else tail = prev[i];
+    }
+}
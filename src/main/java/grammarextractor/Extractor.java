@@ -1,22 +1,21 @@
 package grammarextractor;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 public class Extractor {
 
-    public static Parser.ParsedGrammar extractExcerpt(Parser.ParsedGrammar parsedInput, int start, int end,boolean normalize) {
+    public static Parser.ParsedGrammar extractExcerpt(Parser.ParsedGrammar parsedInput, long start, long end,boolean normalize) {
         if (start < 0 || start > end || end > getUncompressedSize(parsedInput)) {
             throw new IllegalArgumentException("Invalid excerpt range.");
         }
-        long startTime = System.nanoTime();
+        MetricsRegistry.Span span = MetricsRegistry.start("extract");
         List<Integer> excerptSequence = new ArrayList<>();
         Map<Integer, List<Integer>> excerptRules = new HashMap<>();
         Map<Integer, List<Integer>> allRules = parsedInput.grammarRules();
 
-        int totalTraversed = 0;
+        long totalTraversed = 0;
         int startIndex = 0;
         int endIndex = 0;
 
@@ -26,7 +25,7 @@ public class Extractor {
             totalTraversed += getSymbolLength(parsedInput, parsedInput.sequence().get(startIndex));
             startIndex++;
         }
-        int totalTraversedBeforeStart = totalTraversed;
+        long totalTraversedBeforeStart = totalTraversed;
 
         // Find end boundary symbol
         totalTraversed = 0;
@@ -35,7 +34,7 @@ public class Extractor {
             totalTraversed += getSymbolLength(parsedInput, parsedInput.sequence().get(endIndex));
             endIndex++;
         }
-        int totalTraversedBeforeEnd = totalTraversed;
+        long totalTraversedBeforeEnd = totalTraversed;
 
         // Case: start and end within same symbol
         if (startIndex == endIndex) {
@@ -75,91 +74,222 @@ public class Extractor {
             }
         }
 
-        // Build usage graph + copy reachable rules
+        // Copy reachable rules
         Parser.ParsedGrammar incomplete =
-                new Parser.ParsedGrammar(excerptRules, excerptSequence, Collections.emptyMap());
-        Map<Integer, Set<Integer>> usage = buildUsageGraph(allRules);
-        copyReachableRules(excerptSequence, allRules, excerptRules, usage);
+                new Parser.ParsedGrammar(excerptRules, excerptSequence, MetadataTable.EMPTY);
+        copyReachableRules(excerptSequence, allRules, excerptRules);
 
-        // Compute metadata on the excerpt
-        Map<Integer, RuleMetadata> computedMeta =
-                RuleMetadata.computeAll(incomplete, Collections.emptySet());
+        // Copied rules are unchanged, so only vocc has to be recomputed for the excerpt
+        MetadataTable computedMeta =
+                RuleMetadata.inheritFromParent(incomplete, parsedInput.metadata());
 
         Parser.ParsedGrammar unnormalized =
                 new Parser.ParsedGrammar(excerptRules, excerptSequence, computedMeta);
 
-        long endTime = System.nanoTime();
-        System.out.println("Time required for extraction in total: " +(double) (endTime - startTime) / 1_000_000 + "ms");
-        // Normalize ids and recompute metadata on the normalized grammar
+        span.end("extraction in total", unnormalized, end - start);
+        // Normalize ids; metadata is carried over to the new ids
         if(normalize) return normalizeRuleIds(unnormalized);
         else return unnormalized;
     }
 
 
-    private static void processSymbol(
-            int symbol,
-            Parser.ParsedGrammar input,
-            Map<Integer, List<Integer>> excerptRules,
-            List<Integer> out,
-            int from,
-            int to
-    ) {
-        if (from >= to) return;
+    /**
+     * Extracts the excerpt [start, end) as a proper SLP with a single root symbol.
+     * Instead of decomposing the partially covered boundary symbols into their fully covered
+     * children (see {@link #extractExcerpt}), new rules are created along the left and right
+     * boundary paths, and the top-level pieces are joined by a balanced tree of new rules.
+     * The resulting sequence has at most one symbol; the number of new rules is O(depth) for the
+     * boundaries plus one per additional top-level symbol of the input.
+     * New rules get ids above the largest rule id of the input grammar.
+     */
+    public static Parser.ParsedGrammar extractExcerptAsSlp(Parser.ParsedGrammar parsedInput, long start, long end, boolean normalize) {
+        MetricsRegistry.Span span = MetricsRegistry.start("extract");
+        ExcerptView view = extractView(parsedInput, start, end);
+
+        // Shallow copy: the parent's rule lists are shared, as in extractExcerpt
+        Map<Integer, List<Integer>> excerptRules = new HashMap<>(view.overlayRules());
+        List<Integer> roots = new ArrayList<>(view.sequence());
+        for (List<Integer> rhs : view.overlayRules().values()) roots.addAll(rhs);
+        copyReachableRules(roots, parsedInput.grammarRules(), excerptRules);
+        List<Integer> excerptSequence = new ArrayList<>(view.sequence());
+
+        Parser.ParsedGrammar unnormalized =
+                new Parser.ParsedGrammar(excerptRules, excerptSequence, view::metadata);
+
+        span.end("extraction in total", unnormalized, end - start);
+        if(normalize) return normalizeRuleIds(unnormalized);
+        else return unnormalized;
+    }
+
+    /**
+     * Extracts [start, end) like {@link #extractExcerptAsSlp}, but returns a view that shares the
+     * parent's rules instead of copying them. Only the new boundary rules and the sequence
+     * (a single root symbol) are allocated.
+     */
+    public static ExcerptView extractView(Parser.ParsedGrammar parsedInput, long start, long end) {
+        if (start < 0 || start > end || end > getUncompressedSize(parsedInput)) {
+            throw new IllegalArgumentException("Invalid excerpt range.");
+        }
+        int maxRuleId = parsedInput.grammarRules().keySet().stream().max(Integer::compareTo).orElse(255);
+        BoundaryRuleBuilder builder = new BoundaryRuleBuilder(parsedInput, maxRuleId + 1);
 
-        int symLen = getSymbolLength(input, symbol);
+        // Slice every top-level symbol that overlaps [start, end)
+        List<Integer> pieces = new ArrayList<>();
+        long pos = 0;
+        for (int symbol : parsedInput.sequence()) {
+            if (pos >= end) break;
+            long len = getSymbolLength(parsedInput, symbol);
+            if (pos + len > start) {
+                pieces.add(builder.slice(symbol, Math.max(start, pos) - pos, Math.min(end, pos + len) - pos));
+            }
+            pos += len;
+        }
 
-        // If the requested slice exactly covers this symbol, emit it as-is.
-        if (from == 0 && to == symLen) {
-            out.add(symbol);
-            return;
+        List<Integer> excerptSequence = new ArrayList<>();
+        if (start < end) {
+            excerptSequence.add(builder.joinBalanced(pieces, 0, pieces.size()));
         }
+        return new ExcerptView(parsedInput, builder.newRules, builder.newMetadata, excerptSequence, builder.nextRuleId);
+    }
 
-        // Terminal (length = 1): include iff slice overlaps [0,1)
-        if (symbol < 256) {
-            if (to > 0 && from < 1) out.add(symbol);
-            return;
+    /**
+     * Creates the new rules of a single-root excerpt. Metadata of new rules is derived from their
+     * children, so the parent grammar is never walked below the boundary paths.
+     */
+    private static final class BoundaryRuleBuilder {
+        private final Parser.ParsedGrammar input;
+        private final Map<Integer, List<Integer>> newRules = new LinkedHashMap<>();
+        private final Map<Integer, RuleMetadata> newMetadata = new HashMap<>();
+        private int nextRuleId;
+
+        BoundaryRuleBuilder(Parser.ParsedGrammar input, int firstNewRuleId) {
+            this.input = input;
+            this.nextRuleId = firstNewRuleId;
         }
 
-        // Nonterminal: recursively slice left/right children but keep whole children if fully covered.
-        List<Integer> rhs = input.grammarRules().get(symbol);
-        int left = rhs.get(0);
-        int right = rhs.get(1);
-        int leftLen = getSymbolLength(input, left);
-        int rightLen = getSymbolLength(input, right); // used for exact-coverage checks
-
-        // Entire slice inside left child
-        if (to <= leftLen) {
-            if (from == 0 && to == leftLen) {
-                out.add(left);
-            } else {
-                processSymbol(left, input, excerptRules, out, from, to);
+        /** A partially covered symbol on a boundary path, and the part of its new RHS built so far. */
+        private static final class Slice {
+            final long from;
+            final long to;
+            final List<Integer> rhs;
+            final List<Integer> newRhs = new ArrayList<>();
+            int next;
+            long pos;
+
+            Slice(List<Integer> rhs, long from, long to) {
+                this.rhs = rhs;
+                this.from = from;
+                this.to = to;
             }
-            return;
         }
 
-        // Entire slice inside right child
-        if (from >= leftLen) {
-            int rFrom = from - leftLen;
-            int rTo = to - leftLen;
-            if (rFrom == 0 && rTo == rightLen) {
-                out.add(right);
-            } else {
-                processSymbol(right, input, excerptRules, out, rFrom, rTo);
+        /**
+         * Returns a symbol deriving val(symbol)[from, to). Only the children overlapping
+         * [from, to) take part; the outer ones are cut down further. The boundary paths are
+         * walked with an explicit stack, as they are as deep as the grammar, and new rules are
+         * created in post-order.
+         */
+        int slice(int symbol, long from, long to) {
+            if (from == 0 && to == lengthOf(symbol)) return symbol;
+            Deque<Slice> stack = new ArrayDeque<>();
+            stack.push(new Slice(input.grammarRules().get(symbol), from, to));
+            while (true) {
+                Slice top = stack.peek();
+                boolean descended = false;
+                while (!descended && top.next < top.rhs.size() && top.pos < top.to) {
+                    int child = top.rhs.get(top.next++);
+                    long pos = top.pos;
+                    long childLen = lengthOf(child);
+                    top.pos += childLen;
+                    if (pos + childLen <= top.from) continue;
+                    long childFrom = Math.max(top.from, pos) - pos;
+                    long childTo = Math.min(top.to, pos + childLen) - pos;
+                    if (childFrom == 0 && childTo == childLen) {
+                        top.newRhs.add(child);
+                    } else {
+                        stack.push(new Slice(input.grammarRules().get(child), childFrom, childTo));
+                        descended = true;
+                    }
+                }
+                if (descended) continue;
+                stack.pop();
+                int result = top.newRhs.size() == 1 ? top.newRhs.get(0) : newRule(top.newRhs);
+                if (stack.isEmpty()) return result;
+                stack.peek().newRhs.add(result);
             }
-            return;
         }
 
-        // Slice spans both children
-        if (from == 0) {
-            out.add(left); // left fully covered
-        } else {
-            processSymbol(left, input, excerptRules, out, from, leftLen);
+        /** Joins pieces[lo, hi) into one symbol using a balanced tree of binary rules. */
+        int joinBalanced(List<Integer> pieces, int lo, int hi) {
+            if (hi - lo == 1) return pieces.get(lo);
+            int mid = (lo + hi) >>> 1;
+            int left = joinBalanced(pieces, lo, mid);
+            int right = joinBalanced(pieces, mid, hi);
+            return newRule(new ArrayList<>(List.of(left, right)));
         }
 
-        if (to == leftLen + rightLen) {
-            out.add(right); // right fully covered
-        } else {
-            processSymbol(right, input, excerptRules, out, 0, to - leftLen);
+        private int newRule(List<Integer> rhs) {
+            int id = nextRuleId++;
+            newRules.put(id, rhs);
+            newMetadata.put(id, RuleMetadata.fromChildren(rhs, this::metadataOf));
+            return id;
+        }
+
+        private RuleMetadata metadataOf(int ruleId) {
+            RuleMetadata meta = newMetadata.get(ruleId);
+            return meta != null ? meta : input.metadata().get(ruleId);
+        }
+
+        private long lengthOf(int symbol) {
+            if (symbol < 256) return 1;
+            if (input.metadata().contains(symbol)) return input.metadata().length(symbol);
+            RuleMetadata meta = newMetadata.get(symbol);
+            return meta != null ? meta.getLength() : 1;
+        }
+    }
+
+    /**
+     * Appends symbols deriving val(symbol)[from, to) to {@code out}, keeping fully covered
+     * children whole. Rules are binary. The pieces still to do are kept on an explicit stack,
+     * right before left, as the boundary paths are as deep as the grammar.
+     */
+    private static void processSymbol(
+            int symbol,
+            Parser.ParsedGrammar input,
+            Map<Integer, List<Integer>> excerptRules,
+            List<Integer> out,
+            long from,
+            long to
+    ) {
+        Deque<long[]> pending = new ArrayDeque<>();
+        pending.push(new long[]{symbol, from, to});
+        while (!pending.isEmpty()) {
+            long[] piece = pending.pop();
+            int current = (int) piece[0];
+            from = piece[1];
+            to = piece[2];
+            if (from >= to) continue;
+
+            // If the requested slice exactly covers this symbol, emit it as-is.
+            if (from == 0 && to == getSymbolLength(input, current)) {
+                out.add(current);
+                continue;
+            }
+
+            // Terminal (length = 1): include iff slice overlaps [0,1)
+            if (current < 256) {
+                if (to > 0 && from < 1) out.add(current);
+                continue;
+            }
+
+            // Nonterminal: slice left/right children, the ones fully covered are emitted whole.
+            List<Integer> rhs = input.grammarRules().get(current);
+            int left = rhs.get(0);
+            int right = rhs.get(1);
+            long leftLen = getSymbolLength(input, left);
+
+            if (to > leftLen) pending.push(new long[]{right, Math.max(from, leftLen) - leftLen, to - leftLen});
+            if (from < leftLen) pending.push(new long[]{left, from, Math.min(to, leftLen)});
         }
     }
 
@@ -176,10 +306,10 @@ public class Extractor {
         return graph;
     }
 
+    // Walks the rule bodies directly, so only the reachable part of the parent grammar is touched.
     private static void copyReachableRules(List<Integer> sequence,
                                            Map<Integer, List<Integer>> allRules,
-                                           Map<Integer, List<Integer>> excerptRules,
-                                           Map<Integer, Set<Integer>> usageGraph) {
+                                           Map<Integer, List<Integer>> excerptRules) {
         Set<Integer> visited = new HashSet<>();
         Deque<Integer> stack = new ArrayDeque<>(sequence);
 
@@ -191,8 +321,8 @@ public class Extractor {
             if (rule != null) {
                 excerptRules.put(current, rule);
                 visited.add(current);
-                for (int dep : usageGraph.getOrDefault(current, Set.of())) {
-                    if (!visited.contains(dep)) {
+                for (int dep : rule) {
+                    if (dep >= 256 && !visited.contains(dep)) {
                         stack.push(dep);
                     }
                 }
@@ -248,45 +378,38 @@ public class Extractor {
         List<Integer> newSeq = new ArrayList<>(seq.size());
         for (int sym : seq) newSeq.add(sym < 256 ? sym : idMap.get(sym));
 
-        // Recompute metadata on the normalized grammar
-        Parser.ParsedGrammar normalizedNoMeta =
-                new Parser.ParsedGrammar(newRules, newSeq, Collections.emptyMap());
-        Map<Integer, RuleMetadata> newMeta =
-                RuleMetadata.computeAll(normalizedNoMeta, Collections.emptySet());
+        // Renaming does not change any metadata, so carry it over under the new ids
+        MetadataTable oldMeta = g.metadata();
+        MetadataTable newMeta = new MetadataTable(nextId - 1);
+        for (int oldId : rules.keySet()) {
+            if (oldMeta.contains(oldId)) newMeta.copyFrom(oldMeta, oldId, idMap.get(oldId));
+        }
+
+        // Only recompute if the input grammar came without (complete) metadata
+        if (newMeta.size() != newRules.size()) {
+            Parser.ParsedGrammar normalizedNoMeta =
+                    new Parser.ParsedGrammar(newRules, newSeq, MetadataTable.EMPTY);
+            newMeta = RuleMetadata.computeAll(normalizedNoMeta, Collections.emptySet());
+        }
 
         return new Parser.ParsedGrammar(newRules, newSeq, newMeta);
     }
 
-    public static int getUncompressedSize(Parser.ParsedGrammar parsedInput) {
-        int total = 0;
+    public static long getUncompressedSize(Parser.ParsedGrammar parsedInput) {
+        long total = 0;
         for (int symbol : parsedInput.sequence()) {
             total += getSymbolLength(parsedInput, symbol);
         }
         return total;
     }
 
-    private static int getSymbolLength(Parser.ParsedGrammar parsedInput, int symbol) {
+    private static long getSymbolLength(Parser.ParsedGrammar parsedInput, int symbol) {
         if (symbol < 256) return 1;
-        RuleMetadata meta = parsedInput.metadata().get(symbol);
-        return meta != null ? meta.getLength() : 1;
+        MetadataTable meta = parsedInput.metadata();
+        return meta.contains(symbol) ? meta.length(symbol) : 1;
     }
 
     public static void writeGrammarToFile(Parser.ParsedGrammar grammarData, String outputFile) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
-            for (Map.Entry<Integer, List<Integer>> ruleEntry : grammarData.grammarRules().entrySet()) {
-                int ruleId = ruleEntry.getKey();
-                List<Integer> rhs = ruleEntry.getValue();
-                writer.write("R" + ruleId + ":" +
-                        rhs.stream().map(Object::toString).reduce((a, b) -> a + "," + b).orElse(""));
-                writer.newLine();
-            }
-
-            writer.write("SEQ:");
-            for (int i = 0; i < grammarData.sequence().size(); i++) {
-                writer.write(grammarData.sequence().get(i).toString());
-                if (i != grammarData.sequence().size() - 1) writer.write(",");
-            }
-            writer.newLine();
-        }
+        GrammarWriter.writeTextFile(grammarData, Path.of(outputFile), ":");
     }
 }
@@ -0,0 +1,184 @@
+package grammarextractor;
+
+import java.util.*;
+
+/**
+ * Builds grammars of families with known structure directly, without going through the text, so
+ * grammar size and expansion length can be chosen independently and expansions may be far longer
+ * than any text that fits in memory. All rules are binary.
+ *
+ * <pre>
+ *   fibonacci:n         Fibonacci word F(n), F(1) = b, F(2) = a, F(n) = F(n-1) F(n-2); n - 2 rules
+ *   thue-morse:n        Thue-Morse word of length 2^n over {a, b}; 2n - 1 rules
+ *   run:n               a^(2^n) by repeated squaring; n rules
+ *   left-chain:d        d rules R(k) = R(k-1) t, expansion length d + 1
+ *   right-chain:d       d rules R(k) = t R(k-1)
+ *   balanced:n[:seed]   balanced tree over n random letters; n - 1 rules, depth log n
+ *   random:r:d[:seed]   random SLP with r rules in d levels, so its depth is exactly d
+ * </pre>
+ *
+ * Lengths are limited to what the 64-bit metadata can hold: n &lt;= 92 for fibonacci and
+ * n &lt;= 62 for thue-morse and run.
+ */
+public class GrammarGenerator {
+    private static final long DEFAULT_SEED = 42;
+
+    /** Generates a grammar from a spec as listed above, e.g. "fibonacci:40" or "random:100000:30:7". */
+    public static Parser.ParsedGrammar generate(String spec) {
+        String[] parts = spec.split(":");
+        try {
+            return switch (parts[0]) {
+                case "fibonacci" -> fibonacci(intArg(parts, 1));
+                case "thue-morse" -> thueMorse(intArg(parts, 1));
+                case "run" -> run(intArg(parts, 1), 'a');
+                case "left-chain" -> chain(intArg(parts, 1), true);
+                case "right-chain" -> chain(intArg(parts, 1), false);
+                case "balanced" -> balanced(intArg(parts, 1), parts.length > 2 ? Long.parseLong(parts[2]) : DEFAULT_SEED);
+                case "random" -> randomSlp(intArg(parts, 1), intArg(parts, 2),
+                        parts.length > 3 ? Long.parseLong(parts[3]) : DEFAULT_SEED);
+                default -> throw new IllegalArgumentException("Unknown grammar family: " + parts[0]);
+            };
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid grammar spec: " + spec, e);
+        }
+    }
+
+    public static Parser.ParsedGrammar fibonacci(int n) {
+        if (n < 1 || n > 92) throw new IllegalArgumentException("fibonacci needs 1 <= n <= 92: " + n);
+        Builder g = new Builder();
+        int older = 'b';
+        int newer = 'a';
+        if (n == 1) return g.build(older);
+        for (int k = 3; k <= n; k++) {
+            int next = g.rule(newer, older);
+            older = newer;
+            newer = next;
+        }
+        return g.build(newer);
+    }
+
+    public static Parser.ParsedGrammar thueMorse(int n) {
+        if (n < 0 || n > 62) throw new IllegalArgumentException("thue-morse needs 0 <= n <= 62: " + n);
+        Builder g = new Builder();
+        int a = 'a';
+        int b = 'b';
+        for (int k = 1; k <= n; k++) {
+            int nextA = g.rule(a, b);
+            if (k < n) b = g.rule(b, a);
+            a = nextA;
+        }
+        return g.build(a);
+    }
+
+    /** The run c^(2^n). */
+    public static Parser.ParsedGrammar run(int n, int terminal) {
+        if (n < 0 || n > 62) throw new IllegalArgumentException("run needs 0 <= n <= 62: " + n);
+        Builder g = new Builder();
+        int symbol = terminal;
+        for (int k = 1; k <= n; k++) symbol = g.rule(symbol, symbol);
+        return g.build(symbol);
+    }
+
+    /** A chain of {@code depth} rules, each adding one letter on the right (left-deep) or on the left. */
+    public static Parser.ParsedGrammar chain(int depth, boolean leftDeep) {
+        if (depth < 1) throw new IllegalArgumentException("chain needs depth >= 1: " + depth);
+        Builder g = new Builder();
+        int symbol = 'a';
+        for (int k = 1; k <= depth; k++) {
+            int letter = 'a' + k % 26;
+            symbol = leftDeep ? g.rule(symbol, letter) : g.rule(letter, symbol);
+        }
+        return g.build(symbol);
+    }
+
+    /** A balanced binary tree over {@code leaves} random letters. */
+    public static Parser.ParsedGrammar balanced(int leaves, long seed) {
+        if (leaves < 1) throw new IllegalArgumentException("balanced needs at least one leaf: " + leaves);
+        Random random = new Random(seed);
+        Builder g = new Builder();
+        int[] level = new int[leaves];
+        for (int i = 0; i < leaves; i++) level[i] = 'a' + random.nextInt(26);
+        int size = leaves;
+        while (size > 1) {
+            int next = 0;
+            for (int i = 0; i + 1 < size; i += 2) level[next++] = g.rule(level[i], level[i + 1]);
+            if (size % 2 == 1) level[next++] = level[size - 1];
+            size = next;
+        }
+        return g.build(level[0]);
+    }
+
+    /**
+     * A random SLP with {@code ruleCount} rules spread over {@code depth} levels. Every rule of a
+     * level has a child from the level below; its other child is a random letter or a random rule
+     * of any lower level. Rules that no other rule uses, among them the whole top level, form the
+     * sequence, so every rule is reachable. Where a random rule would make an expansion longer
+     * than the metadata can hold, a letter is used instead.
+     */
+    public static Parser.ParsedGrammar randomSlp(int ruleCount, int depth, long seed) {
+        if (depth < 1 || ruleCount < depth) {
+            throw new IllegalArgumentException("random needs 1 <= depth <= rules: rules=" + ruleCount + ", depth=" + depth);
+        }
+        Random random = new Random(seed);
+        Builder g = new Builder();
+        long[] length = new long[ruleCount];
+        boolean[] referenced = new boolean[ruleCount];
+
+        int levelStart = 256;
+        int levelEnd = 256;
+        for (int level = 0; level < depth; level++) {
+            int levelSize = ruleCount / depth + (level < ruleCount % depth ? 1 : 0);
+            int previousStart = levelStart;
+            int previousSize = levelEnd - levelStart;
+            levelStart = levelEnd;
+            for (int j = 0; j < levelSize; j++) {
+                // The child from the level below, round robin so that all of them get used
+                int first = level == 0 ? 'a' + random.nextInt(26) : previousStart + j % previousSize;
+                int second = 'a' + random.nextInt(26);
+                if (level > 0 && random.nextBoolean()) {
+                    int candidate = 256 + random.nextInt(levelStart - 256);
+                    if (lengthOf(first, length) <= Long.MAX_VALUE / 2 - lengthOf(candidate, length)) second = candidate;
+                }
+                int ruleId = random.nextBoolean() ? g.rule(first, second) : g.rule(second, first);
+                length[ruleId - 256] = lengthOf(first, length) + lengthOf(second, length);
+                if (first >= 256) referenced[first - 256] = true;
+                if (second >= 256) referenced[second - 256] = true;
+            }
+            levelEnd = levelStart + levelSize;
+        }
+
+        IntList sequence = new IntList();
+        for (int i = 0; i < ruleCount; i++) {
+            if (!referenced[i]) sequence.addInt(256 + i);
+        }
+        return new Parser.ParsedGrammar(g.rules, sequence);
+    }
+
+    private static long lengthOf(int symbol, long[] length) {
+        return symbol < 256 ? 1 : length[symbol - 256];
+    }
+
+    private static int intArg(String[] parts, int index) {
+        return Integer.parseInt(parts[index]);
+    }
+
+    /** Hands out rule ids from 256 upwards. */
+    private static final class Builder {
+        final Map<Integer, List<Integer>> rules = new HashMap<>();
+        int nextRuleId = 256;
+
+        int rule(int left, int right) {
+            IntList rhs = new IntList(2);
+            rhs.addInt(left);
+            rhs.addInt(right);
+            rules.put(nextRuleId, rhs);
+            return nextRuleId++;
+        }
+
+        Parser.ParsedGrammar build(int root) {
+            IntList sequence = new IntList(1);
+            sequence.addInt(root);
+            return new Parser.ParsedGrammar(rules, sequence);
+        }
+    }
+}
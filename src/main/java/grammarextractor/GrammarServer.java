@@ -0,0 +1,432 @@
+package grammarextractor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server answering queries on grammar files without parsing them again for every
+ * query. Parsed grammars are kept in a {@link GrammarCache}; requests are handled on virtual
+ * threads and only read the cached grammars, so any number of them can run at once.
+ *
+ * <pre>
+ *   GET  /metadata?path=g.txt[&amp;rule=R]          sizes of the grammar, or the metadata of one rule, as JSON
+ *   GET  /substring?path=g.txt&amp;from=a&amp;to=b         text[a, b) as text, at most 16 MiB
+ *   GET  /decompress-range?path=g.txt&amp;from=a&amp;to=b  text[a, b) streamed as raw bytes
+ *   GET  /extract?path=g.txt&amp;from=a&amp;to=b[&amp;slp=true] grammar of the excerpt in the text format
+ *   POST /recompress?path=g.txt&amp;from=a&amp;to=b&amp;passes=n[&amp;output=file[&amp;overwrite=true]]
+ *                                                  start a job, returns its id
+ *   GET  /jobs[?id=n]                              state of one or all recompression jobs
+ *   GET  /status                                   cache and job counts
+ *   GET  /metrics                                  phase counters and latency percentiles, see {@link MetricsRegistry}
+ * </pre>
+ *
+ * Recompression jobs run on a small pool of platform threads of their own: they are long and
+ * CPU bound, and on the carrier threads of the virtual threads they would hold up the reads.
+ * They recompress a copy of the excerpt, so the cached grammar stays unchanged. An existing
+ * output file is only replaced with {@code overwrite=true}, and never if it is the input. Paths
+ * are resolved against a root directory, and paths leading outside of it are rejected.
+ */
+public class GrammarServer {
+    /** Longest text returned by /substring; /decompress-range has no limit. */
+    private static final long MAX_SUBSTRING = 16 << 20;
+
+    private final HttpServer server;
+    private final GrammarCache cache;
+    private final Path root;
+    private final ExecutorService jobPool;
+    private final Map<Long, RecompressJob> jobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextJobId = new AtomicLong(1);
+
+    public GrammarServer(int port, long cacheBudget, Path root, int jobThreads) throws IOException {
+        this.cache = new GrammarCache(cacheBudget);
+        this.root = root.toAbsolutePath().normalize();
+        this.jobPool = Executors.newFixedThreadPool(Math.max(1, jobThreads));
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/metadata", exchange -> handle(exchange, "GET", this::metadata));
+        server.createContext("/substring", exchange -> handle(exchange, "GET", this::substring));
+        server.createContext("/decompress-range", exchange -> handle(exchange, "GET", this::decompressRange));
+        server.createContext("/extract", exchange -> handle(exchange, "GET", this::extract));
+        server.createContext("/recompress", exchange -> handle(exchange, "POST", this::recompress));
+        server.createContext("/jobs", exchange -> handle(exchange, "GET", this::jobs));
+        server.createContext("/status", exchange -> handle(exchange, "GET", this::status));
+        server.createContext("/metrics", exchange -> handle(exchange, "GET", (e, query) -> sendJson(e, MetricsRegistry.toJson())));
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Serving grammars under " + root + " on http://" + server.getAddress().getHostString()
+                + ":" + server.getAddress().getPort() + "/");
+    }
+
+    public void stop() {
+        server.stop(0);
+        jobPool.shutdownNow();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> query) throws IOException;
+    }
+
+    /** Parses the query and maps exceptions to status codes: 400 for bad arguments, 404 for missing files. */
+    private static void handle(HttpExchange exchange, String method, Handler handler) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals(method)) {
+                exchange.getResponseHeaders().set("Allow", method);
+                sendText(exchange, 405, "Use " + method + "\n");
+                return;
+            }
+            try {
+                handler.handle(exchange, query(exchange));
+            } catch (NoSuchFileException e) {
+                sendText(exchange, 404, "No such file: " + e.getFile() + "\n");
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage() + "\n");
+            } catch (IOException | RuntimeException e) {
+                sendText(exchange, 500, e + "\n");
+            }
+        } catch (IOException e) {
+            // the client went away; nothing left to answer
+        }
+    }
+
+    private void metadata(HttpExchange exchange, Map<String, String> query) throws IOException {
+        Decompressor.RangeIndex index = cache.index(resolve(query));
+        Parser.ParsedGrammar grammar = index.grammar;
+        String rule = query.get("rule");
+        if (rule != null) {
+            int ruleId = Integer.parseInt(rule.startsWith("R") ? rule.substring(1) : rule);
+            if (!grammar.grammarRules().containsKey(ruleId)) throw new IllegalArgumentException("No rule R" + ruleId);
+            MetadataTable m = grammar.metadata();
+            sendJson(exchange, "{\"rule\": " + ruleId + ", \"vocc\": " + m.vocc(ruleId) + ", \"length\": " + m.length(ruleId)
+                    + ", \"leftmost\": " + m.leftmostTerminal(ruleId) + ", \"rightmost\": " + m.rightmostTerminal(ruleId)
+                    + ", \"singleBlock\": " + m.isSingleBlock(ruleId) + ", \"leftRun\": " + m.leftRunLength(ruleId)
+                    + ", \"rightRun\": " + m.rightRunLength(ruleId) + "}\n");
+        } else {
+            sendJson(exchange, "{\"rules\": " + grammar.grammarRules().size()
+                    + ", \"sequenceLength\": " + grammar.sequence().size()
+                    + ", \"grammarSize\": " + Parser.sizeOfGrammar(grammar)
+                    + ", \"textLength\": " + index.textLength()
+                    + ", \"estimatedHeapBytes\": " + Parser.estimatedHeapBytes(grammar) + "}\n");
+        }
+    }
+
+    private void substring(HttpExchange exchange, Map<String, String> query) throws IOException {
+        Decompressor.RangeIndex index = cache.index(resolve(query));
+        long from = longParam(query, "from");
+        long to = longParam(query, "to");
+        if (to - from > MAX_SUBSTRING) {
+            throw new IllegalArgumentException("At most " + MAX_SUBSTRING + " characters; use /decompress-range");
+        }
+        byte[] text = Decompressor.decompressRange(index, from, to, null);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=ISO-8859-1");
+        exchange.sendResponseHeaders(200, text.length == 0 ? -1 : text.length);
+        exchange.getResponseBody().write(text);
+    }
+
+    private void decompressRange(HttpExchange exchange, Map<String, String> query) throws IOException {
+        Decompressor.RangeIndex index = cache.index(resolve(query));
+        long length = index.textLength();
+        long from = query.containsKey("from") ? longParam(query, "from") : 0;
+        long to = query.containsKey("to") ? longParam(query, "to") : length;
+        if (from < 0 || from > to || to > length) {
+            throw new IllegalArgumentException("Invalid range [" + from + ", " + to + ") for a text of length " + length);
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.sendResponseHeaders(200, to == from ? -1 : to - from);
+        WritableByteChannel body = Channels.newChannel(exchange.getResponseBody());
+        Decompressor.decompressRange(index, from, to, null, body);
+    }
+
+    private void extract(HttpExchange exchange, Map<String, String> query) throws IOException {
+        Parser.ParsedGrammar grammar = cache.get(resolve(query));
+        long from = longParam(query, "from");
+        long to = longParam(query, "to");
+        Parser.ParsedGrammar excerpt = Boolean.parseBoolean(query.get("slp"))
+                ? Extractor.extractView(grammar, from, to).asGrammar()
+                : Extractor.extractExcerpt(grammar, from, to, false);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=US-ASCII");
+        exchange.sendResponseHeaders(200, 0);
+        try (GrammarWriter writer = new GrammarWriter(Channels.newChannel(exchange.getResponseBody()))) {
+            writer.writeText(excerpt, ":");
+        }
+    }
+
+    private void recompress(HttpExchange exchange, Map<String, String> query) throws IOException {
+        Path path = resolve(query);
+        long from = longParam(query, "from");
+        long to = longParam(query, "to");
+        int passes = (int) longParam(query, "passes");
+        Path output;
+        if (query.containsKey("output")) {
+            output = resolve(query.get("output"));
+            if (output.equals(path)) throw new IllegalArgumentException("The output must not be the input grammar");
+            if (Files.exists(output) && !Boolean.parseBoolean(query.get("overwrite"))) {
+                throw new IllegalArgumentException("Output exists, pass overwrite=true to replace it: " + query.get("output"));
+            }
+        } else {
+            output = Files.createTempFile("recompressed-", ".txt");
+        }
+        RecompressJob job = new RecompressJob(nextJobId.getAndIncrement(), path, from, to, passes, output);
+        jobs.put(job.id, job);
+        jobPool.submit(() -> job.run(cache));
+        sendJson(exchange, 202, job.toJson() + "\n");
+    }
+
+    private void jobs(HttpExchange exchange, Map<String, String> query) throws IOException {
+        if (query.containsKey("id")) {
+            RecompressJob job = jobs.get(longParam(query, "id"));
+            if (job == null) {
+                sendText(exchange, 404, "No job " + query.get("id") + "\n");
+                return;
+            }
+            sendJson(exchange, job.toJson() + "\n");
+            return;
+        }
+        StringBuilder json = new StringBuilder("[");
+        for (RecompressJob job : new TreeMap<>(jobs).values()) {
+            json.append(json.length() == 1 ? "\n  " : ",\n  ").append(job.toJson());
+        }
+        sendJson(exchange, json.append("\n]\n").toString());
+    }
+
+    private void status(HttpExchange exchange, Map<String, String> query) throws IOException {
+        long running = jobs.values().stream().filter(job -> job.state == RecompressJob.State.RUNNING).count();
+        sendJson(exchange, "{\"cache\": " + cache.toJson() + ", \"jobs\": " + jobs.size()
+                + ", \"runningJobs\": " + running + "}\n");
+    }
+
+    private Path resolve(Map<String, String> query) {
+        String path = query.get("path");
+        if (path == null) throw new IllegalArgumentException("Missing parameter: path");
+        return resolve(path);
+    }
+
+    private Path resolve(String path) {
+        Path resolved = root.resolve(path).normalize();
+        if (!resolved.startsWith(root)) throw new IllegalArgumentException("Path outside of " + root + ": " + path);
+        return resolved;
+    }
+
+    private static long longParam(Map<String, String> query, String name) {
+        String value = query.get(name);
+        if (value == null) throw new IllegalArgumentException("Missing parameter: " + name);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + name + "=" + value);
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null || raw.isEmpty()) return query;
+        for (String part : raw.split("&")) {
+            int eq = part.indexOf('=');
+            String key = eq < 0 ? part : part.substring(0, eq);
+            String value = eq < 0 ? "" : part.substring(eq + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static void sendJson(HttpExchange exchange, String json) throws IOException {
+        sendJson(exchange, 200, json);
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, status, json);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        send(exchange, status, text);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /** One recompression of an excerpt; the fields are written by the job thread and read by requests. */
+    private static final class RecompressJob {
+        enum State { QUEUED, RUNNING, DONE, FAILED }
+
+        final long id;
+        final Path path;
+        final long from;
+        final long to;
+        final int passes;
+        final Path output;
+        volatile State state = State.QUEUED;
+        volatile String error = "";
+        volatile long millis;
+
+        RecompressJob(long id, Path path, long from, long to, int passes, Path output) {
+            this.id = id;
+            this.path = path;
+            this.from = from;
+            this.to = to;
+            this.passes = passes;
+            this.output = output;
+        }
+
+        void run(GrammarCache cache) {
+            state = State.RUNNING;
+            long startTime = System.nanoTime();
+            try {
+                ExcerptView excerpt = Extractor.extractView(cache.get(path), from, to);
+                // Throws if the output is not written, so the job fails instead of ending done
+                Recompressor.recompressToFile(excerpt.asGrammar(), passes, 0, true, false, output);
+                state = State.DONE;
+            } catch (Exception e) {
+                error = e.toString();
+                state = State.FAILED;
+            } finally {
+                millis = (System.nanoTime() - startTime) / 1_000_000;
+            }
+        }
+
+        String toJson() {
+            return "{\"id\": " + id + ", \"path\": " + quote(path.toString()) + ", \"from\": " + from + ", \"to\": " + to
+                    + ", \"passes\": " + passes + ", \"output\": " + quote(output.toString())
+                    + ", \"state\": " + quote(state.name().toLowerCase(Locale.ROOT)) + ", \"millis\": " + millis
+                    + ", \"error\": " + quote(error) + "}";
+        }
+    }
+
+    /**
+     * Parsed grammars with their {@link Decompressor.RangeIndex}, keyed by path, modification
+     * time and size, so a changed file is parsed again. Least recently used grammars are evicted
+     * once the estimated heap of all of them exceeds the budget; the grammar just loaded always
+     * stays, even if it alone is larger. A grammar requested by several threads at once is parsed
+     * once, the others wait for it.
+     */
+    static final class GrammarCache {
+        private record Key(Path path, long modified, long size) {
+        }
+
+        private static final class Entry {
+            final FutureTask<Decompressor.RangeIndex> load;
+            long bytes; // estimated heap, 0 until loaded
+
+            Entry(FutureTask<Decompressor.RangeIndex> load) {
+                this.load = load;
+            }
+        }
+
+        private final long budget;
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long usedBytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        GrammarCache(long budget) {
+            this.budget = budget;
+        }
+
+        Parser.ParsedGrammar get(Path path) throws IOException {
+            return index(path).grammar;
+        }
+
+        /** The grammar with its flattened rules and sequence offsets, shared by all range queries on it. */
+        Decompressor.RangeIndex index(Path path) throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            Key key = new Key(path, attributes.lastModifiedTime().toMillis(), attributes.size());
+            Entry entry;
+            boolean load = false;
+            synchronized (this) {
+                entry = entries.get(key);
+                if (entry != null) {
+                    hits++;
+                } else {
+                    misses++;
+                    load = true;
+                    entry = new Entry(new FutureTask<>(() -> {
+                        // Metadata, flat rules and offsets are computed once here instead of per request
+                        return new Decompressor.RangeIndex(Parser.parseFile(path));
+                    }));
+                    // Older versions of the file are of no use any more
+                    entries.entrySet().removeIf(e -> {
+                        if (!e.getKey().path().equals(path)) return false;
+                        usedBytes -= e.getValue().bytes;
+                        return true;
+                    });
+                    entries.put(key, entry);
+                }
+            }
+            if (load) {
+                entry.load.run();
+                synchronized (this) {
+                    try {
+                        Decompressor.RangeIndex index = entry.load.get();
+                        // A newer version of the file may have replaced the entry meanwhile, or
+                        // evict() dropped it before it had a size; then it is not counted
+                        if (entries.get(key) == entry) {
+                            entry.bytes = Parser.estimatedHeapBytes(index.grammar) + index.estimatedHeapBytes();
+                            usedBytes += entry.bytes;
+                            evict(key);
+                        }
+                    } catch (ExecutionException | InterruptedException e) {
+                        entries.remove(key, entry); // let the next request try again
+                    }
+                }
+            }
+            try {
+                return entry.load.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + path, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException io) throw io;
+                if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+                throw new IOException("Loading " + path + " failed", e.getCause());
+            }
+        }
+
+        private void evict(Key keep) {
+            Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes > budget && it.hasNext()) {
+                Map.Entry<Key, Entry> eldest = it.next();
+                // Grammars still being parsed have no size yet and stay
+                if (eldest.getKey().equals(keep) || !eldest.getValue().load.isDone()) continue;
+                usedBytes -= eldest.getValue().bytes;
+                it.remove();
+                evictions++;
+            }
+        }
+
+        synchronized String toJson() {
+            return "{\"grammars\": " + entries.size() + ", \"usedBytes\": " + usedBytes + ", \"budget\": " + budget
+                    + ", \"hits\": " + hits + ", \"misses\": " + misses + ", \"evictions\": " + evictions + "}";
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Shape statistics of a grammar: depth, RHS lengths, vocc, rules per depth level, expansion
+ * lengths, alphabet size, unreachable rules and the estimated heap footprint.
+ *
+ * <p>The rules are flattened into int arrays and put in topological order once (Kahn's algorithm,
+ * as in {@link RuleMetadata}). vocc is pushed down that order from the sequence, and depth and
+ * expansion length are built up in reverse, so everything but the percentiles is linear in the
+ * grammar size. The grammar's own metadata is not used, so it is not computed either.
+ *
+ * <p>Histograms have power-of-two buckets: bucket 0 holds 0, bucket k holds [2^(k-1), 2^k).
+ * Lengths and vocc saturate at {@link Long#MAX_VALUE}.
+ */
+public final class GrammarStats {
+    public final int rules;
+    public final int sequenceLength;
+    public final long grammarSize;
+    public final long textLength;
+    public final int depth;
+    public final int alphabetSize;
+    public final int unreachableRules;
+    public final int rulesOnCycles;
+    public final int undefinedSymbols;
+    public final long estimatedHeapBytes;
+    public final long maxVocc;
+    /** Rules by RHS length, in power-of-two buckets. */
+    public final long[] rhsLengths;
+    /** Rules by vocc, in power-of-two buckets; bucket 0 are the unreachable rules. */
+    public final long[] voccs;
+    /** Rules by depth, the longest path to a terminal; index 1 are rules over terminals only. */
+    public final long[] rulesPerDepth;
+    /** Expansion lengths of the rules at the 50th, 90th and 99th percentile, and the longest. */
+    public final long expansionP50, expansionP90, expansionP99, expansionMax;
+
+    private GrammarStats(int rules, int sequenceLength, long grammarSize, long textLength, int depth, int alphabetSize,
+                         int unreachableRules, int rulesOnCycles, int undefinedSymbols, long estimatedHeapBytes,
+                         long maxVocc, long[] rhsLengths, long[] voccs, long[] rulesPerDepth, long[] expansion) {
+        this.rules = rules;
+        this.sequenceLength = sequenceLength;
+        this.grammarSize = grammarSize;
+        this.textLength = textLength;
+        this.depth = depth;
+        this.alphabetSize = alphabetSize;
+        this.unreachableRules = unreachableRules;
+        this.rulesOnCycles = rulesOnCycles;
+        this.undefinedSymbols = undefinedSymbols;
+        this.estimatedHeapBytes = estimatedHeapBytes;
+        this.maxVocc = maxVocc;
+        this.rhsLengths = rhsLengths;
+        this.voccs = voccs;
+        this.rulesPerDepth = rulesPerDepth;
+        this.expansionP50 = expansion[0];
+        this.expansionP90 = expansion[1];
+        this.expansionP99 = expansion[2];
+        this.expansionMax = expansion[3];
+    }
+
+    public static GrammarStats compute(Parser.ParsedGrammar grammar) {
+        MetricsRegistry.Span span = MetricsRegistry.start("stats");
+        Decompressor.FlatRules flat = new Decompressor.FlatRules(grammar.grammarRules());
+        int capacity = flat.defined.length;
+        int[] sequence = toIntArray(grammar.sequence());
+        int ruleCount = 0;
+        for (boolean d : flat.defined) if (d) ruleCount++;
+        int[] order = topologicalOrder(flat, ruleCount);
+
+        long[] vocc = new long[capacity];
+        boolean[] alphabet = new boolean[256];
+        pushVocc(flat, sequence, order, vocc, alphabet);
+        int[] depthOf = new int[capacity];
+        long[] lengthOf = new long[capacity];
+        buildUp(flat, order, depthOf, lengthOf);
+
+        int depth = 0;
+        long textLength = 0;
+        for (int symbol : sequence) {
+            if (symbol < 256) {
+                textLength = add(textLength, 1);
+            } else if (isRule(flat, symbol)) {
+                depth = Math.max(depth, depthOf[symbol - 256]);
+                textLength = add(textLength, lengthOf[symbol - 256]);
+            }
+        }
+
+        int maxDepth = 0;
+        for (int u : order) maxDepth = Math.max(maxDepth, depthOf[u]);
+        long[] rhsLengths = new long[33];
+        long[] voccs = new long[64];
+        long[] rulesPerDepth = new long[maxDepth + 1];
+        long[] lengths = new long[order.length];
+        int unreachable = 0;
+        long maxVocc = 0;
+        for (int n = 0; n < order.length; n++) {
+            int u = order[n];
+            rhsLengths[bucket(flat.starts[u + 1] - flat.starts[u])]++;
+            voccs[bucket(vocc[u])]++;
+            if (vocc[u] == 0) unreachable++;
+            maxVocc = Math.max(maxVocc, vocc[u]);
+            rulesPerDepth[depthOf[u]]++;
+            lengths[n] = lengthOf[u];
+        }
+        Arrays.sort(lengths);
+        long[] expansion = {percentile(lengths, 0.5), percentile(lengths, 0.9), percentile(lengths, 0.99),
+                lengths.length == 0 ? 0 : lengths[lengths.length - 1]};
+
+        int alphabetSize = 0;
+        for (boolean used : alphabet) if (used) alphabetSize++;
+
+        GrammarStats stats = new GrammarStats(ruleCount, sequence.length, flat.bodies.length + (long) sequence.length,
+                textLength, depth, alphabetSize, unreachable, ruleCount - order.length, countUndefined(flat, sequence),
+                Parser.estimatedHeapBytes(grammar), maxVocc, trim(rhsLengths), trim(voccs), rulesPerDepth, expansion);
+        span.end("computing grammar statistics", stats.grammarSize, ruleCount, 0);
+        return stats;
+    }
+
+    /**
+     * Kahn's algorithm: every rule comes before the rules it uses. Holds rule ids minus 256;
+     * rules on a cycle are left out.
+     */
+    private static int[] topologicalOrder(Decompressor.FlatRules flat, int ruleCount) {
+        int capacity = flat.defined.length;
+        int[] inDegree = new int[capacity];
+        for (int symbol : flat.bodies) {
+            if (isRule(flat, symbol)) inDegree[symbol - 256]++;
+        }
+        int[] order = new int[ruleCount];
+        int head = 0, tail = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (flat.defined[i] && inDegree[i] == 0) order[tail++] = i;
+        }
+        while (head < tail) {
+            int u = order[head++];
+            for (int k = flat.starts[u]; k < flat.starts[u + 1]; k++) {
+                int v = flat.bodies[k];
+                if (isRule(flat, v) && --inDegree[v - 256] == 0) order[tail++] = v - 256;
+            }
+        }
+        return tail == ruleCount ? order : Arrays.copyOf(order, tail);
+    }
+
+    /** vocc top-down from the sequence; also marks the terminals of the reachable rules. */
+    private static void pushVocc(Decompressor.FlatRules flat, int[] sequence, int[] order, long[] vocc, boolean[] alphabet) {
+        for (int symbol : sequence) {
+            if (symbol < 256) alphabet[symbol] = true;
+            else if (isRule(flat, symbol)) vocc[symbol - 256]++;
+        }
+        for (int u : order) {
+            if (vocc[u] == 0) continue;
+            for (int k = flat.starts[u]; k < flat.starts[u + 1]; k++) {
+                int v = flat.bodies[k];
+                if (v < 256) alphabet[v] = true;
+                else if (isRule(flat, v)) vocc[v - 256] = add(vocc[v - 256], vocc[u]);
+            }
+        }
+    }
+
+    /** Depth and expansion length bottom-up. Undefined symbols count as empty leaves. */
+    private static void buildUp(Decompressor.FlatRules flat, int[] order, int[] depthOf, long[] lengthOf) {
+        for (int n = order.length - 1; n >= 0; n--) {
+            int u = order[n];
+            int d = 0;
+            long length = 0;
+            for (int k = flat.starts[u]; k < flat.starts[u + 1]; k++) {
+                int v = flat.bodies[k];
+                if (v < 256) {
+                    length = add(length, 1);
+                } else if (isRule(flat, v)) {
+                    d = Math.max(d, depthOf[v - 256]);
+                    length = add(length, lengthOf[v - 256]);
+                }
+            }
+            depthOf[u] = d + 1;
+            lengthOf[u] = length;
+        }
+    }
+
+    private static int countUndefined(Decompressor.FlatRules flat, int[] sequence) {
+        int undefined = 0;
+        for (int symbol : flat.bodies) if (symbol >= 256 && !isRule(flat, symbol)) undefined++;
+        for (int symbol : sequence) if (symbol >= 256 && !isRule(flat, symbol)) undefined++;
+        return undefined;
+    }
+
+    private static boolean isRule(Decompressor.FlatRules flat, int symbol) {
+        return symbol >= 256 && symbol - 256 < flat.defined.length && flat.defined[symbol - 256];
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        if (list instanceof IntList ints) {
+            for (int i = 0; i < array.length; i++) array[i] = ints.getInt(i);
+        } else {
+            for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static long add(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static int bucket(long value) {
+        return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /** Label of a power-of-two bucket, e.g. "4-7". */
+    private static String bucketLabel(int bucket) {
+        if (bucket <= 1) return String.valueOf(bucket);
+        long from = 1L << (bucket - 1);
+        return from + "-" + (bucket == 63 ? Long.MAX_VALUE : (from << 1) - 1);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.max(1, Math.ceil(fraction * sorted.length));
+        return sorted[rank - 1];
+    }
+
+    // Drops empty buckets at the end
+    private static long[] trim(long[] histogram) {
+        int n = histogram.length;
+        while (n > 0 && histogram[n - 1] == 0) n--;
+        return Arrays.copyOf(histogram, n);
+    }
+
+    public String toSummary() {
+        StringBuilder out = new StringBuilder();
+        out.append("=== Grammar statistics ===\n");
+        out.append("Rules: ").append(rules).append(", sequence length: ").append(sequenceLength)
+                .append(", grammar size: ").append(grammarSize).append('\n');
+        out.append("Text length: ").append(textLength).append(", alphabet size: ").append(alphabetSize).append('\n');
+        out.append("Depth: ").append(depth).append('\n');
+        out.append("Unreachable rules: ").append(unreachableRules);
+        if (rulesOnCycles > 0) out.append(", rules on cycles (not counted below): ").append(rulesOnCycles);
+        if (undefinedSymbols > 0) out.append(", references to undefined rules: ").append(undefinedSymbols);
+        out.append('\n');
+        out.append("Estimated heap: ").append(estimatedHeapBytes / (1 << 20)).append(" MiB (")
+                .append(estimatedHeapBytes).append(" bytes)\n");
+        out.append("Expansion length: p50 ").append(expansionP50).append(", p90 ").append(expansionP90)
+                .append(", p99 ").append(expansionP99).append(", max ").append(expansionMax).append('\n');
+        out.append("Max vocc: ").append(maxVocc).append('\n');
+        appendHistogram(out, "RHS length", rhsLengths);
+        appendHistogram(out, "vocc", voccs);
+        if (rulesPerDepth.length <= 33) {
+            out.append("Rules per depth:\n");
+            for (int d = 1; d < rulesPerDepth.length; d++) {
+                if (rulesPerDepth[d] != 0) out.append(String.format("  %20d  %d%n", d, rulesPerDepth[d]));
+            }
+        } else {
+            // Deep grammars have thousands of levels; the JSON has all of them
+            long[] byBucket = new long[33];
+            for (int d = 1; d < rulesPerDepth.length; d++) byBucket[bucket(d)] += rulesPerDepth[d];
+            appendHistogram(out, "depth", trim(byBucket));
+        }
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, long[] histogram) {
+        out.append("Rules by ").append(name).append(":\n");
+        for (int b = 0; b < histogram.length; b++) {
+            if (histogram[b] != 0) out.append(String.format("  %20s  %d%n", bucketLabel(b), histogram[b]));
+        }
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"rules\": ").append(rules).append(",\n");
+        json.append("  \"sequenceLength\": ").append(sequenceLength).append(",\n");
+        json.append("  \"grammarSize\": ").append(grammarSize).append(",\n");
+        json.append("  \"textLength\": ").append(textLength).append(",\n");
+        json.append("  \"depth\": ").append(depth).append(",\n");
+        json.append("  \"alphabetSize\": ").append(alphabetSize).append(",\n");
+        json.append("  \"unreachableRules\": ").append(unreachableRules).append(",\n");
+        json.append("  \"rulesOnCycles\": ").append(rulesOnCycles).append(",\n");
+        json.append("  \"undefinedSymbols\": ").append(undefinedSymbols).append(",\n");
+        json.append("  \"estimatedHeapBytes\": ").append(estimatedHeapBytes).append(",\n");
+        json.append("  \"expansionLength\": {\"p50\": ").append(expansionP50).append(", \"p90\": ").append(expansionP90)
+                .append(", \"p99\": ").append(expansionP99).append(", \"max\": ").append(expansionMax).append("},\n");
+        json.append("  \"maxVocc\": ").append(maxVocc).append(",\n");
+        json.append("  \"rhsLengthHistogram\": ").append(histogramJson(rhsLengths)).append(",\n");
+        json.append("  \"voccHistogram\": ").append(histogramJson(voccs)).append(",\n");
+        json.append("  \"rulesPerDepth\": [");
+        for (int d = 1; d < rulesPerDepth.length; d++) json.append(d == 1 ? "" : ", ").append(rulesPerDepth[d]);
+        json.append("]\n}\n");
+        return json.toString();
+    }
+
+    // Non-empty buckets as {"from-to": count}
+    private static String histogramJson(long[] histogram) {
+        StringBuilder json = new StringBuilder("{");
+        boolean first = true;
+        for (int b = 0; b < histogram.length; b++) {
+            if (histogram[b] == 0) continue;
+            json.append(first ? "" : ", ").append('"').append(bucketLabel(b)).append("\": ").append(histogram[b]);
+            first = false;
+        }
+        return json.append('}').toString();
+    }
+
+    public void writeJson(Path file) throws IOException {
+        Files.writeString(file, toJson(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,181 @@
+package grammarextractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Writes grammars in the text or the binary format ({@link BinaryGrammarFormat}). Numbers are
+ * formatted straight into one reusable direct buffer that is drained into a channel whenever it
+ * fills up, so no Strings are built per rule or symbol and memory use does not grow with the
+ * grammar.
+ *
+ * The text writers take the separator that follows "R&lt;id&gt;": the Extractor writes
+ * {@code "R256:97,98"}, the Recompressor and {@link Parser#grammarToString} {@code "R256: 97,98"}.
+ */
+public class GrammarWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+
+    public GrammarWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public static GrammarWriter open(Path file) throws IOException {
+        return new GrammarWriter(FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+    }
+
+    public static void writeTextFile(Parser.ParsedGrammar grammar, Path file, String ruleSeparator) throws IOException {
+        try (GrammarWriter writer = open(file)) {
+            writer.writeText(grammar, ruleSeparator);
+        }
+    }
+
+    public static void writeBinaryFile(Parser.ParsedGrammar grammar, Path file) throws IOException {
+        try (GrammarWriter writer = open(file)) {
+            writer.writeBinary(grammar);
+        }
+    }
+
+    /** The grammar in the text format as a String, e.g. for printing. */
+    public static String toText(Parser.ParsedGrammar grammar, String ruleSeparator) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GrammarWriter writer = new GrammarWriter(Channels.newChannel(bytes))) {
+            writer.writeText(grammar, ruleSeparator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toString(StandardCharsets.US_ASCII);
+    }
+
+    /** Writes one "R&lt;id&gt;&lt;separator&gt;a,b,..." line per rule and the SEQ: line. */
+    public void writeText(Parser.ParsedGrammar grammar, String ruleSeparator) throws IOException {
+        for (Map.Entry<Integer, List<Integer>> entry : grammar.grammarRules().entrySet()) {
+            writeByte('R');
+            writeNumber(entry.getKey());
+            writeAscii(ruleSeparator);
+            writeSymbols(entry.getValue());
+            writeByte('\n');
+        }
+        writeAscii("SEQ:");
+        writeSymbols(grammar.sequence());
+        writeByte('\n');
+    }
+
+    /** Writes the grammar in the binary format, rules in ascending id order. */
+    public void writeBinary(Parser.ParsedGrammar grammar) throws IOException {
+        Map<Integer, List<Integer>> rules = grammar.grammarRules();
+        int[] ruleIds = new int[rules.size()];
+        int n = 0;
+        for (int ruleId : rules.keySet()) ruleIds[n++] = ruleId;
+        Arrays.sort(ruleIds);
+
+        for (byte b : BinaryGrammarFormat.MAGIC) writeByte(b);
+        writeByte(BinaryGrammarFormat.VERSION);
+        writeVarInt(ruleIds.length);
+        writeVarInt(grammar.sequence().size());
+
+        int previous = 255;
+        for (int ruleId : ruleIds) {
+            if (ruleId <= previous) throw new IOException("Invalid rule id " + ruleId);
+            writeVarInt(ruleId - previous - 1);
+            previous = ruleId;
+
+            List<Integer> rhs = rules.get(ruleId);
+            writeVarInt(rhs.size());
+            for (int k = 0; k < rhs.size(); k++) {
+                writeVarLong(BinaryGrammarFormat.symbolCode(ruleId, symbolAt(rhs, k)));
+            }
+        }
+
+        List<Integer> sequence = grammar.sequence();
+        for (int k = 0; k < sequence.size(); k++) writeVarInt(symbolAt(sequence, k));
+    }
+
+    public void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) writeByte(text.charAt(i));
+    }
+
+    public void writeByte(int b) throws IOException {
+        if (!buffer.hasRemaining()) flush();
+        buffer.put((byte) b);
+    }
+
+    /** Writes a number in decimal. */
+    public void writeNumber(long value) throws IOException {
+        if (buffer.remaining() < digits.length + 1) flush();
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                writeAscii("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, pos, digits.length - pos);
+    }
+
+    /** Writes an unsigned LEB128 varint. */
+    public void writeVarInt(int value) throws IOException {
+        if (buffer.remaining() < 5) flush();
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /** Writes an unsigned LEB128 varint of up to 64 bits. */
+    public void writeVarLong(long value) throws IOException {
+        if (buffer.remaining() < 10) flush();
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeSymbols(List<Integer> symbols) throws IOException {
+        for (int k = 0; k < symbols.size(); k++) {
+            if (k > 0) writeByte(',');
+            writeNumber(symbolAt(symbols, k));
+        }
+    }
+
+    private static int symbolAt(List<Integer> symbols, int index) {
+        return symbols instanceof IntList ints ? ints.getInt(index) : symbols.get(index);
+    }
+}
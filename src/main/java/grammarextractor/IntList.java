@@ -0,0 +1,109 @@
+package grammarextractor;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A growable list of ints backed by an int[]. It is a regular {@code List<Integer>}, so it can be
+ * used wherever the grammar code expects a rule body or sequence, but it stores no Integer objects.
+ * Code that knows it has an IntList can use {@link #getInt} and {@link #addInt} to avoid boxing.
+ */
+public final class IntList extends AbstractList<Integer> implements RandomAccess {
+    private int[] elements;
+    private int size;
+
+    public IntList() {
+        this(8);
+    }
+
+    public IntList(int initialCapacity) {
+        elements = new int[Math.max(1, initialCapacity)];
+    }
+
+    public int getInt(int index) {
+        if (index >= size) throw new IndexOutOfBoundsException("index=" + index + " size=" + size);
+        return elements[index];
+    }
+
+    public void addInt(int value) {
+        if (size == elements.length) grow(size + 1);
+        elements[size++] = value;
+    }
+
+    /** Appends all elements of another IntList. */
+    public void addInts(IntList other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.elements, 0, elements, size, other.size);
+        size += other.size;
+        modCount++;
+    }
+
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity > elements.length) grow(minCapacity);
+    }
+
+    public int[] toIntArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public Integer get(int index) {
+        return getInt(index);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Integer set(int index, Integer value) {
+        int old = getInt(index);
+        elements[index] = value;
+        return old;
+    }
+
+    @Override
+    public boolean add(Integer value) {
+        addInt(value);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, Integer value) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("index=" + index + " size=" + size);
+        if (size == elements.length) grow(size + 1);
+        System.arraycopy(elements, index, elements, index + 1, size - index);
+        elements[index] = value;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Integer remove(int index) {
+        int old = getInt(index);
+        System.arraycopy(elements, index + 1, elements, index, size - index - 1);
+        size--;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex) {
+        System.arraycopy(elements, toIndex, elements, fromIndex, size - toIndex);
+        size -= toIndex - fromIndex;
+        modCount++;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        modCount++;
+    }
+
+    private void grow(int minCapacity) {
+        elements = Arrays.copyOf(elements, Math.max(minCapacity, elements.length * 2));
+    }
+}
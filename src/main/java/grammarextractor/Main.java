@@ -7,51 +7,12 @@
     import java.io.*;
 
     public class Main {
-        public static void main(String[] args) throws IOException, InterruptedException {
+        public static void main(String[] args) throws IOException {
             System.out.println("Welcome to the Grammar Extractor & Recompressor CLI!");
             System.out.println("=============================");
             
 
             System.out.println("This CLI is used to extract and recompress grammars from a file.");
-            System.out.println("Initializing...");
-            // List of filenames to check and update permissions for
-            String[] filesToCheck = { "encoder_mac", "decoder_mac"};
-
-            // Get current working directory
-            String currentDir = System.getProperty("user.dir");
-            System.out.println("Checking in directory: " + currentDir);
-
-            for (String filename : filesToCheck) {
-                File file = new File(currentDir, filename);
-                if (file.exists()) {
-                    System.out.println("Found: " + filename);
-
-                    boolean readable = file.setReadable(true);
-                    boolean writable = file.setWritable(true);
-                    boolean executable = file.setExecutable(true);
-
-                    System.out.println("  Set readable:   " + readable);
-                    System.out.println("  Set writable:   " + writable);
-                    System.out.println("  Set executable: " + executable);
-
-                    // macOS Gatekeeper quarantine removal
-                    if (System.getProperty("os.name").toLowerCase().contains("mac")) {
-                        Process proc = new ProcessBuilder("xattr", "-d", "com.apple.quarantine", file.getAbsolutePath())
-                                .redirectErrorStream(true)
-                                .start();
-                        proc.waitFor();
-                        System.out.println("  Cleared macOS quarantine (if present)");
-                    }
-                } else {
-                    System.out.println("Missing: " + filename);
-                }
-            }
-
-            if (args.length == 0) {
-                // No arguments: run interactive menu
-                roundtrip();
-                return;
-            }
 
             // Simple CLI parsing
             List<String> argList = Arrays.asList(args);
@@ -60,6 +21,28 @@
                 return;
             }
 
+            if (argList.contains("-quiet")) MetricsRegistry.setEcho(false);
+            String metricsFile = getArgValue(argList, "-metrics");
+            if (metricsFile != null) {
+                // A hook, so that -serve and failed runs also leave their metrics behind
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        MetricsRegistry.writeJson(Paths.get(metricsFile));
+                    } catch (IOException e) {
+                        System.err.println("Could not write metrics to " + metricsFile + ": " + e.getMessage());
+                    }
+                }));
+            }
+
+            List<String> commandArgs = new ArrayList<>(argList);
+            commandArgs.removeAll(List.of("-quiet", "-meta", "-metrics"));
+            if (metricsFile != null) commandArgs.remove(metricsFile);
+            if (commandArgs.isEmpty()) {
+                // No command: run interactive menu; with -meta, its parses use the .meta sidecar
+                roundtrip(argList.contains("-meta"));
+                return;
+            }
+
             if (argList.contains("-c")) {
                 String input = getArgValue(argList, "-InputFile");
                 if (input == null) {
@@ -67,15 +50,7 @@
                     printHelp();
                     return;
                 }
-                ProcessBuilder builder1 = new ProcessBuilder("./encoder_mac", input);
-                builder1.inheritIO(); // Optional: should let the decoder print to console
-                Process process1 = builder1.start();
-                int exitCode1 = process1.waitFor();
-                if (exitCode1 == 0) {
-                    System.out.println("\nInput file translated successfully. The Resulting binary file is saved as:" + Path.of(input) + ".rp");
-                } else {
-                    System.err.println("\nEncoder failed with exit code " + exitCode1);
-                }
+                compressToRePairFile(Path.of(input));
                 return;
             }
 
@@ -87,28 +62,174 @@
                     printHelp();
                     return;
                 }
-                ProcessBuilder builder2 = new ProcessBuilder("./decoder_mac", input, output);
-                builder2.inheritIO(); // Optional: should let the decoder print to console
-                Process process2 = builder2.start();
-                int exitCode2 = process2.waitFor();
-                if (exitCode2 == 0) {
-                    System.out.println("\nBinary file translated successfully. The result is saved under input_translated.txt");
+                String fromStr = getArgValue(argList, "-from");
+                String toStr = getArgValue(argList, "-to");
+                String cacheStr = getArgValue(argList, "-cache");
+                System.out.println("\nReading the grammar from " + input);
+                Parser.ParsedGrammar parsedGrammar = Parser.parseFile(Paths.get(input));
+
+                ExpansionCache cache = cacheStr != null ? new ExpansionCache(parsedGrammar, Long.parseLong(cacheStr)) : null;
+                if (fromStr != null || toStr != null) {
+                    long from = fromStr != null ? Long.parseLong(fromStr) : 0;
+                    long to = toStr != null ? Long.parseLong(toStr) : Extractor.getUncompressedSize(parsedGrammar);
+                    Files.write(Paths.get(output), Decompressor.decompressRange(parsedGrammar, from, to, cache));
+                } else {
+                    Decompressor.decompressToFile(parsedGrammar, Paths.get(output), cache);
+                }
+                if (cache != null) System.out.println(cache);
+                System.out.println("\nDecompression successful. Resulting text file is saved as " + output);
+                return;
+            }
+
+            if (argList.contains("-toBinary") || argList.contains("-toText") || argList.contains("-toRp")
+                    || argList.contains("-toArchive")) {
+                String input = getArgValue(argList, "-InputFile");
+                String output = getArgValue(argList, "-OutputFile");
+                if (input == null || output == null) {
+                    System.err.println("Missing -InputFile or -OutputFile for grammar conversion.");
+                    printHelp();
+                    return;
+                }
+                // parseFile reads all formats
+                Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(input));
+                if (argList.contains("-toBinary")) {
+                    BinaryGrammarFormat.write(grammar, Paths.get(output));
+                } else if (argList.contains("-toRp")) {
+                    RePairFormat.write(grammar, Paths.get(output));
+                } else if (argList.contains("-toArchive")) {
+                    ArchiveFormat.Summary archive = ArchiveFormat.write(grammar, Paths.get(output));
+                    MetricsRegistry.print(String.format(
+                            "Archive: %d bytes for %d characters, %.4f bits per character (grammar size %d)",
+                            archive.bytes(), archive.textLength(), archive.bitsPerCharacter(), archive.grammarSize()));
                 } else {
-                    System.err.println("\nDecoder failed with exit code " + exitCode2);
+                    Extractor.writeGrammarToFile(grammar, output);
+                }
+                System.out.println("Grammar converted. Result saved as " + output);
+                return;
+            }
+
+            if (argList.contains("-stats")) {
+                String input = getArgValue(argList, "-InputFile");
+                if (input == null) {
+                    System.err.println("Missing -InputFile for -stats.");
+                    printHelp();
+                    return;
+                }
+                String output = getArgValue(argList, "-OutputFile");
+                Path json = Paths.get(output != null ? output : input + ".stats.json");
+                GrammarStats stats = GrammarStats.compute(Parser.parseFile(Paths.get(input)));
+                System.out.print(stats.toSummary());
+                stats.writeJson(json);
+                System.out.println("Statistics saved as " + json);
+                return;
+            }
+
+            if (argList.contains("-g")) {
+                String spec = getArgValue(argList, "-g");
+                String output = getArgValue(argList, "-OutputFile");
+                if (spec == null || output == null) {
+                    System.err.println("Missing <spec> or -OutputFile for -g (generate).");
+                    printHelp();
+                    return;
+                }
+                Parser.ParsedGrammar generated = GrammarGenerator.generate(spec);
+                Extractor.writeGrammarToFile(generated, output);
+                System.out.println("Generated " + spec + ": " + generated.grammarRules().size() + " rules, grammar size "
+                        + Parser.sizeOfGrammar(generated) + ", text length " + Extractor.getUncompressedSize(generated));
+                System.out.println("Grammar saved as " + output);
+                return;
+            }
+
+            if (argList.contains("-corpus")) {
+                String spec = getArgValue(argList, "-corpus");
+                String lengthStr = getArgValue(argList, "-length");
+                String output = getArgValue(argList, "-OutputFile");
+                String seedStr = getArgValue(argList, "-seed");
+                String threadsStr = getArgValue(argList, "-threads");
+                if (spec == null || lengthStr == null || output == null) {
+                    System.err.println("Missing <spec>, -length or -OutputFile for -corpus (generate text).");
+                    printHelp();
+                    return;
+                }
+                CorpusGenerator.generate(spec, CorpusGenerator.parseSize(lengthStr),
+                        seedStr != null ? Long.parseLong(seedStr) : CorpusGenerator.DEFAULT_SEED,
+                        threadsStr != null ? Integer.parseInt(threadsStr) : Runtime.getRuntime().availableProcessors(),
+                        Paths.get(output));
+                System.out.println("Text saved as " + output);
+                return;
+            }
+
+            if (argList.contains("-scaling")) {
+                String corpora = getArgValue(argList, "-corpora");
+                String sizes = getArgValue(argList, "-sizes");
+                String output = getArgValue(argList, "-OutputFile");
+                String passesStr = getArgValue(argList, "-passes");
+                String seedStr = getArgValue(argList, "-seed");
+                if (corpora == null || sizes == null || output == null) {
+                    System.err.println("Missing -corpora, -sizes or -OutputFile for -scaling.");
+                    printHelp();
+                    return;
                 }
-                System.out.println("\nParsing the grammar from input_translated.txt");
-                Parser.ParsedGrammar parsedGrammar = Parser.parseFile(Paths.get("input_translated.txt"));
-
-                String outputstring = Decompressor.decompress(parsedGrammar);
-                try (PrintWriter out = new PrintWriter(output)) {
-                    out.println(outputstring);
-                    System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
-                } catch (FileNotFoundException e) {
-                    throw new FileNotFoundException();
+                List<Long> sizeList = new ArrayList<>();
+                for (String size : sizes.split(",")) sizeList.add(CorpusGenerator.parseSize(size));
+                ScalingBenchmark.run(Arrays.asList(corpora.split(",")), sizeList,
+                        passesStr != null ? Integer.parseInt(passesStr) : 10,
+                        seedStr != null ? Long.parseLong(seedStr) : CorpusGenerator.DEFAULT_SEED,
+                        Paths.get(output));
+                return;
+            }
+
+            if (argList.contains("-scalingCompare")) {
+                int idx = argList.indexOf("-scalingCompare");
+                String tolerance = getArgValue(argList, "-tolerance");
+                if (idx + 2 >= argList.size()) {
+                    System.err.println("Missing report files for -scalingCompare.");
+                    printHelp();
+                    return;
                 }
+                ScalingBenchmark.compare(Paths.get(argList.get(idx + 1)), Paths.get(argList.get(idx + 2)),
+                        tolerance != null ? Double.parseDouble(tolerance) : 0.1);
                 return;
             }
 
+            if (argList.contains("-batch")) {
+                String manifest = getArgValue(argList, "-batch");
+                String jobsStr = getArgValue(argList, "-jobs");
+                String report = getArgValue(argList, "-report");
+                if (manifest == null) {
+                    System.err.println("Missing <manifest> for -batch.");
+                    printHelp();
+                    return;
+                }
+                List<BatchRunner.Result> results;
+                try {
+                    results = BatchRunner.run(BatchRunner.readManifest(Paths.get(manifest)),
+                            jobsStr != null ? Integer.parseInt(jobsStr) : Runtime.getRuntime().availableProcessors());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.err.println("Batch interrupted.");
+                    return;
+                }
+                BatchRunner.printReport(results);
+                if (report != null) {
+                    BatchRunner.writeReport(results, Paths.get(report));
+                    System.out.println("Report saved as " + report);
+                }
+                return;
+            }
+
+            if (argList.contains("-serve")) {
+                String portStr = getArgValue(argList, "-port");
+                String budgetStr = getArgValue(argList, "-cacheBudget");
+                String root = getArgValue(argList, "-root");
+                String jobThreadsStr = getArgValue(argList, "-jobThreads");
+                new GrammarServer(portStr != null ? Integer.parseInt(portStr) : 8080,
+                        budgetStr != null ? CorpusGenerator.parseSize(budgetStr) : Runtime.getRuntime().maxMemory() / 2,
+                        Paths.get(root != null ? root : "."),
+                        jobThreadsStr != null ? Integer.parseInt(jobThreadsStr) : 1).start();
+                return; // the server threads keep running
+            }
+
             if (argList.contains("-e")) {
                 String input = getArgValue(argList, "-InputFile");
                 String output = getArgValue(argList, "-OutputFile");
@@ -121,15 +242,19 @@
                     return;
                 }
 
-                int from = Integer.parseInt(fromStr);
-                int to = Integer.parseInt(toStr);
+                long from = Long.parseLong(fromStr);
+                long to = Long.parseLong(toStr);
 
                 System.out.println("Parsing the grammar...");
-                Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(input));
+                Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(input), argList.contains("-parallel"), argList.contains("-meta"));
                 System.out.println("Extracting excerpt [" + from + ", " + to + ")...");
-                Parser.ParsedGrammar excerpt = Extractor.extractExcerpt(grammar, from, to,false);
                 System.out.println("Writing excerpt grammar to: " + output);
-                Extractor.writeGrammarToFile(excerpt, output);
+                if (argList.contains("-slp")) {
+                    Extractor.extractView(grammar, from, to).writeToFile(output);
+                } else {
+                    Parser.ParsedGrammar excerpt = Extractor.extractExcerpt(grammar, from, to,false);
+                    Extractor.writeGrammarToFile(excerpt, output);
+                }
                 System.out.println("✅ Extraction completed successfully.");
                 return;
             }
@@ -152,12 +277,12 @@
 
 
                 System.out.println("Parsing the grammar...");
-                Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(input));
+                Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(input), argList.contains("-parallel"), argList.contains("-meta"));
 
-                Parser.ParsedGrammar excerpt = Extractor.extractExcerpt(grammar,Integer.parseInt(from), Integer.parseInt(to),false);
+                ExcerptView excerpt = Extractor.extractView(grammar,Long.parseLong(from), Long.parseLong(to));
                 System.out.println("Excerpt extraction successful.");
                 System.out.println("Recompressing grammar...");
-                Recompressor.recompressNTimes(excerpt, Integer.parseInt(passesStr),Integer.parseInt(verbosity),true,false,output);
+                Recompressor.recompressNTimes(excerpt.asGrammar(), Integer.parseInt(passesStr),Integer.parseInt(verbosity),true,false,output);
                 System.out.println("Recompression successful. Resulting text file is saved as"+output);
 
                 return;
@@ -179,21 +304,55 @@
         === Grammar Extractor & Recompressor CLI ===
         Usage:
           -h                            Show help
-          -c -InputFile <file> -OutputFile <file>     Compress file
+          -c -InputFile <file>          Compress file with RePair into <file>.rp
           -d -InputFile <file> -OutputFile <file>     Decompress file
-          -e -from <int> -to <int> -InputFile <file> -OutputFile <file>  Extract excerpt
-          -r -from <int> -to <int > -passes <int> -Input <file> -Output <file> Extract and Recompress file
+             [-from <long>] [-to <long>] Decompress only the text range [from, to)
+             [-cache <bytes>]           Copy frequent rule expansions from a cache of this size
+          -g <spec> -OutputFile <file>  Generate a grammar, e.g. fibonacci:40, thue-morse:30, run:50,
+                                        left-chain:1000, right-chain:1000, balanced:100000, random:100000:40
+          -corpus <spec> -length <bytes> -OutputFile <file> [-seed <long>] [-threads <int>]
+                                        Generate a text; spec is uniform, zipf[:words[:exponent]],
+                                        markov:k:<sample file> or versioned[:docSize[:mutationRate]];
+                                        the length takes K, M and G suffixes
+          -scaling -corpora <spec,...> -sizes <bytes,...> -OutputFile <report> [-passes <int>] [-seed <long>]
+                                        Recompress texts of growing size (corpus specs as for -corpus, or
+                                        file:<path> for prefixes of a file); writes <report>.csv and .json
+          -scalingCompare <old.csv> <new.csv> [-tolerance <double>]
+                                        Flag phases whose growth exponent increased by more than the tolerance
+          -batch <manifest> [-jobs <int>] [-report <file.csv>]
+                                        Run the extract, recompress, decompress and compress jobs of a
+                                        manifest, parsing each grammar once; see BatchRunner for the format
+          -serve [-port <int>] [-cacheBudget <bytes>] [-root <dir>] [-jobThreads <int>]
+                                        Answer extract, substring, decompress-range, metadata and
+                                        recompress requests over HTTP on localhost; see GrammarServer
+          -e -from <long> -to <long> -InputFile <file> -OutputFile <file>  Extract excerpt
+             [-slp]                     Extract as a single-root SLP with new boundary rules
+          -r -from <long> -to <long> -passes <int> -Input <file> -Output <file> Extract and Recompress file
+          -parallel                     With -e or -r: parse the input grammar on all cores
+          -meta                         With -e or -r: reuse metadata from <file>.meta (written if missing or stale);
+                                        alone: the same for the grammars of menu options 6, 11, 12 and 17
+          -toBinary -InputFile <file> -OutputFile <file>  Convert a text grammar to the binary format
+          -toText -InputFile <file> -OutputFile <file>    Convert any other grammar format to the text format
+          -toRp -InputFile <file> -OutputFile <file>      Convert a grammar to the RePair .rp format
+          -toArchive -InputFile <file> -OutputFile <file> Store a grammar in the entropy-coded archive format
+          -stats -InputFile <file> [-OutputFile <file.json>]
+                                        Print depth, RHS length and vocc histograms, rules per depth, expansion
+                                        length percentiles, alphabet size, unreachable rules and estimated heap;
+                                        the JSON goes to the output file, by default <file>.stats.json
+          -quiet                        With any command or the menu: don't print the "Time required for" lines
+          -metrics <file.json>          With any command or the menu: write phase counts and latency percentiles on exit;
+                                        phases are also JFR events (grammarextractor.Phase) in a recording
         """);
         }
 
-        private static void roundtrip() throws IOException, InterruptedException {
+        private static void roundtrip(boolean useMetaSidecar) throws IOException {
             Scanner scanner = new Scanner(System.in);
             do {
                 System.out.println("\nWhich mode would you like to use?\n");
                 System.out.println("1.  Compress - Serp");
-                System.out.println("2.  Compress (Gonzales) - not implemented");
+                System.out.println("2.  Compress into a human-readable grammar");
                 System.out.println("3.  Decompress - Serp");
-                System.out.println("4.  Decompress (Gonzales) - not implemented");
+                System.out.println("4.  Decompress any grammar file (text, binary or .rp)");
                 System.out.println("5.  Compression/Decompression Roundtrip (random or file)");
                 System.out.println("6.  Extract excerpt");
                 System.out.println("7.  Create human-readable grammar from .rp");
@@ -221,48 +380,31 @@
                     case 1:
                         System.out.println("\nPlease enter the input file you would like to compress:");
                         Path fileToCompress = Paths.get(scanner.nextLine().trim());
-                        ProcessBuilder builder1 = new ProcessBuilder("./encoder_mac", fileToCompress.toString());
-                        builder1.inheritIO(); // Optional: should let the decoder print to console
-                        Process process1 = builder1.start();
-                        int exitCode1 = process1.waitFor();
-                        if (exitCode1 == 0) {
-                            System.out.println("\nInput file translated successfully. The Resulting binary file is saved as:" + fileToCompress + ".rp");
-                        } else {
-                            System.err.println("\nEncoder failed with exit code " + exitCode1);
-                        }
-                        ProcessBuilder builder19 = new ProcessBuilder("./decoder_mac", fileToCompress.toString(), "input_translated.txt");
-                        builder19.inheritIO(); // Optional: should let the decoder print to console
-                        Process process2 = builder19.start();
-                        int exitCode2 = process2.waitFor();
-                        if (exitCode2 == 0) {
-                            System.out.println("\nBinary file translated successfully. The result is saved under input_translated.txt");
-                        } else {
-                            System.err.println("\nDecoder failed with exit code " + exitCode2);
-                        }
+                        compressToRePairFile(fileToCompress);
+                        translateRePairFile(Paths.get(fileToCompress + ".rp"), "input_translated.txt");
+                        break;
+
+                    case 2:
+                        System.out.println("\nPlease enter the input file you would like to compress:");
+                        Path fileToCompress2 = Paths.get(scanner.nextLine().trim());
+                        Extractor.writeGrammarToFile(RePairCompressor.compressFile(fileToCompress2), "input_translated.txt");
+                        System.out.println("\nCompression successful. The grammar is saved under input_translated.txt");
                         break;
 
                     case 3:
                         System.out.println("\nPlease enter the compressed input file you would like to decompress (File name ends with .rp):");
                         Path fileToTranslate = Paths.get(scanner.nextLine());
-                        ProcessBuilder builder2 = new ProcessBuilder("./decoder_mac", fileToTranslate.toString(), "input_translated.txt");
-                        builder2.inheritIO(); // Optional: should let the decoder print to console
-                        Process process19 = builder2.start();
-                        int exitCode19 = process19.waitFor();
-                        if (exitCode19 == 0) {
-                            System.out.println("\nBinary file translated successfully. The result is saved under input_translated.txt");
-                        } else {
-                            System.err.println("\nDecoder failed with exit code " + exitCode19);
-                        }
-                        System.out.println("\nParsing the grammar from input_translated.txt");
-                        Parser.ParsedGrammar parsedGrammar = Parser.parseFile(Paths.get("input_translated.txt"));
-
-                        String output = Decompressor.decompress(parsedGrammar);
-                        try (PrintWriter out = new PrintWriter("output.txt")) {
-                            out.println(output);
-                            System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
-                        } catch (FileNotFoundException e) {
-                            throw new FileNotFoundException();
-                        }
+                        System.out.println("\nReading the grammar from " + fileToTranslate);
+                        Parser.ParsedGrammar parsedGrammar = RePairFormat.read(fileToTranslate);
+
+                        Decompressor.decompressToFile(parsedGrammar, Paths.get("output.txt"));
+                        System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
+                        break;
+                    case 4:
+                        System.out.println("\nPlease enter the grammar file you would like to decompress:");
+                        Path grammarToDecompress = Paths.get(scanner.nextLine().trim());
+                        Decompressor.decompressToFile(Parser.parseFile(grammarToDecompress), Paths.get("output.txt"));
+                        System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
                         break;
                     case 5:
                         System.out.println("\nRoundtrip can either be used with a randomly generated string or an input file of your choice");
@@ -283,36 +425,14 @@
                         } else {
                             System.out.println("\nInvalid choice");
                         }
-                        ProcessBuilder builder3 = new ProcessBuilder("./encoder_mac", fileToTest.toString());
-                        builder3.inheritIO(); // Optional: should let the decoder print to console
-                        Process process3 = builder3.start();
-                        int exitCode3 = process3.waitFor();
-                        if (exitCode3 == 0) {
-                            System.out.println("\nInput file translated successfully. The Resulting binary file is saved as:" + fileToTest + ".rp");
-                        } else {
-                            System.err.println("\nEncoder failed with exit code " + exitCode3);
-                        }
+                        compressToRePairFile(fileToTest);
 
                         Path fileToTranslate2 = Paths.get(fileToTest + ".rp");
-                        ProcessBuilder builder4 = new ProcessBuilder("./decoder_mac", fileToTranslate2.toString(), "test_translated.txt");
-                        builder4.inheritIO(); // Optional: should let the decoder print to console
-                        Process process4 = builder4.start();
-                        int exitCode4 = process4.waitFor();
-                        if (exitCode4 == 0) {
-                            System.out.println("\nBinary file translated successfully. The result is saved under test_translated.txt");
-                        } else {
-                            System.err.println("\nDecoder failed with exit code " + exitCode4);
-                        }
-                        System.out.println("\nParsing the grammar from test_translated.txt");
-                        Parser.ParsedGrammar parsedGrammar2 = Parser.parseFile(Paths.get("test_translated.txt"));
-
-                        String output2 = Decompressor.decompress(parsedGrammar2);
-                        try (PrintWriter out = new PrintWriter("test_output.txt")) {
-                            out.println(output2);
-                            System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
-                        } catch (FileNotFoundException e) {
-                            throw new FileNotFoundException();
-                        }
+                        System.out.println("\nReading the grammar from " + fileToTranslate2);
+                        Parser.ParsedGrammar parsedGrammar2 = RePairFormat.read(fileToTranslate2);
+
+                        Decompressor.decompressToFile(parsedGrammar2, Paths.get("test_output.txt"));
+                        System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
                         if (areFilesEqual(fileToTest, Paths.get("test_output.txt"))) {
                             System.out.println("\nTest successful. Input and output are identical");
                         } else {
@@ -323,22 +443,17 @@
                         System.out.println("Enter the file name of the compressed grammar:");
                         String compressedGrammarFileName = scanner.nextLine().trim();
                         System.out.println("Enter the start pos for the grammar excerpt:");
-                        int from = Integer.parseInt(scanner.nextLine().trim());
+                        long from = Long.parseLong(scanner.nextLine().trim());
                         System.out.println("Enter the end pos for the grammar excerpt:");
-                        int to = Integer.parseInt(scanner.nextLine().trim());
+                        long to = Long.parseLong(scanner.nextLine().trim());
 
                         System.out.println("Parsing the grammar...");
-                        Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(compressedGrammarFileName));
+                        Parser.ParsedGrammar grammar = Parser.parseFile(Paths.get(compressedGrammarFileName), false, useMetaSidecar);
 
                         Parser.ParsedGrammar excerpt = Extractor.extractExcerpt(grammar, from, to,false);
                         Extractor.writeGrammarToFile(excerpt, "extracted_grammar.txt");
-                        String output6 = Decompressor.decompress(excerpt);
-                        try (PrintWriter out = new PrintWriter("excerpt_output.txt")) {
-                            out.println(output6);
-                            System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
-                        } catch (FileNotFoundException e) {
-                            throw new FileNotFoundException();
-                        }
+                        Decompressor.decompressToFile(excerpt, Paths.get("excerpt_output.txt"));
+                        System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
 
                         //For debug purposes. The whole rule does not need to get dumped in the console in the final version
 
@@ -349,25 +464,9 @@
                     case 7:
                         System.out.println("\nPlease enter the input file you would like to compress:");
                         Path fileToCompress3 = Paths.get(scanner.nextLine().trim());
-                        ProcessBuilder builder5 = new ProcessBuilder("./encoder_mac", fileToCompress3.toString());
-                        builder5.inheritIO(); // Optional: should let the decoder print to console
-                        Process process5 = builder5.start();
-                        int exitCode5 = process5.waitFor();
-                        if (exitCode5 == 0) {
-                            System.out.println("\nInput file translated successfully. The Resulting binary file is saved as:" + fileToCompress3 + ".rp");
-                        } else {
-                            System.err.println("\nEncoder failed with exit code " + exitCode5);
-                        }
+                        compressToRePairFile(fileToCompress3);
                         Path fileToTranslate4 = Paths.get(fileToCompress3 + ".rp");
-                        ProcessBuilder builder6 = new ProcessBuilder("./decoder_mac", fileToTranslate4.toString(), "input_translated.txt");
-                        builder6.inheritIO(); // Optional: should let the decoder print to console
-                        Process process6 = builder6.start();
-                        int exitCode6 = process6.waitFor();
-                        if (exitCode6 == 0) {
-                            System.out.println("\nBinary file translated successfully. The result is saved under input_translated.txt");
-                        } else {
-                            System.err.println("\nDecoder failed with exit code " + exitCode6);
-                        }
+                        translateRePairFile(fileToTranslate4, "input_translated.txt");
                         break;
                     case 8:
                         System.out.println("\nPlease enter the human readable grammar input file you would like to decompress:");
@@ -375,13 +474,8 @@
                         System.out.println("\nParsing the grammar from input_translated.txt");
                         Parser.ParsedGrammar parsedGrammar3 = Parser.parseFile(fileToCompress5);
 
-                        String output3 = Decompressor.decompress(parsedGrammar3);
-                        try (PrintWriter out = new PrintWriter("output_from_translated.txt")) {
-                            out.println(output3);
-                            System.out.println("\nDecompression successful. Resulting text file is saved as output_from_translated");
-                        } catch (FileNotFoundException e) {
-                            throw new FileNotFoundException();
-                        }
+                        Decompressor.decompressToFile(parsedGrammar3, Paths.get("output_from_translated.txt"));
+                        System.out.println("\nDecompression successful. Resulting text file is saved as output_from_translated");
                         break;
 
                     case 11:
@@ -391,7 +485,7 @@
                         try {
                             // Step 1: Parse the grammar (automatically computes metadata)
                             System.out.println("\nParsing grammar and computing metadata...");
-                            Parser.ParsedGrammar parsed = Parser.parseFile(Path.of(grammarFile));
+                            Parser.ParsedGrammar parsed = Parser.parseFile(Path.of(grammarFile), false, useMetaSidecar);
 
                             // Step 2: Print grammar rules
                             System.out.println("\n=== Grammar Rules ===");
@@ -399,9 +493,8 @@
 
                             // Step 3: Print metadata for each rule
                             System.out.println("\n=== Rule Metadata ===");
-                            for (Map.Entry<Integer, RuleMetadata> entry : parsed.metadata().entrySet()) {
-                                int ruleId = entry.getKey();
-                                RuleMetadata meta = entry.getValue();
+                            for (int ruleId : parsed.metadata().ruleIds()) {
+                                RuleMetadata meta = parsed.metadata().get(ruleId);
                                 System.out.printf(
                                         "R%d: vocc=%d, length=%d, leftmost=%s, rightmost=%s, singleBlock=%s, leftRun=%d, rightRun=%d%n",
                                         ruleId,
@@ -430,7 +523,7 @@
                         try {
                             // Step 1: Parse grammar and compute metadata
                             System.out.println("\nParsing grammar and computing metadata...");
-                            Parser.ParsedGrammar parsed = Parser.parseFile(Path.of(grammarFile3));
+                            Parser.ParsedGrammar parsed = Parser.parseFile(Path.of(grammarFile3), false, useMetaSidecar);
 
                             // Wrap top-level sequence with sentinels and reduce to a root rule
                             Recompressor.InitializedGrammar init = Recompressor.initializeWithSentinelsAndRootRule(parsed);
@@ -438,7 +531,7 @@
                             Set<Integer> artificial = init.artificialTerminals(); // Get from initialization
 
                             // Recompute metadata for the initialized grammar
-                            Map<Integer, RuleMetadata> initializedMetadata = RuleMetadata.computeAll(initialized, artificial);
+                            MetadataTable initializedMetadata = RuleMetadata.computeAll(initialized, artificial);
                             initialized = new Parser.ParsedGrammar(
                                     initialized.grammarRules(),
                                     initialized.sequence(),
@@ -451,9 +544,8 @@
 
                             // Step 3: Print metadata (for original parsed grammar)
                             System.out.println("\n=== Rule Metadata ===");
-                            for (Map.Entry<Integer, RuleMetadata> entry : parsed.metadata().entrySet()) {
-                                int ruleId = entry.getKey();
-                                RuleMetadata meta = entry.getValue();
+                            for (int ruleId : parsed.metadata().ruleIds()) {
+                                RuleMetadata meta = parsed.metadata().get(ruleId);
                                 System.out.printf(
                                         "R%d: vocc=%d, length=%d, leftmost=%s, rightmost=%s, singleBlock=%s%n",
                                         ruleId,
@@ -466,13 +558,13 @@
                             }
 
                             // Step 4: Compute bigram frequencies using new method
-                            Map<Pair<Integer, Integer>, Integer> freqs = Recompressor.computeBigramFrequencies(initialized, artificial,false,null);
+                            Map<Pair<Integer, Integer>, Long> freqs = Recompressor.computeBigramFrequencies(initialized, artificial,false,null);
 
                             // Step 5: Print frequencies
                             System.out.println("\n=== Bigram Frequencies ===");
-                            for (Map.Entry<Pair<Integer, Integer>, Integer> entry : freqs.entrySet()) {
+                            for (Map.Entry<Pair<Integer, Integer>, Long> entry : freqs.entrySet()) {
                                 Pair<Integer, Integer> bigram = entry.getKey();
-                                int freq = entry.getValue();
+                                long freq = entry.getValue();
 
                                 String left = formatSymbol(bigram.first);
                                 String right = formatSymbol(bigram.second);
@@ -497,9 +589,9 @@
                         Parser.ParsedGrammar initialized = init.grammar();
                         Set<Integer> artificial = init.artificialTerminals(); // Gets the set from initialization
 
-                        long tTotalStart = System.nanoTime();
+                        MetricsRegistry.Span span = MetricsRegistry.start("frequencies");
                         //  Step 2: Compute metadata with artificial terminals
-                        Map<Integer, RuleMetadata> newMetadata = RuleMetadata.computeAll(initialized, artificial);
+                        MetadataTable newMetadata = RuleMetadata.computeAll(initialized, artificial);
                         Parser.ParsedGrammar parsed = new Parser.ParsedGrammar(
                                 initialized.grammarRules(), initialized.sequence(), newMetadata);
 
@@ -507,14 +599,14 @@
 
 
                         //  Step 4: Compute compressed-space frequency map (new logic)
-                        Map<Pair<Integer, Integer>, Integer> advancedFreqs =
+                        Map<Pair<Integer, Integer>, Long> advancedFreqs =
                                 Recompressor.computeBigramFrequencies(parsed, artificial,false,null);
-                        long tTotalEnd = System.nanoTime();
+                        long advancedNanos = span.end(null, parsed, 0);
 
-                        System.out.println("Time for advanced frequency computation: " + (tTotalEnd - tTotalStart) / 1_000_000 + "ms");
+                        MetricsRegistry.print("Time for advanced frequency computation: " + advancedNanos / 1_000_000 + "ms");
 
                         //  Step 5: Compute naive decompression-based frequency map
-                        Map<Pair<Integer, Integer>, Integer> naiveFreqs = computeFreqsFromDecompressed(parsed,false,false);
+                        Map<Pair<Integer, Integer>, Long> naiveFreqs = computeFreqsFromDecompressed(parsed, artificial, false, false);
 
                         //  Step 6: Compare all bigrams
                         Set<Pair<Integer, Integer>> allBigrams = new HashSet<>();
@@ -524,8 +616,8 @@
                         boolean mismatchFound = false;
 
                         for (Pair<Integer, Integer> bigram : allBigrams) {
-                            int advCount = advancedFreqs.getOrDefault(bigram, 0);
-                            int naiveCount = naiveFreqs.getOrDefault(bigram, 0);
+                            long advCount = advancedFreqs.getOrDefault(bigram, 0L);
+                            long naiveCount = naiveFreqs.getOrDefault(bigram, 0L);
                             if (advCount != naiveCount) {
                                 mismatchFound = true;
                                 String left = formatSymbol(bigram.first);
@@ -586,7 +678,7 @@
 
 
                         //  Step 5: Compute naive decompression-based frequency map
-                        Map<Pair<Integer, Integer>, Integer> naiveFreqs = computeFreqsFromDecompressed(original,false,true);
+                        Map<Pair<Integer, Integer>, Long> naiveFreqs = computeFreqsFromDecompressed(original,false,true);
 
 
                         System.out.println("=== Naive Frequency Roundtrip Results ===");
@@ -597,7 +689,7 @@
                     case 16:
                         Path grammarFile16 = Path.of("Test_from_paper.txt");
                         Parser.ParsedGrammar original16 = Parser.parseFile(grammarFile16);
-                        Map<Integer, RuleMetadata> metadata = RuleMetadata.computeAll(original16, new HashSet<>());
+                        MetadataTable metadata = RuleMetadata.computeAll(original16, new HashSet<>());
                         int ruleId = 257;
                         Parser.printGrammar(original16);
                         System.out.println("=== Rule Metadata ===");
@@ -618,16 +710,16 @@
                         System.out.println("Enter the file name of the compressed grammar:");
                         String compressedGrammarFileName2 = scanner.nextLine().trim();
                         System.out.println("Enter the start pos for the grammar excerpt:");
-                        int from2 = Integer.parseInt(scanner.nextLine().trim());
+                        long from2 = Long.parseLong(scanner.nextLine().trim());
                         System.out.println("Enter the end pos for the grammar excerpt:");
-                        int to2 = Integer.parseInt(scanner.nextLine().trim());
+                        long to2 = Long.parseLong(scanner.nextLine().trim());
 
                         System.out.println("Parsing the grammar...");
-                        Parser.ParsedGrammar grammar2 = Parser.parseFile(Paths.get(compressedGrammarFileName2));
+                        Parser.ParsedGrammar grammar2 = Parser.parseFile(Paths.get(compressedGrammarFileName2), false, useMetaSidecar);
 
-                        Parser.ParsedGrammar excerpt2 = Extractor.extractExcerpt(grammar2, from2, to2,false);
+                        ExcerptView excerpt2 = Extractor.extractView(grammar2, from2, to2);
 
-                        Recompressor.recompressNTimes(excerpt2, 0,2,true,false,"output.txt");
+                        Recompressor.recompressNTimes(excerpt2.asGrammar(), 0,2,true,false,"output.txt");
 
 
                         //For debug purposes. The whole rule does not need to get dumped in the console in the final version
@@ -644,7 +736,7 @@
                         Parser.ParsedGrammar grammar18 = Parser.parseFile(Paths.get(compressedGrammarFileName18));
 
                         // Step 2: Compute metadata
-                        Map<Integer, RuleMetadata> metadata2 = RuleMetadata.computeAll(grammar18, new HashSet<>());
+                        MetadataTable metadata2 = RuleMetadata.computeAll(grammar18, new HashSet<>());
 
                         // Step 3: Decompress BEFORE
                         String before = Decompressor.decompress(grammar18);
@@ -659,7 +751,7 @@
 
                         // Build combined grammar again
                         Parser.ParsedGrammar afterGrammar = new Parser.ParsedGrammar(rules, sequence,
-                                RuleMetadata.computeAll(new Parser.ParsedGrammar(rules, sequence, Collections.emptyMap()), new HashSet<>()));
+                                RuleMetadata.computeAll(new Parser.ParsedGrammar(rules, sequence, MetadataTable.EMPTY), new HashSet<>()));
 
                         // Step 5: Decompress AFTER
                         String after = Decompressor.decompress(afterGrammar);
@@ -690,10 +782,10 @@
 
                             // --- Parsing (read file) ---
                             long tParseStart = System.nanoTime();
-                            String content = new String(Files.readAllBytes(inputPath), java.nio.charset.StandardCharsets.UTF_8);
+                            byte[] content = Files.readAllBytes(inputPath);
                             long tParseEnd = System.nanoTime();
 
-                            int len = content.length();
+                            int len = content.length;
                             if (from3 < 0 || to3 < from3 || to3 > len) {
                                 System.err.printf(
                                         "\nInvalid range: from=%d, to=%d. Valid range is [0, %d], and from <= to.%n",
@@ -702,15 +794,15 @@
                                 break;
                             }
 
-                            // --- Extraction (substring) ---
+                            // --- Extraction (byte range) ---
                             long tExtractStart = System.nanoTime();
-                            String slice = content.substring(from3, to3);
+                            byte[] slice = Arrays.copyOfRange(content, from3, to3);
                             long tExtractEnd = System.nanoTime();
 
                             // Save output next to the input file
                             String baseName = inputPath.getFileName().toString();
                             Path outPath = inputPath.resolveSibling(baseName + ".slice_" + from3 + "_" + to3 + ").txt");
-                            Files.write(outPath, slice.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                            Files.write(outPath, slice);
 
                             long tTotalEnd = System.nanoTime();
 
@@ -718,9 +810,9 @@
                             double extractMs = (tExtractEnd - tExtractStart) / 1_000_000.0;
                             double totalMs   = (tTotalEnd   - tTotalStart)   / 1_000_000.0;
 
-                            System.out.printf("%nParsing time:   %.3f ms%n", parseMs);
-                            System.out.printf("Extraction time: %.3f ms%n", extractMs);
-                            System.out.printf("Total time:      %.3f ms%n", totalMs);
+                            MetricsRegistry.print(String.format("%nParsing time:   %.3f ms", parseMs));
+                            MetricsRegistry.print(String.format("Extraction time: %.3f ms", extractMs));
+                            MetricsRegistry.print(String.format("Total time:      %.3f ms", totalMs));
 
                             System.out.println("\nExtraction successful.");
                             System.out.println("Output saved as: " + outPath.toAbsolutePath());
@@ -743,13 +835,9 @@
                         System.out.println("\nParsing the grammar");
                         Parser.ParsedGrammar parsedGrammar20 = Parser.parseFile(humanReadableIn);
 
-                        String output20 = Decompressor.decompress(parsedGrammar20);
-                        try (PrintWriter out = new PrintWriter("output.txt", java.nio.charset.StandardCharsets.UTF_8)) {
-                            out.println(output20);
-                            System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
-                        } catch (FileNotFoundException e) {
-                            throw e; // preserve original
-                        }
+                        byte[] output20 = Decompressor.decompressToBytes(parsedGrammar20);
+                        Files.write(Paths.get("output.txt"), output20);
+                        System.out.println("\nDecompression successful. Resulting text file is saved as output.txt");
 
                         // 2) Ask for slice range
                         Path inputPath = Paths.get("input_translated.txt").toAbsolutePath();
@@ -764,7 +852,7 @@
                         System.out.println("Enter end position (exclusive):");
                         int to3 = Integer.parseInt(scanner.nextLine().trim());
 
-                        int len = output20.length();
+                        int len = output20.length;
                         if (from3 < 0 || to3 < from3 || to3 > len) {
                             System.err.printf(
                                     "\nInvalid range: from=%d, to=%d. Valid range is [0, %d], and from <= to.%n",
@@ -777,35 +865,19 @@
 
                         // 3) Extract and write slice
                         long tExtractStart = System.nanoTime();
-                        String slice = output20.substring(from3, to3);
+                        byte[] slice = Arrays.copyOfRange(output20, from3, to3);
                         long tExtractEnd = System.nanoTime();
 
                         Path outPath = inputPath.resolveSibling(stem + ".slice_" + from3 + "_" + to3 + ".txt");
-                        Files.write(outPath, slice.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-
-                        // 4) Encode the slice -> expect encoder to create outPath + ".rp"
-                        ProcessBuilder builder21 = new ProcessBuilder("./encoder_mac", outPath.toString());
-                        builder21.inheritIO();
-                        Process process21 = builder21.start();
-                        int exitCode21 = process21.waitFor();
-                        if (exitCode21 != 0) {
-                            System.err.println("\nEncoder failed with exit code " + exitCode21);
-                            break;
-                        }
+                        Files.write(outPath, slice);
 
-                        Path encodedPath = outPath.resolveSibling(outPath.getFileName().toString() + ".rp");
-                        System.out.println("\nSlice encoded successfully. Assuming encoder output: " + encodedPath);
+                        // 4) Encode the slice to outPath + ".rp"
+                        Path encodedPath = compressToRePairFile(outPath);
+                        System.out.println("\nSlice encoded successfully: " + encodedPath);
 
                         // 5) Decode the encoded slice to verify roundtrip
                         Path decodedSlicePath = outPath.resolveSibling(stem + ".slice_" + from3 + "_" + to3 + ".decoded.txt");
-                        ProcessBuilder builder22 = new ProcessBuilder("./decoder_mac", encodedPath.toString(), decodedSlicePath.toString());
-                        builder22.inheritIO();
-                        Process process22 = builder22.start();
-                        int exitCode22 = process22.waitFor();
-                        if (exitCode22 != 0) {
-                            System.err.println("\nDecoder failed with exit code " + exitCode22);
-                            break;
-                        }
+                        Extractor.writeGrammarToFile(RePairFormat.read(encodedPath), decodedSlicePath.toString());
                         System.out.println("\nBinary slice translated successfully. The result is saved under " + decodedSlicePath);
 
                         long tTotalEnd = System.nanoTime();
@@ -813,8 +885,8 @@
                         double extractMs = (tExtractEnd - tExtractStart) / 1_000_000.0;
                         double totalMs   = (tTotalEnd   - tTotalStart)   / 1_000_000.0;
 
-                        System.out.printf("Extraction time: %.3f ms%n", extractMs);
-                        System.out.printf("Total time:      %.3f ms%n", totalMs);
+                        MetricsRegistry.print(String.format("Extraction time: %.3f ms", extractMs));
+                        MetricsRegistry.print(String.format("Total time:      %.3f ms", totalMs));
 
                         System.out.println("\nExtraction successful.");
                         System.out.println("Slice saved as:      " + outPath.toAbsolutePath());
@@ -830,6 +902,7 @@
                         System.out.println("Parsing the grammar...");
                         Parser.ParsedGrammar grammar21 = Parser.parseFile(Paths.get(compressedGrammarFileName21));
                         System.out.println("Size of the grammar is :" + Parser.sizeOfGrammar(grammar21));
+                        System.out.print(GrammarStats.compute(grammar21).toSummary());
 
 
 
@@ -853,6 +926,20 @@
             } while (true);
         }
 
+        /** Compresses a file with RePair and writes the grammar next to it as {@code <file>.rp}. */
+        private static Path compressToRePairFile(Path inputFile) throws IOException {
+            Path rpFile = Paths.get(inputFile + ".rp");
+            RePairFormat.write(RePairCompressor.compressFile(inputFile), rpFile);
+            System.out.println("\nInput file translated successfully. The Resulting binary file is saved as:" + rpFile);
+            return rpFile;
+        }
+
+        /** Writes the grammar of an .rp file in the human-readable format. */
+        private static void translateRePairFile(Path rpFile, String outputFile) throws IOException {
+            Extractor.writeGrammarToFile(RePairFormat.read(rpFile), outputFile);
+            System.out.println("\nBinary file translated successfully. The result is saved under " + outputFile);
+        }
+
         public static boolean areFilesEqual(Path file1, Path file2) throws IOException {
             try (BufferedReader reader1 = new BufferedReader(new FileReader(file1.toFile()));
                  BufferedReader reader2 = new BufferedReader(new FileReader(file2.toFile()))) {
@@ -868,75 +955,27 @@
             }
         }
 
-        public static Map<Pair<Integer, Integer>, Integer> computeFreqsFromDecompressed(
+        /** Ground truth as the recompressor sees it: artificial terminals count as single letters. */
+        public static Map<Pair<Integer, Integer>, Long> computeFreqsFromDecompressed(
                 Parser.ParsedGrammar grammar,
+                Set<Integer> artificialTerminals,
                 boolean removeSentinels,
                 boolean addSentinels
         ) {
-            long startTime = System.nanoTime();
-            // Step 1: Decompress
-            String decompressed = Decompressor.decompress(grammar);
-
-            // Step 2: Add sentinels if requested
-            if (addSentinels) {
-                decompressed = "#" + decompressed + "$";
-                //System.out.println("Added sentinel characters '#' (start) and '$' (end) to decompressed string.");
-            }
-
-            // Step 3: Remove sentinels if requested
-            if (removeSentinels) {
-                decompressed = decompressed.replace("#", "").replace("$", "");
-                //System.out.println("Removed sentinel characters '#' and '$' from decompressed string.");
-            }
-
-            Map<Pair<Integer, Integer>, Integer> bigramFreqs = new HashMap<>();
-
-            //System.out.println("\n=== Starting Naive Bigram Frequency Computation from Decompressed String ===");
-            //System.out.println("Decompressed: " + decompressed);
-
-            Set<Integer> repeatingPositions = new HashSet<>();
-
-            // Pass 1: Repeating bigrams (c, c)
-            int i = 0;
-            while (i < decompressed.length()) {
-                char a = decompressed.charAt(i);
-
-                int j = i + 1;
-                while (j < decompressed.length() && decompressed.charAt(j) == a) j++;
-
-                int len = j - i;
-                if (len >= 2) {
-                    int freq = len / 2;
-                    Pair<Integer, Integer> bigram = Pair.of((int) a, (int) a);
-                    bigramFreqs.merge(bigram, freq, Integer::sum);
-                    //System.out.printf("Detected run %c^%d → (%c,%c) += %d%n", a, len, a, a, freq);
-
-                    for (int p = i; p < j - 1; p++) {
-                        repeatingPositions.add(p);
-                    }
-                }
-
-                i = j;
-            }
-
-            // Pass 2: Non-repeating bigrams (a,b) with a ≠ b
-            for (int k = 0; k < decompressed.length() - 1; k++) {
-                if (repeatingPositions.contains(k)) continue;
-
-                char a = decompressed.charAt(k);
-                char b = decompressed.charAt(k + 1);
+            Map<Pair<Integer, Integer>, Long> bigramFreqs =
+                    BigramCounter.count(grammar, artificialTerminals, removeSentinels, addSentinels);
+            System.out.println("=== Completed Naive Bigram Frequency Computation ===");
+            return bigramFreqs;
+        }
 
-                if (a != b) {
-                    Pair<Integer, Integer> pair = Pair.of((int) a, (int) b);
-                    bigramFreqs.merge(pair, 1, Integer::sum);
-                    //System.out.printf("Non-repeating bigram (%c,%c) += 1%n", a, b);
-                } else {
-                    //System.out.printf("Skipping (a,a) at [%d,%d] – handled by run detection%n", k, k + 1);
-                }
-            }
-            long endTime = System.nanoTime();
+        public static Map<Pair<Integer, Integer>, Long> computeFreqsFromDecompressed(
+                Parser.ParsedGrammar grammar,
+                boolean removeSentinels,
+                boolean addSentinels
+        ) {
+            Map<Pair<Integer, Integer>, Long> bigramFreqs = BigramCounter.count(
+                    grammar, removeSentinels, addSentinels, Runtime.getRuntime().availableProcessors());
             System.out.println("=== Completed Naive Bigram Frequency Computation ===");
-            System.out.println("Time required for naive in total: " + (endTime - startTime) / 1_000_000 + "ms");
             return bigramFreqs;
         }
 
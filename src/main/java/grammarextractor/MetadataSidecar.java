@@ -0,0 +1,128 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Stores the metadata of a grammar file next to it as {@code <grammar>.meta}, so that repeated
+ * runs on the same grammar can map it instead of running {@link RuleMetadata#computeAll}.
+ *
+ * <pre>
+ *   magic "SLPM", int version, long grammar file size, int CRC32C of the grammar file,
+ *   int capacity (maxRuleId - 255), then the columns of the {@link MetadataTable}
+ * </pre>
+ *
+ * All values are little-endian. The sidecar is only used if size and checksum match the current
+ * grammar file; otherwise the metadata is recomputed and the sidecar rewritten.
+ */
+public class MetadataSidecar {
+    private static final byte[] MAGIC = {'S', 'L', 'P', 'M'};
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = MAGIC.length + Integer.BYTES + Long.BYTES + 2 * Integer.BYTES;
+    /** Largest part of a file mapped at once. */
+    static final long WINDOW = 1L << 30;
+
+    public static Path sidecarPath(Path grammarFile) {
+        return grammarFile.resolveSibling(grammarFile.getFileName() + ".meta");
+    }
+
+    /**
+     * Returns a grammar with the same rules and sequence whose metadata, on first access, is
+     * loaded from the sidecar of {@code grammarFile} or computed and written to it.
+     */
+    public static Parser.ParsedGrammar attach(Path grammarFile, Parser.ParsedGrammar grammar) {
+        return new Parser.ParsedGrammar(grammar.grammarRules(), grammar.sequence(),
+                () -> loadOrCompute(grammarFile, grammar));
+    }
+
+    public static MetadataTable loadOrCompute(Path grammarFile, Parser.ParsedGrammar grammar) {
+        Path sidecar = sidecarPath(grammarFile);
+        MetricsRegistry.Span span = MetricsRegistry.start("metadata");
+        long fileSize;
+        int hash;
+        try {
+            fileSize = Files.size(grammarFile);
+            hash = contentHash(grammarFile);
+            MetadataTable table = load(sidecar, fileSize, hash);
+            if (table != null) {
+                span.end("loading metadata from " + sidecar, grammar, Files.size(sidecar));
+                return table;
+            }
+        } catch (IOException e) {
+            MetricsRegistry.print("Could not read metadata sidecar " + sidecar + ": " + e.getMessage());
+            return grammar.metadata();
+        }
+
+        MetricsRegistry.print("No up-to-date metadata sidecar, computing metadata...");
+        MetadataTable table = grammar.metadata();
+        try {
+            write(sidecar, table, fileSize, hash);
+            MetricsRegistry.print("Metadata written to " + sidecar);
+        } catch (IOException e) {
+            MetricsRegistry.print("Could not write metadata sidecar " + sidecar + ": " + e.getMessage());
+        }
+        return table;
+    }
+
+    /** Returns the table stored in the sidecar, or null if it is missing or belongs to another file. */
+    static MetadataTable load(Path sidecar, long fileSize, int hash) throws IOException {
+        return load(sidecar, fileSize, hash, WINDOW);
+    }
+
+    static MetadataTable load(Path sidecar, long fileSize, int hash, long window) throws IOException {
+        if (!Files.exists(sidecar)) return null;
+        try (FileChannel channel = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) return null;
+            ByteBuffer in = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (in.hasRemaining() && channel.read(in, in.position()) > 0) { }
+            in.flip();
+
+            for (byte b : MAGIC) {
+                if (in.get() != b) return null;
+            }
+            if (in.getInt() != VERSION || in.getLong() != fileSize || in.getInt() != hash) return null;
+            int capacity = in.getInt();
+            if (capacity < 0 || size != HEADER_BYTES + (long) capacity * MetadataTable.BYTES_PER_SLOT) return null;
+            return MetadataTable.readColumns(channel, HEADER_BYTES, window, capacity);
+        }
+    }
+
+    /** Writes the sidecar to a temporary file first and moves it into place. */
+    static void write(Path sidecar, MetadataTable table, long fileSize, int hash) throws IOException {
+        write(sidecar, table, fileSize, hash, WINDOW);
+    }
+
+    static void write(Path sidecar, MetadataTable table, long fileSize, int hash, long window) throws IOException {
+        Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putLong(fileSize).putInt(hash).putInt(table.capacity()).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            // The columns are mapped in windows, so the sidecar may be larger than 2 GiB
+            table.writeColumns(channel, HEADER_BYTES, window);
+        }
+        Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** CRC32C over the whole file, mapped in windows of {@link #WINDOW} bytes. */
+    static int contentHash(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += WINDOW) {
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, size - pos));
+                crc.update(window);
+            }
+        }
+        return (int) crc.getValue();
+    }
+}
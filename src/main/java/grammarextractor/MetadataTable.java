@@ -0,0 +1,177 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Metadata of all rules of a grammar, stored as one primitive array per field and indexed by
+ * {@code ruleId - 256}. Rule ids are dense in practice (RePair numbers them consecutively), so
+ * this needs no per-rule object and no boxed hash lookup; each accessor is a bounds check and
+ * an array load.
+ *
+ * Tables are filled by {@link RuleMetadata#computeAll} and friends and are not modified
+ * afterwards. {@link #get(int)} creates a {@link RuleMetadata} view for printing.
+ */
+public final class MetadataTable {
+    public static final MetadataTable EMPTY = new MetadataTable(255);
+
+    private static final byte PRESENT = 1;
+    private static final byte SINGLE_BLOCK = 2;
+
+    private final long[] vocc;
+    private final long[] length;
+    private final long[] leftRun;
+    private final long[] rightRun;
+    private final int[] leftmost;
+    private final int[] rightmost;
+    private final byte[] flags;
+    private int size;
+
+    /** Bytes per rule slot in the serialized form: four longs, two ints and the flag byte. */
+    static final int BYTES_PER_SLOT = 4 * Long.BYTES + 2 * Integer.BYTES + 1;
+
+    /** Creates an empty table for rule ids 256..maxRuleId. */
+    MetadataTable(int maxRuleId) {
+        int capacity = Math.max(0, maxRuleId - 255);
+        vocc = new long[capacity];
+        length = new long[capacity];
+        leftRun = new long[capacity];
+        rightRun = new long[capacity];
+        leftmost = new int[capacity];
+        rightmost = new int[capacity];
+        flags = new byte[capacity];
+    }
+
+    public boolean contains(int ruleId) {
+        int i = ruleId - 256;
+        return i >= 0 && i < flags.length && (flags[i] & PRESENT) != 0;
+    }
+
+    public long vocc(int ruleId) { return vocc[ruleId - 256]; }
+    public long length(int ruleId) { return length[ruleId - 256]; }
+    public int leftmostTerminal(int ruleId) { return leftmost[ruleId - 256]; }
+    public int rightmostTerminal(int ruleId) { return rightmost[ruleId - 256]; }
+    public boolean isSingleBlock(int ruleId) { return (flags[ruleId - 256] & SINGLE_BLOCK) != 0; }
+    public long leftRunLength(int ruleId) { return leftRun[ruleId - 256]; }
+    public long rightRunLength(int ruleId) { return rightRun[ruleId - 256]; }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    /** Largest rule id the table has room for. */
+    int maxRuleId() { return flags.length + 255; }
+
+    /** Returns a view of the metadata of one rule, or null if the rule is not in the table. */
+    public RuleMetadata get(int ruleId) {
+        if (!contains(ruleId)) return null;
+        int i = ruleId - 256;
+        return new RuleMetadata(vocc[i], length[i], leftmost[i], rightmost[i],
+                (flags[i] & SINGLE_BLOCK) != 0, leftRun[i], rightRun[i]);
+    }
+
+    /** Rule ids in the table, in ascending order. */
+    public int[] ruleIds() {
+        int[] ids = new int[size];
+        int n = 0;
+        for (int i = 0; i < flags.length; i++) {
+            if ((flags[i] & PRESENT) != 0) ids[n++] = i + 256;
+        }
+        return ids;
+    }
+
+    void set(int ruleId, long vocc, long length, int leftmostTerminal, int rightmostTerminal,
+             boolean isSB, long leftRunLength, long rightRunLength) {
+        int i = ruleId - 256;
+        if ((flags[i] & PRESENT) == 0) size++;
+        this.vocc[i] = vocc;
+        this.length[i] = length;
+        this.leftmost[i] = leftmostTerminal;
+        this.rightmost[i] = rightmostTerminal;
+        this.leftRun[i] = leftRunLength;
+        this.rightRun[i] = rightRunLength;
+        flags[i] = (byte) (PRESENT | (isSB ? SINGLE_BLOCK : 0));
+    }
+
+    void set(int ruleId, RuleMetadata meta) {
+        set(ruleId, meta.getVocc(), meta.getLength(), meta.getLeftmostTerminal(), meta.getRightmostTerminal(),
+                meta.isSingleBlock(), meta.getLeftRunLength(), meta.getRightRunLength());
+    }
+
+    /** Copies the entry of {@code fromId} in {@code source} to {@code toId} in this table. */
+    void copyFrom(MetadataTable source, int fromId, int toId) {
+        int i = fromId - 256;
+        set(toId, source.vocc[i], source.length[i], source.leftmost[i], source.rightmost[i],
+                (source.flags[i] & SINGLE_BLOCK) != 0, source.leftRun[i], source.rightRun[i]);
+    }
+
+    /** Number of rule slots, i.e. maxRuleId - 255. */
+    int capacity() { return flags.length; }
+
+    /**
+     * Writes the table column by column (vocc, length, leftRun, rightRun, leftmost, rightmost,
+     * flags), little-endian, {@code capacity() * BYTES_PER_SLOT} bytes from {@code position}.
+     * The file is mapped in windows of at most {@code window} bytes, so no column has to fit
+     * into one buffer.
+     */
+    void writeColumns(FileChannel channel, long position, long window) throws IOException {
+        for (long[] column : new long[][] {vocc, length, leftRun, rightRun}) {
+            position = mapColumn(channel, FileChannel.MapMode.READ_WRITE, position, window, column.length, Long.BYTES,
+                    (buffer, from, n) -> buffer.asLongBuffer().put(column, from, n));
+        }
+        for (int[] column : new int[][] {leftmost, rightmost}) {
+            position = mapColumn(channel, FileChannel.MapMode.READ_WRITE, position, window, column.length, Integer.BYTES,
+                    (buffer, from, n) -> buffer.asIntBuffer().put(column, from, n));
+        }
+        mapColumn(channel, FileChannel.MapMode.READ_WRITE, position, window, flags.length, 1,
+                (buffer, from, n) -> buffer.put(flags, from, n));
+    }
+
+    /** Reads a table written by {@link #writeColumns} with the given capacity. */
+    static MetadataTable readColumns(FileChannel channel, long position, long window, int capacity) throws IOException {
+        MetadataTable table = new MetadataTable(capacity + 255);
+        for (long[] column : new long[][] {table.vocc, table.length, table.leftRun, table.rightRun}) {
+            position = mapColumn(channel, FileChannel.MapMode.READ_ONLY, position, window, column.length, Long.BYTES,
+                    (buffer, from, n) -> buffer.asLongBuffer().get(column, from, n));
+        }
+        for (int[] column : new int[][] {table.leftmost, table.rightmost}) {
+            position = mapColumn(channel, FileChannel.MapMode.READ_ONLY, position, window, column.length, Integer.BYTES,
+                    (buffer, from, n) -> buffer.asIntBuffer().get(column, from, n));
+        }
+        mapColumn(channel, FileChannel.MapMode.READ_ONLY, position, window, table.flags.length, 1,
+                (buffer, from, n) -> buffer.get(table.flags, from, n));
+        for (byte flag : table.flags) {
+            if ((flag & PRESENT) != 0) table.size++;
+        }
+        return table;
+    }
+
+    /** Copies elements [from, from + n) of a column to or from a mapped window. */
+    private interface ColumnWindow {
+        void copy(ByteBuffer buffer, int from, int n);
+    }
+
+    /** Maps a column of {@code count} elements window by window; returns the position after it. */
+    private static long mapColumn(FileChannel channel, FileChannel.MapMode mode, long position, long window,
+                                  int count, int elementBytes, ColumnWindow copy) throws IOException {
+        int perWindow = (int) Math.max(1, Math.min(Integer.MAX_VALUE, window / elementBytes));
+        for (int from = 0; from < count; from += perWindow) {
+            int n = Math.min(perWindow, count - from);
+            MappedByteBuffer buffer = channel.map(mode, position, (long) n * elementBytes);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            copy.copy(buffer, from, n);
+            if (mode == FileChannel.MapMode.READ_WRITE) buffer.force();
+            position += (long) n * elementBytes;
+        }
+        return position;
+    }
+
+    void setVocc(int ruleId, long value) { vocc[ruleId - 256] = value; }
+
+    void addVocc(int ruleId, long value) { vocc[ruleId - 256] += value; }
+
+    void clearVocc() { Arrays.fill(vocc, 0); }
+}
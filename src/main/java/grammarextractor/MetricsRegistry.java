@@ -0,0 +1,217 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters and latency histograms of the pipeline phases (parse, metadata,
+ * frequencies, pick, uncross, replace, prune, decompress, extract, ...). Every phase is timed with
+ * a {@link Span}, which also emits a {@link PhaseEvent} for JDK Flight Recorder and, unless
+ * switched off with {@link #setEcho}, prints the familiar "Time required for ..." line.
+ *
+ * <p>Histograms have four buckets per power of two, so percentiles are accurate to 25%. All
+ * updates are lock-free; the registry can be read and dumped as JSON while phases run.
+ */
+public final class MetricsRegistry {
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<>();
+    private static volatile boolean echo = true;
+
+    private MetricsRegistry() {
+    }
+
+    /** Whether timing lines are printed; they are by default. */
+    public static void setEcho(boolean enabled) {
+        echo = enabled;
+    }
+
+    /** Prints a timing line, unless printing is switched off. */
+    public static void print(String line) {
+        if (echo) System.out.println(line);
+    }
+
+    public static Span start(String phase) {
+        return new Span(phase, 0);
+    }
+
+    /** A span of one recompression pass. */
+    public static Span start(String phase, int pass) {
+        return new Span(phase, pass);
+    }
+
+    public static void increment(String counter, long delta) {
+        counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);
+    }
+
+    public static long counter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /** Records a latency without a span, e.g. one measured elsewhere. */
+    public static void recordNanos(String timer, long nanos) {
+        timers.computeIfAbsent(timer, k -> new Histogram()).record(nanos);
+    }
+
+    /** The histogram of a phase, or null if it never ran. */
+    public static Histogram timer(String timer) {
+        return timers.get(timer);
+    }
+
+    public static void reset() {
+        counters.clear();
+        timers.clear();
+    }
+
+    public static String toJson() {
+        StringBuilder json = new StringBuilder("{\n  \"counters\": {");
+        boolean first = true;
+        for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet()) {
+            json.append(first ? "\n    " : ",\n    ").append(quote(counter.getKey())).append(": ").append(counter.getValue().sum());
+            first = false;
+        }
+        json.append(first ? "},\n" : "\n  },\n").append("  \"timers\": {");
+        first = true;
+        for (Map.Entry<String, Histogram> timer : new TreeMap<>(timers).entrySet()) {
+            Histogram h = timer.getValue();
+            json.append(first ? "\n    " : ",\n    ").append(quote(timer.getKey())).append(": {")
+                    .append("\"count\": ").append(h.count())
+                    .append(", \"totalMs\": ").append(ms(h.totalNanos()))
+                    .append(", \"meanMs\": ").append(ms(h.count() == 0 ? 0 : h.totalNanos() / h.count()))
+                    .append(", \"p50Ms\": ").append(ms(h.percentile(0.5)))
+                    .append(", \"p90Ms\": ").append(ms(h.percentile(0.9)))
+                    .append(", \"p99Ms\": ").append(ms(h.percentile(0.99)))
+                    .append(", \"maxMs\": ").append(ms(h.maxNanos())).append('}');
+            first = false;
+        }
+        json.append(first ? "}\n}\n" : "\n  }\n}\n");
+        return json.toString();
+    }
+
+    public static void writeJson(Path file) throws IOException {
+        Files.writeString(file, toJson(), StandardCharsets.UTF_8);
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * One run of a phase, from {@link #start} to {@code end}. Ending it records the latency under
+     * the phase name, adds the sizes to the counters "&lt;phase&gt;.bytes" and commits the JFR event.
+     */
+    public static final class Span {
+        private final String phase;
+        private final PhaseEvent event = new PhaseEvent();
+        private final long startNanos;
+
+        private Span(String phase, int pass) {
+            this.phase = phase;
+            event.phase = phase;
+            event.pass = pass;
+            event.begin();
+            startNanos = System.nanoTime();
+        }
+
+        /** Ends the span and prints "Time required for {@code description}" unless it is null. */
+        public long end(String description) {
+            return end(description, 0, 0, 0);
+        }
+
+        /** Same as {@link #end(String)}, with the sizes of the grammar and the data processed. */
+        public long end(String description, long grammarSize, int ruleCount, long bytesProcessed) {
+            long nanos = System.nanoTime() - startNanos;
+            event.end();
+            return finish(nanos, description, grammarSize, ruleCount, bytesProcessed);
+        }
+
+        /** Same as above; the grammar is only measured when a recording takes the event. */
+        public long end(String description, Parser.ParsedGrammar grammar, long bytesProcessed) {
+            long nanos = System.nanoTime() - startNanos;
+            event.end();
+            long grammarSize = event.shouldCommit() ? Parser.sizeOfGrammar(grammar) : 0;
+            return finish(nanos, description, grammarSize, grammar.grammarRules().size(), bytesProcessed);
+        }
+
+        private long finish(long nanos, String description, long grammarSize, int ruleCount, long bytesProcessed) {
+            if (event.shouldCommit()) {
+                event.grammarSize = grammarSize;
+                event.ruleCount = ruleCount;
+                event.bytesProcessed = bytesProcessed;
+                event.commit();
+            }
+            recordNanos(phase, nanos);
+            if (bytesProcessed > 0) increment(phase + ".bytes", bytesProcessed);
+            if (description != null) print("Time required for " + description + ": " + nanos / 1_000_000 + "ms");
+            return nanos;
+        }
+    }
+
+    /** Latencies in log-linear buckets: values below 4 ns exactly, then four buckets per power of two. */
+    public static final class Histogram {
+        private static final int BUCKETS = 64 * 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return total.sum();
+        }
+
+        public long maxNanos() {
+            return max.get();
+        }
+
+        /** Upper bound of the bucket holding the given fraction of the values, capped by the maximum. */
+        public long percentile(double fraction) {
+            long n = count();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * n));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) return Math.min(upperBound(b), maxNanos());
+            }
+            return maxNanos();
+        }
+
+        private static int bucket(long value) {
+            if (value < 4) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return exponent * 4 + (int) (value >>> (exponent - 2) & 3);
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 4) return bucket;
+            int exponent = bucket / 4;
+            long lower = (4L + bucket % 4) << (exponent - 2);
+            return lower + (1L << (exponent - 2)) - 1;
+        }
+    }
+}
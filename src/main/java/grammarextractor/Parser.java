@@ -1,59 +1,413 @@
 package grammarextractor;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 public class Parser {
 
-    public record ParsedGrammar(Map<Integer, List<Integer>> grammarRules,
-                                List<Integer> sequence,
-                                Map<Integer, RuleMetadata> metadata) {}
+    /**
+     * Rules, sequence and metadata of a grammar. The metadata can be given up front, or it is
+     * computed on the first call to {@link #metadata()} and cached; callers that only read rules
+     * and sequence (e.g. decompression) never pay for it. The first computation is synchronized,
+     * so a grammar may be shared between threads.
+     */
+    public static final class ParsedGrammar {
+        private final Map<Integer, List<Integer>> grammarRules;
+        private final List<Integer> sequence;
+        private final Supplier<MetadataTable> metadataSupplier;
+        private volatile MetadataTable metadata;
+
+        public ParsedGrammar(Map<Integer, List<Integer>> grammarRules, List<Integer> sequence, MetadataTable metadata) {
+            this.grammarRules = grammarRules;
+            this.sequence = sequence;
+            this.metadataSupplier = null;
+            this.metadata = metadata;
+        }
+
+        /** A grammar whose metadata is computed with {@link RuleMetadata#computeAll} on first use. */
+        public ParsedGrammar(Map<Integer, List<Integer>> grammarRules, List<Integer> sequence) {
+            this(grammarRules, sequence, (Supplier<MetadataTable>) null);
+        }
+
+        /** A grammar whose metadata is taken from {@code metadataSupplier} on first use. */
+        public ParsedGrammar(Map<Integer, List<Integer>> grammarRules, List<Integer> sequence,
+                             Supplier<MetadataTable> metadataSupplier) {
+            this.grammarRules = grammarRules;
+            this.sequence = sequence;
+            this.metadataSupplier = metadataSupplier;
+        }
 
+        public Map<Integer, List<Integer>> grammarRules() { return grammarRules; }
+
+        public List<Integer> sequence() { return sequence; }
+
+        public MetadataTable metadata() {
+            MetadataTable m = metadata;
+            if (m == null) {
+                synchronized (this) {
+                    m = metadata;
+                    if (m == null) {
+                        if (metadataSupplier != null) {
+                            m = metadataSupplier.get();
+                        } else {
+                            // Timed here rather than in computeAll, whose callers in the
+                            // recompression passes have a span of their own
+                            MetricsRegistry.Span span = MetricsRegistry.start("metadata");
+                            m = RuleMetadata.computeAll(this, Collections.emptySet());
+                            span.end("computing metadata", this, 0);
+                        }
+                        metadata = m;
+                    }
+                }
+            }
+            return m;
+        }
+
+        /** True if the metadata is already available without computing it. */
+        public boolean hasMetadata() { return metadata != null; }
+    }
+
+    /** Smallest piece of the file handed to one task by the parallel parser. */
+    private static final int MIN_CHUNK_BYTES = 1 << 16;
+
+    /**
+     * Parses a grammar in the text format ({@code R<id>:a,b,...} lines and one {@code SEQ:} line).
+     * Files in the binary format ({@link BinaryGrammarFormat}) are recognized by their magic and
+     * loaded with its reader, as are archives ({@link ArchiveFormat}); files ending in {@code .rp}
+     * are read with {@link RePairFormat}. The returned
+     * grammar computes its metadata lazily.
+     * The file is memory-mapped, or read through a fixed buffer if it is too large for a single
+     * mapping, and digits are scanned straight into int-backed lists; no line Strings are created.
+     * Both the {@code R256:} and {@code R256: } spacing variants are accepted, as are \r\n line ends.
+     */
     public static ParsedGrammar parseFile(Path inputFile) throws IOException {
-        long startTime = System.nanoTime();
+        return parseFile(inputFile, false);
+    }
+
+    /**
+     * Same as {@link #parseFile(Path)}. With {@code parallel} set, rule lines and the sequence are
+     * parsed in chunks on the common ForkJoinPool (see {@link #readParallel}). Files too large for a
+     * single mapping are always parsed sequentially.
+     */
+    public static ParsedGrammar parseFile(Path inputFile, boolean parallel) throws IOException {
+        return parseFile(inputFile, parallel, false);
+    }
+
+    /**
+     * Same as {@link #parseFile(Path, boolean)}. With {@code useMetaSidecar} set, the metadata is
+     * taken from the {@code .meta} sidecar of the file when it is accessed (see {@link MetadataSidecar}).
+     */
+    public static ParsedGrammar parseFile(Path inputFile, boolean parallel, boolean useMetaSidecar) throws IOException {
+        ParsedGrammar grammar = readGrammar(inputFile, parallel);
+        return useMetaSidecar ? MetadataSidecar.attach(inputFile, grammar) : grammar;
+    }
+
+    private static ParsedGrammar readGrammar(Path inputFile, boolean parallel) throws IOException {
+        if (BinaryGrammarFormat.isBinaryGrammar(inputFile)) {
+            return BinaryGrammarFormat.read(inputFile);
+        }
+        if (ArchiveFormat.isArchive(inputFile)) {
+            return ArchiveFormat.read(inputFile);
+        }
+        if (RePairFormat.isRePairFile(inputFile)) {
+            return RePairFormat.read(inputFile);
+        }
+        MetricsRegistry.Span span = MetricsRegistry.start("parse");
         Map<Integer, List<Integer>> grammarRules = new HashMap<>();
-        List<Integer> sequence = new ArrayList<>();
-        List<String> ruleLines = new ArrayList<>();
-
-        try (Scanner scanner = new Scanner(inputFile.toFile())) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().trim();
-                if (line.startsWith("R")) {
-                    ruleLines.add(line);
-                } else if (line.startsWith("SEQ:")) {
-                    for (String token : line.substring(4).split(",")) {
-                        sequence.add(Integer.parseInt(token.trim()));
-                    }
+        IntList sequence = new IntList();
+        long fileSize;
+
+        try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            fileSize = channel.size();
+            if (parallel && channel.size() <= Integer.MAX_VALUE) {
+                readParallel(channel, grammarRules, sequence);
+            } else {
+                readSequential(channel, grammarRules, sequence);
+            }
+        }
+
+        // Metadata is computed on first access
+        ParsedGrammar grammar = new ParsedGrammar(grammarRules, sequence);
+        span.end("parsing in total", grammar, fileSize);
+        return grammar;
+    }
+
+    private static void readSequential(FileChannel channel, Map<Integer, List<Integer>> grammarRules,
+                                       IntList sequence) throws IOException {
+        GrammarScanner in = new GrammarScanner(channel);
+        while (!in.atEnd()) {
+            in.skipBlanks();
+            if (in.current == 'R') {
+                grammarRules.put(in.readRuleId(), in.readRuleBody());
+            } else if (in.atSequenceHeader()) {
+                in.readSymbols(sequence);
+            }
+            in.nextLine();
+        }
+    }
+
+    /**
+     * Parallel parse of a mapped file, in two rounds on the common ForkJoinPool.
+     * First the file is cut into byte ranges; each task parses the rule lines that start in its
+     * range (finishing the last one past the range end) and only records where a SEQ line lies.
+     * Then every SEQ line is cut at commas and the pieces are parsed in parallel as well. The
+     * per-chunk results are stitched together in file order, so the result is the same as for
+     * the sequential parse.
+     */
+    private static void readParallel(FileChannel channel, Map<Integer, List<Integer>> grammarRules,
+                                     IntList sequence) throws IOException {
+        ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        int size = file.limit();
+
+        int chunks = chunkCount(size);
+        List<Callable<LineChunk>> lineTasks = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            int from = (int) ((long) size * i / chunks);
+            int to = (int) ((long) size * (i + 1) / chunks);
+            lineTasks.add(() -> parseLines(file, from, to));
+        }
+        List<LineChunk> lineChunks = invokeAll(lineTasks);
+
+        List<Callable<IntList>> sequenceTasks = new ArrayList<>();
+        for (LineChunk chunk : lineChunks) {
+            for (int k = 0; k < chunk.ruleIds.size(); k++) {
+                grammarRules.put(chunk.ruleIds.getInt(k), chunk.bodies.get(k));
+            }
+            for (int k = 0; k < chunk.sequenceRanges.size(); k += 2) {
+                int start = chunk.sequenceRanges.getInt(k);
+                int end = chunk.sequenceRanges.getInt(k + 1);
+                int pieces = chunkCount(end - start);
+                int pieceStart = start;
+                for (int j = 1; j <= pieces; j++) {
+                    int pieceEnd = j == pieces ? end : (int) (start + (long) (end - start) * j / pieces);
+                    // Move the cut behind the next comma so no number is split
+                    while (pieceEnd < end && pieceEnd > pieceStart && file.get(pieceEnd - 1) != ',') pieceEnd++;
+                    if (pieceEnd <= pieceStart) continue;
+                    int from = pieceStart;
+                    int length = pieceEnd - pieceStart;
+                    sequenceTasks.add(() -> {
+                        IntList piece = new IntList(length / 4 + 1);
+                        new GrammarScanner(file.slice(from, length), from).readSymbols(piece);
+                        return piece;
+                    });
+                    pieceStart = pieceEnd;
                 }
             }
         }
 
-        for (String ruleLine : ruleLines) {
-            String[] split = ruleLine.substring(1).split(":");
-            int ruleId = Integer.parseInt(split[0].trim());
-            String[] rhsTokens = split[1].split(",");
-            List<Integer> rhs = new ArrayList<>();
-            for (String token : rhsTokens) {
-                rhs.add(Integer.parseInt(token.trim()));
+        List<IntList> pieces = invokeAll(sequenceTasks);
+        int total = 0;
+        for (IntList piece : pieces) total += piece.size();
+        sequence.ensureCapacity(total);
+        for (IntList piece : pieces) sequence.addInts(piece);
+    }
+
+    /** Rule lines starting in one byte range, plus the [start, end) offsets of SEQ line bodies. */
+    private static final class LineChunk {
+        final IntList ruleIds = new IntList();
+        final List<IntList> bodies = new ArrayList<>();
+        final IntList sequenceRanges = new IntList();
+    }
+
+    private static LineChunk parseLines(ByteBuffer file, int from, int to) throws IOException {
+        LineChunk chunk = new LineChunk();
+        int start = from;
+        if (start > 0 && file.get(start - 1) != '\n') {
+            // The line at 'from' started in the previous range and belongs to it
+            while (start < to && file.get(start) != '\n') start++;
+            start++;
+        }
+        if (start >= to) return chunk;
+
+        GrammarScanner in = new GrammarScanner(file.slice(start, file.limit() - start), start);
+        while (!in.atEnd() && in.offset() < to) {
+            in.skipBlanks();
+            if (in.current == 'R') {
+                chunk.ruleIds.addInt(in.readRuleId());
+                chunk.bodies.add(in.readRuleBody());
+            } else if (in.atSequenceHeader()) {
+                chunk.sequenceRanges.addInt(in.offset());
+                in.skipToLineEnd();
+                chunk.sequenceRanges.addInt(in.offset());
+            }
+            in.nextLine();
+        }
+        return chunk;
+    }
+
+    private static int chunkCount(long bytes) {
+        long byCores = ForkJoinPool.getCommonPoolParallelism() * 4L;
+        return (int) Math.max(1, Math.min(byCores, bytes / MIN_CHUNK_BYTES));
+    }
+
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Parsing interrupted");
+            } catch (ExecutionException e) {
+                // The pool wraps checked exceptions of the tasks, possibly more than once
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException io) throw io;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Byte-wise reader over a grammar file. Files up to 2 GiB are mapped in one piece; larger ones
+     * are streamed through a 1 MiB buffer. The parallel parser runs one scanner per slice of the
+     * mapping. The grammar format is plain ASCII, so bytes are chars.
+     */
+    private static final class GrammarScanner {
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean streaming;
+        private final int baseOffset;
+        private long line = 1;
+        int current;
+
+        GrammarScanner(FileChannel channel) throws IOException {
+            this.channel = channel;
+            long size = channel.size();
+            streaming = size > Integer.MAX_VALUE;
+            if (streaming) {
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                buffer.flip();
+            } else {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            baseOffset = 0;
+            advance();
+        }
+
+        /** Scanner over a slice of a mapped file that starts at byte {@code baseOffset}. */
+        GrammarScanner(ByteBuffer slice, int baseOffset) throws IOException {
+            this.channel = null;
+            this.buffer = slice;
+            this.streaming = false;
+            this.baseOffset = baseOffset;
+            this.line = 0; // unknown, errors report the byte offset instead
+            advance();
+        }
+
+        /** File offset of the current byte (only for mapped input). */
+        int offset() {
+            return baseOffset + (current == -1 ? buffer.limit() : buffer.position() - 1);
+        }
+
+        boolean atEnd() {
+            return current == -1;
+        }
+
+        int advance() throws IOException {
+            if (!buffer.hasRemaining() && !(streaming && refill())) {
+                return current = -1;
             }
-            grammarRules.put(ruleId, rhs);
+            return current = buffer.get() & 0xFF;
+        }
+
+        private boolean refill() throws IOException {
+            buffer.clear();
+            int n;
+            do {
+                n = channel.read(buffer);
+            } while (n == 0);
+            buffer.flip();
+            return n > 0;
+        }
+
+        void skipBlanks() throws IOException {
+            while (current == ' ' || current == '\t' || current == '\r') advance();
+        }
+
+        void expect(char c) throws IOException {
+            skipBlanks();
+            if (current != c) throw malformed("expected '" + c + "'");
+            advance();
+        }
+
+        int readInt() throws IOException {
+            skipBlanks();
+            if (current < '0' || current > '9') throw malformed("expected a number");
+            long value = 0;
+            do {
+                value = value * 10 + (current - '0');
+                if (value > Integer.MAX_VALUE) throw malformed("number too large");
+                advance();
+            } while (current >= '0' && current <= '9');
+            return (int) value;
+        }
+
+        int readRuleId() throws IOException {
+            advance(); // 'R'
+            int ruleId = readInt();
+            expect(':');
+            return ruleId;
+        }
+
+        IntList readRuleBody() throws IOException {
+            IntList rhs = new IntList(2);
+            readSymbols(rhs);
+            return rhs;
         }
 
-        // 1. Build a grammar with empty metadata
-        ParsedGrammar partialGrammar = new ParsedGrammar(grammarRules, sequence, Collections.emptyMap());
+        /** Consumes "SEQ:" if the current line starts with it. */
+        boolean atSequenceHeader() throws IOException {
+            if (current == 'S' && advance() == 'E' && advance() == 'Q' && advance() == ':') {
+                advance();
+                return true;
+            }
+            return false;
+        }
 
-        // 2. Compute metadata (empty set for artificial terminals)
-        Map<Integer, RuleMetadata> metadata = RuleMetadata.computeAll(partialGrammar, Collections.emptySet());
+        /** Reads comma-separated symbols up to the end of the line. */
+        void readSymbols(IntList out) throws IOException {
+            while (true) {
+                skipBlanks();
+                if (current == -1 || current == '\n') return;
+                if (current == ',') {
+                    advance();
+                } else {
+                    out.addInt(readInt());
+                }
+            }
+        }
 
-        long endTime   = System.nanoTime();
-        long totalTime = endTime - startTime;
-        System.out.println("Time required for parsing in total" + ":" +totalTime/1000000 + "ms");
+        void skipToLineEnd() throws IOException {
+            while (current != -1 && current != '\n') advance();
+        }
 
+        /** Skips the rest of the current line, including the line break. */
+        void nextLine() throws IOException {
+            skipToLineEnd();
+            if (current == '\n') {
+                if (line > 0) line++;
+                advance();
+            }
+        }
 
-        // 3. Return full grammar
-        return new ParsedGrammar(grammarRules, sequence, metadata);
+        private IOException malformed(String message) {
+            String where = line > 0 ? "line " + line : "byte " + offset();
+            return new IOException("Malformed grammar at " + where + ": " + message);
+        }
     }
 
     /**
@@ -69,24 +423,19 @@ public class Parser {
     }
 
 
+    /** Heap per rule: hash map node and table slot, boxed key, IntList with its array header, metadata slot. */
+    private static final long BYTES_PER_RULE = 48 + 16 + 40 + MetadataTable.BYTES_PER_SLOT;
+
+    /** Rough heap footprint of a parsed grammar in bytes: a fixed cost per rule plus four bytes per symbol. */
+    public static long estimatedHeapBytes(ParsedGrammar grammar) {
+        long symbols = grammar.sequence().size();
+        for (List<Integer> rhs : grammar.grammarRules().values()) symbols += rhs.size();
+        return grammar.grammarRules().size() * BYTES_PER_RULE + 4 * symbols;
+    }
+
     /** New: return a printable string for a grammar (mirrors printGrammar output). */
     public static String grammarToString(ParsedGrammar grammar) {
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<Integer, List<Integer>> entry : grammar.grammarRules().entrySet()) {
-            int ruleId = entry.getKey();
-            String rhs = entry.getValue().stream()
-                    .map(Object::toString)
-                    .collect(Collectors.joining(","));
-            sb.append("R").append(ruleId).append(": ").append(rhs).append('\n');
-        }
-
-        sb.append("SEQ:");
-        for (int i = 0; i < grammar.sequence().size(); i++) {
-            sb.append(grammar.sequence().get(i));
-            if (i != grammar.sequence().size() - 1) sb.append(",");
-        }
-        sb.append('\n');
-        return sb.toString();
+        return GrammarWriter.toText(grammar, ": ");
     }
 
 
@@ -0,0 +1,33 @@
+package grammarextractor;
+
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder event for one run of a pipeline phase, emitted by
+ * {@link MetricsRegistry.Span}. Record with e.g. {@code -XX:StartFlightRecording:filename=run.jfr}
+ * and look for "Grammar Extractor" in the event browser.
+ */
+@Name("grammarextractor.Phase")
+@Label("Pipeline Phase")
+@Category("Grammar Extractor")
+@Description("One run of a phase of parsing, recompression, decompression or extraction")
+@StackTrace(false)
+class PhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Pass")
+    @Description("Recompression pass, 0 outside of recompression")
+    int pass;
+
+    @Label("Grammar Size")
+    @Description("Symbols in all right-hand sides and the sequence")
+    long grammarSize;
+
+    @Label("Rule Count")
+    int ruleCount;
+
+    @Label("Bytes Processed")
+    @DataAmount
+    long bytesProcessed;
+}
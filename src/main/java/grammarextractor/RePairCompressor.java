@@ -0,0 +1,356 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Linear-time RePair (Larsson and Moffat, "Off-line dictionary-based compression", 2000).
+ * Repeatedly replaces the most frequent pair of adjacent symbols by a new rule until no pair
+ * occurs twice. Rules are numbered from 257 on, like the ones of the bundled encoder.
+ *
+ * The text is one int per byte. Positions whose symbol has been merged into its left neighbour
+ * become holes; the first and last cell of every hole point to the live cells around it, so
+ * neighbours are found in constant time. Each live position that starts a counted pair is linked
+ * to the other occurrences of that pair, and every distinct pair has a record in an open
+ * addressing hash table. Records with frequencies below sqrt(n) are kept in one doubly linked
+ * list per frequency, all others in a single unsorted list that is scanned for the maximum.
+ * Since no new pair can be more frequent than the pair just replaced, the search for the next
+ * pair only ever moves down the lists and the total work stays linear.
+ */
+public class RePairCompressor {
+    private static final int FIRST_RULE = 257;
+
+    private static final int NONE = -1;
+    private static final int DEAD = -1;
+    /** prevOcc/nextOcc of a live position that does not start a counted pair. */
+    private static final int UNLINKED = -2;
+
+    // Text
+    private final int n;
+    private final int[] sym;
+    // Live positions: links to the previous/next occurrence of the same pair.
+    // Holes: prevOcc of the last cell and nextOcc of the first cell point to the live neighbours.
+    private final int[] prevOcc;
+    private final int[] nextOcc;
+
+    // Pair records
+    private int[] left = new int[1024];
+    private int[] right = new int[1024];
+    private int[] freq = new int[1024];
+    private int[] firstOcc = new int[1024];
+    private int[] prevInList = new int[1024];
+    private int[] nextInList = new int[1024];
+    private int records;
+    private int freeRecord = NONE;
+
+    // Hash table from pair to record, linear probing
+    private long[] keys = new long[1 << 12];
+    private int[] values = new int[1 << 12];
+    private int used;
+
+    // Frequency lists: heads[f] for 1 <= f < maxList, heads[maxList] for all larger frequencies
+    private final int maxList;
+    private final int[] heads;
+    private int top;
+
+    private RePairCompressor(byte[] text) {
+        n = text.length;
+        sym = new int[n];
+        prevOcc = new int[n];
+        nextOcc = new int[n];
+        for (int i = 0; i < n; i++) sym[i] = text[i] & 0xFF;
+        Arrays.fill(prevOcc, UNLINKED);
+        Arrays.fill(nextOcc, UNLINKED);
+        maxList = Math.max(2, (int) Math.sqrt(n));
+        heads = new int[maxList + 1];
+        Arrays.fill(heads, NONE);
+        Arrays.fill(keys, -1L);
+    }
+
+    public static Parser.ParsedGrammar compressFile(Path inputFile) throws IOException {
+        return compress(Files.readAllBytes(inputFile));
+    }
+
+    /** Builds a grammar for the given bytes. Every byte is a terminal. */
+    public static Parser.ParsedGrammar compress(byte[] text) {
+        MetricsRegistry.Span span = MetricsRegistry.start("compress");
+        RePairCompressor repair = new RePairCompressor(text);
+        repair.countPairs();
+        Map<Integer, List<Integer>> rules = repair.replacePairs();
+        IntList sequence = repair.remainingSequence();
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, sequence);
+        span.end("RePair compression", grammar, text.length);
+        MetricsRegistry.print("Rules: " + rules.size() + ", sequence length: " + sequence.size());
+        return grammar;
+    }
+
+    /** Links all pair occurrences; the frequency lists are only filled once all counts are known. */
+    private void countPairs() {
+        for (int i = 0; i + 1 < n; i++) {
+            int a = sym[i];
+            int b = sym[i + 1];
+            if (a == b && i > 0 && sym[i - 1] == a && nextOcc[i - 1] != UNLINKED) continue;
+            int pair = findOrCreate(a, b);
+            linkOccurrence(pair, i);
+            freq[pair]++;
+        }
+        for (int pair = 0; pair < records; pair++) {
+            int frequency = freq[pair];
+            freq[pair] = 0;
+            setFrequency(pair, frequency);
+        }
+    }
+
+    private Map<Integer, List<Integer>> replacePairs() {
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        int nextRule = FIRST_RULE;
+        top = maxList;
+        int pair;
+        while ((pair = mostFrequentPair()) != NONE) {
+            int a = left[pair];
+            int b = right[pair];
+            int rule = nextRule++;
+            IntList rhs = new IntList(2);
+            rhs.addInt(a);
+            rhs.addInt(b);
+            rules.put(rule, rhs);
+
+            removeFromList(pair);
+            removeFromTable(a, b);
+            while (firstOcc[pair] != NONE) {
+                int i = firstOcc[pair];
+                unlinkOccurrence(pair, i);
+                replaceAt(pair, i, a, b, rule);
+            }
+            freeRecord(pair);
+        }
+        return rules;
+    }
+
+    /**
+     * Replaces the pair a,b starting at position i by rule, if it is still there. With a == b the
+     * neighbouring pairs may be further occurrences of the pair itself, which is no longer in the
+     * table; those are only unlinked.
+     */
+    private void replaceAt(int pair, int i, int a, int b, int rule) {
+        int j = nextLive(i);
+        if (sym[i] != a || j == NONE || sym[j] != b) return;
+        int h = prevLive(i);
+        int k = nextLive(j);
+
+        if (h != NONE) {
+            if (a == b && sym[h] == a) unlinkIfCounted(pair, h);
+            else removeOccurrence(h);
+        }
+        if (k != NONE) {
+            if (a == b && sym[k] == b) unlinkIfCounted(pair, j);
+            else removeOccurrence(j);
+        }
+
+        sym[i] = rule;
+        kill(i, j, k);
+
+        if (h != NONE) addOccurrence(h, i);
+        if (k != NONE) addOccurrence(i, k);
+    }
+
+    /** Marks position j, the live neighbour of i, as part of the hole between i and k. */
+    private void kill(int i, int j, int k) {
+        sym[j] = DEAD;
+        int holeStart = i + 1;
+        int holeEnd = (k == NONE ? n : k) - 1;
+        nextOcc[holeStart] = k;
+        prevOcc[holeEnd] = i;
+    }
+
+    private int nextLive(int i) {
+        int next = i + 1;
+        if (next >= n) return NONE;
+        return sym[next] != DEAD ? next : nextOcc[next];
+    }
+
+    private int prevLive(int i) {
+        int prev = i - 1;
+        if (prev < 0) return NONE;
+        return sym[prev] != DEAD ? prev : prevOcc[prev];
+    }
+
+    /** Counts the pair at live positions i and j = nextLive(i), unless it overlaps an equal pair. */
+    private void addOccurrence(int i, int j) {
+        int a = sym[i];
+        int b = sym[j];
+        if (a == b) {
+            int h = prevLive(i);
+            if (h != NONE && sym[h] == a && nextOcc[h] != UNLINKED) return;
+        }
+        int pair = findOrCreate(a, b);
+        linkOccurrence(pair, i);
+        setFrequency(pair, freq[pair] + 1);
+    }
+
+    private void linkOccurrence(int pair, int i) {
+        prevOcc[i] = NONE;
+        nextOcc[i] = firstOcc[pair];
+        if (firstOcc[pair] != NONE) prevOcc[firstOcc[pair]] = i;
+        firstOcc[pair] = i;
+    }
+
+    /** Stops counting the pair that starts at live position i, if it is counted. */
+    private void removeOccurrence(int i) {
+        if (nextOcc[i] == UNLINKED) return;
+        int pair = find(sym[i], sym[nextLive(i)]);
+        unlinkOccurrence(pair, i);
+        if (freq[pair] == 1) {
+            removeFromList(pair);
+            removeFromTable(left[pair], right[pair]);
+            freeRecord(pair);
+        } else {
+            setFrequency(pair, freq[pair] - 1);
+        }
+    }
+
+    private void unlinkIfCounted(int pair, int i) {
+        if (nextOcc[i] != UNLINKED) unlinkOccurrence(pair, i);
+    }
+
+    private void unlinkOccurrence(int pair, int i) {
+        if (prevOcc[i] != NONE) nextOcc[prevOcc[i]] = nextOcc[i];
+        else firstOcc[pair] = nextOcc[i];
+        if (nextOcc[i] != NONE) prevOcc[nextOcc[i]] = prevOcc[i];
+        prevOcc[i] = UNLINKED;
+        nextOcc[i] = UNLINKED;
+    }
+
+    /** The most frequent pair occurring at least twice, or NONE. */
+    private int mostFrequentPair() {
+        int best = NONE;
+        for (int pair = heads[maxList]; pair != NONE; pair = nextInList[pair]) {
+            if (best == NONE || freq[pair] > freq[best]) best = pair;
+        }
+        if (best != NONE) return best;
+        while (top >= 2 && heads[top] == NONE) top--;
+        return top >= 2 ? heads[top] : NONE;
+    }
+
+    private void setFrequency(int pair, int frequency) {
+        if (freq[pair] > 0) removeFromList(pair);
+        freq[pair] = frequency;
+        int list = Math.min(frequency, maxList);
+        prevInList[pair] = NONE;
+        nextInList[pair] = heads[list];
+        if (heads[list] != NONE) prevInList[heads[list]] = pair;
+        heads[list] = pair;
+    }
+
+    private void removeFromList(int pair) {
+        int list = Math.min(freq[pair], maxList);
+        if (prevInList[pair] != NONE) nextInList[prevInList[pair]] = nextInList[pair];
+        else heads[list] = nextInList[pair];
+        if (nextInList[pair] != NONE) prevInList[nextInList[pair]] = prevInList[pair];
+    }
+
+    private int findOrCreate(int a, int b) {
+        long key = key(a, b);
+        int slot = slot(key);
+        while (keys[slot] != -1L) {
+            if (keys[slot] == key) return values[slot];
+            slot = (slot + 1) & (keys.length - 1);
+        }
+        int pair = newRecord(a, b);
+        keys[slot] = key;
+        values[slot] = pair;
+        if (++used * 2 > keys.length) rehash();
+        return pair;
+    }
+
+    private int find(int a, int b) {
+        long key = key(a, b);
+        int slot = slot(key);
+        while (keys[slot] != key) slot = (slot + 1) & (keys.length - 1);
+        return values[slot];
+    }
+
+    /** Removes the pair from the hash table, shifting later entries of its probe run back. */
+    private void removeFromTable(int a, int b) {
+        long key = key(a, b);
+        int mask = keys.length - 1;
+        int slot = slot(key);
+        while (keys[slot] != key) slot = (slot + 1) & mask;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; keys[next] != -1L; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            // Move the entry into the gap unless its home lies cyclically in (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+        }
+        keys[gap] = -1L;
+        used--;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(keys, -1L);
+        for (int s = 0; s < oldKeys.length; s++) {
+            if (oldKeys[s] == -1L) continue;
+            int slot = slot(oldKeys[s]);
+            while (keys[slot] != -1L) slot = (slot + 1) & (keys.length - 1);
+            keys[slot] = oldKeys[s];
+            values[slot] = oldValues[s];
+        }
+    }
+
+    private static long key(int a, int b) {
+        return ((long) a << 32) | (b & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (keys.length - 1);
+    }
+
+    private int newRecord(int a, int b) {
+        int pair;
+        if (freeRecord != NONE) {
+            pair = freeRecord;
+            freeRecord = nextInList[pair];
+        } else {
+            if (records == left.length) growRecords();
+            pair = records++;
+        }
+        left[pair] = a;
+        right[pair] = b;
+        freq[pair] = 0;
+        firstOcc[pair] = NONE;
+        return pair;
+    }
+
+    private void freeRecord(int pair) {
+        freq[pair] = 0;
+        nextInList[pair] = freeRecord;
+        freeRecord = pair;
+    }
+
+    private void growRecords() {
+        int capacity = left.length * 2;
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        freq = Arrays.copyOf(freq, capacity);
+        firstOcc = Arrays.copyOf(firstOcc, capacity);
+        prevInList = Arrays.copyOf(prevInList, capacity);
+        nextInList = Arrays.copyOf(nextInList, capacity);
+    }
+
+    private IntList remainingSequence() {
+        IntList sequence = new IntList();
+        for (int i = n > 0 ? 0 : NONE; i != NONE; i = nextLive(i)) sequence.addInt(sym[i]);
+        return sequence;
+    }
+}
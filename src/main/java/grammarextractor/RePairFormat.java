@@ -0,0 +1,292 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reader and writer for the {@code .rp} files of the bundled RePair encoder/decoder.
+ *
+ * <pre>
+ *   uint32 textLength, uint32 nextCode, uint32 sequenceLength   (little-endian)
+ *   bit stream, packed MSB-first into little-endian 32-bit words, last word zero-padded
+ * </pre>
+ *
+ * Every sequence element is stored as the post-order walk of its rule tree. A 1 bit is followed
+ * by a leaf: a terminal or an already known rule, in {@code bitLength(code)} bits where code is
+ * the largest code handed out so far (256 at the start). A 0 bit pops two symbols and creates the
+ * next rule (257, 258, ...) from them; if only one symbol is on the stack, it ends the element
+ * instead. {@code nextCode} in the header is the largest rule id plus one.
+ */
+public class RePairFormat {
+    private static final int HEADER_BYTES = 3 * Integer.BYTES;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** True if the file looks like an .rp file, judged by its name. */
+    public static boolean isRePairFile(Path file) {
+        return file.getFileName().toString().endsWith(".rp");
+    }
+
+    /** Decodes an .rp file into a grammar with rules R257... and lazy metadata. */
+    public static Parser.ParsedGrammar read(Path inputFile) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("parse");
+        try (FileChannel channel = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a readable .rp file: " + inputFile);
+            }
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            file.getInt(); // text length, not needed for decoding
+            int nextCode = file.getInt();
+            int sequenceLength = file.getInt();
+            BitReader in = new BitReader(file);
+
+            int ruleCount = Math.max(0, nextCode - 257);
+            Map<Integer, List<Integer>> rules = new HashMap<>(Math.max(16, (int) (ruleCount / 0.75f) + 1));
+            IntList sequence = new IntList(sequenceLength);
+            int[] stack = new int[64];
+            int code = 256;
+
+            for (int element = 0; element < sequenceLength; element++) {
+                int depth = 0;
+                while (true) {
+                    if (in.readBit() == 1) {
+                        if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+                        stack[depth++] = in.readBits(bitLength(code));
+                    } else if (depth >= 2) {
+                        IntList rhs = new IntList(2);
+                        rhs.addInt(stack[depth - 2]);
+                        rhs.addInt(stack[depth - 1]);
+                        rules.put(++code, rhs);
+                        stack[depth - 2] = code;
+                        depth--;
+                    } else {
+                        break;
+                    }
+                }
+                if (depth != 1) throw new IOException("Corrupt .rp file: empty sequence element " + element);
+                sequence.addInt(stack[0]);
+            }
+
+            Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, sequence);
+            span.end("reading the .rp file", grammar, size);
+            return grammar;
+        }
+    }
+
+    /**
+     * Encodes a grammar as an .rp file. Rules are renumbered in post-order as the format requires.
+     * Rules with more than two symbols are split into a left-deep chain of binary rules, rules
+     * with a single symbol are replaced by that symbol, and empty rules are dropped.
+     */
+    public static void write(Parser.ParsedGrammar grammar, Path outputFile) throws IOException {
+        MetricsRegistry.Span span = MetricsRegistry.start("write");
+        long textLength = Extractor.getUncompressedSize(grammar);
+        if (textLength > 0xFFFFFFFFL) throw new IOException("Text too long for the .rp format: " + textLength);
+
+        Map<Integer, List<Integer>> rules = grammar.grammarRules();
+        int maxRuleId = 255;
+        for (int ruleId : rules.keySet()) maxRuleId = Math.max(maxRuleId, ruleId);
+        // New code of every rule once it has been written, UNKNOWN before, EMPTY if it derives nothing
+        int[] codes = new int[maxRuleId - 255];
+        Arrays.fill(codes, BitWriter.UNKNOWN);
+
+        try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            BitWriter out = new BitWriter(channel);
+            out.position(HEADER_BYTES);
+            int sequenceLength = 0;
+            for (int symbol : grammar.sequence()) {
+                if (out.writeSymbol(symbol, rules, codes)) {
+                    out.writeBit(0);
+                    sequenceLength++;
+                }
+            }
+            out.finish();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt((int) textLength).putInt(out.code + 1).putInt(sequenceLength).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+
+        span.end("writing the .rp file", grammar, Files.size(outputFile));
+    }
+
+    static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    private static final class BitReader {
+        private final ByteBuffer words;
+        private int word;
+        private int available;
+
+        BitReader(ByteBuffer words) {
+            this.words = words;
+        }
+
+        int readBit() throws IOException {
+            if (available == 0) nextWord();
+            return (word >>> --available) & 1;
+        }
+
+        int readBits(int count) throws IOException {
+            int value = 0;
+            while (count > 0) {
+                if (available == 0) nextWord();
+                int take = Math.min(count, available);
+                available -= take;
+                value = (value << take) | ((word >>> available) & ((1 << take) - 1));
+                count -= take;
+            }
+            return value;
+        }
+
+        private void nextWord() throws IOException {
+            if (words.remaining() < Integer.BYTES) throw new IOException("Unexpected end of .rp file");
+            word = words.getInt();
+            available = 32;
+        }
+    }
+
+    private static final class BitWriter {
+        private static final int EMPTY = -1;
+        static final int UNKNOWN = -2;
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+        private int word;
+        private int used;
+        int code = 256;
+
+        // Post-order walk: rule id, index of the next child, symbols pushed so far
+        private int[] frames = new int[3 * 64];
+
+        BitWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void position(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Writes the post-order walk of one symbol. Returns false if the symbol derives the empty
+         * string and nothing was written.
+         */
+        boolean writeSymbol(int symbol, Map<Integer, List<Integer>> rules, int[] codes) throws IOException {
+            int leaf = knownCode(symbol, codes);
+            if (leaf != UNKNOWN) {
+                if (leaf == EMPTY) return false;
+                writeLeaf(leaf);
+                return true;
+            }
+
+            int depth = 0;
+            push(depth++, symbol);
+            int result = EMPTY;
+            while (depth > 0) {
+                int f = 3 * (depth - 1);
+                int ruleId = frames[f];
+                List<Integer> rhs = rules.get(ruleId);
+                if (rhs == null) throw new IOException("Undefined rule " + ruleId);
+
+                if (frames[f + 1] < rhs.size()) {
+                    int child = rhs.get(frames[f + 1]++);
+                    int childCode = knownCode(child, codes);
+                    if (childCode == UNKNOWN) {
+                        push(depth++, child);
+                        continue;
+                    }
+                    if (childCode != EMPTY) {
+                        writeLeaf(childCode);
+                        pushed(f, childCode);
+                    }
+                } else {
+                    // All children written; frames[f + 2] holds the code of the rule or EMPTY
+                    int ruleCode = frames[f + 2];
+                    codes[ruleId - 256] = ruleCode;
+                    depth--;
+                    if (depth > 0) {
+                        if (ruleCode != EMPTY) pushed(3 * (depth - 1), ruleCode);
+                    } else {
+                        result = ruleCode;
+                    }
+                }
+            }
+            return result != EMPTY;
+        }
+
+        // Records that a child with the given code was pushed for frame f, merging it with the
+        // previous children into a new binary rule.
+        private void pushed(int f, int childCode) throws IOException {
+            if (frames[f + 2] == EMPTY) {
+                frames[f + 2] = childCode;
+            } else {
+                writeBit(0);
+                frames[f + 2] = ++code;
+            }
+        }
+
+        private void push(int depth, int ruleId) {
+            int f = 3 * depth;
+            if (f + 3 > frames.length) frames = Arrays.copyOf(frames, frames.length * 2);
+            frames[f] = ruleId;
+            frames[f + 1] = 0;
+            frames[f + 2] = EMPTY;
+        }
+
+        private static int knownCode(int symbol, int[] codes) {
+            if (symbol < 256) return symbol;
+            int i = symbol - 256;
+            return i < codes.length ? codes[i] : UNKNOWN;
+        }
+
+        private void writeLeaf(int leaf) throws IOException {
+            writeBit(1);
+            writeBits(leaf, bitLength(code));
+        }
+
+        void writeBit(int bit) throws IOException {
+            writeBits(bit, 1);
+        }
+
+        void writeBits(int value, int count) throws IOException {
+            while (count > 0) {
+                int take = Math.min(count, 32 - used);
+                int chunk = (value >>> (count - take)) & (int) ((1L << take) - 1);
+                word = take == 32 ? chunk : (word << take) | chunk;
+                used += take;
+                count -= take;
+                if (used == 32) emitWord();
+            }
+        }
+
+        void finish() throws IOException {
+            if (used > 0) {
+                word <<= 32 - used;
+                emitWord();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+            buffer.clear();
+        }
+
+        private void emitWord() throws IOException {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining()) position += channel.write(buffer, position);
+                buffer.clear();
+            }
+            buffer.putInt(word);
+            word = 0;
+            used = 0;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package grammarextractor;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
@@ -15,6 +17,13 @@ import static grammarextractor.Main.formatSymbol;
 public class Recompressor {
 
 
+    /** Receives the phases of every recompression pass as they run, e.g. for {@link ScalingBenchmark}. */
+    public interface PhaseListener {
+        default void phaseStarted(int pass, String phase) {}
+
+        void phaseFinished(int pass, String phase, long nanos);
+    }
+
     public static void recompressNTimes(
             Parser.ParsedGrammar originalGrammar,
             int maxPasses,
@@ -23,14 +32,66 @@ public class Recompressor {
             boolean roundtrip,
             String output
     ) {
-        final String logFile = output + "_logs.txt";
+        recompressNTimes(originalGrammar, maxPasses, verbosity, initializeGrammar, roundtrip, output, null);
+    }
 
-        BufferedWriter logWriter = null;
+    /**
+     * Same as above; {@code listener}, if not null, is told when each phase of a pass (metadata,
+     * frequencies, pick, uncross, replace, prune) starts and how long it took.
+     */
+    public static void recompressNTimes(
+            Parser.ParsedGrammar originalGrammar,
+            int maxPasses,
+            int verbosity,
+            boolean initializeGrammar,
+            boolean roundtrip,
+            String output,
+            PhaseListener listener
+    ) {
         try {
-            // only create log file if verbosity > 0
-            if (verbosity > 0) {
-                logWriter = new BufferedWriter(new FileWriter(logFile, /*append=*/false));
-            }
+            recompress(originalGrammar, maxPasses, verbosity, initializeGrammar, roundtrip, output, verbosity > 0, listener);
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            // the only console print
+            System.out.println("Recompression has finished");
+        }
+    }
+
+    /**
+     * Recompresses like {@link #recompressNTimes}, but always writes the final grammar to
+     * {@code output}, whatever the verbosity, and fails if it cannot be written. Returns the final
+     * grammar.
+     */
+    public static Parser.ParsedGrammar recompressToFile(
+            Parser.ParsedGrammar originalGrammar,
+            int maxPasses,
+            int verbosity,
+            boolean initializeGrammar,
+            boolean roundtrip,
+            Path output
+    ) throws IOException {
+        Parser.ParsedGrammar finalGrammar =
+                recompress(originalGrammar, maxPasses, verbosity, initializeGrammar, roundtrip, output.toString(), true, null);
+        if (!Files.isRegularFile(output)) throw new IOException("Recompressed grammar was not written to " + output);
+        return finalGrammar;
+    }
+
+    private static Parser.ParsedGrammar recompress(
+            Parser.ParsedGrammar originalGrammar,
+            int maxPasses,
+            int verbosity,
+            boolean initializeGrammar,
+            boolean roundtrip,
+            String output,
+            boolean writeOutput,
+            PhaseListener listener
+    ) throws IOException {
+        PhaseListener phases = listener != null ? listener : (pass, phase, nanos) -> {};
+        final String logFile = output + "_logs.txt";
+
+        // only create log file if verbosity > 0
+        try (BufferedWriter logWriter = verbosity > 0 ? new BufferedWriter(new FileWriter(logFile, /*append=*/false)) : null) {
 
             // helper for logging
             BufferedWriter finalLogWriter = logWriter;
@@ -75,7 +136,12 @@ public class Recompressor {
                 log.accept(1, "Grammar size = " + startsize);
             }
 
-            Map<Integer, List<Integer>> rules = new LinkedHashMap<>(initialized.grammarRules());
+            // Rule bodies may be shared with the input (e.g. an excerpt view of a parsed grammar),
+            // so every RHS is copied before the passes start mutating them.
+            Map<Integer, List<Integer>> rules = new LinkedHashMap<>();
+            for (Map.Entry<Integer, List<Integer>> entry : initialized.grammarRules().entrySet()) {
+                rules.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
             List<Integer> sequence = new ArrayList<>(initialized.sequence());
 
             int initialMaxId = rules.keySet().stream().max(Integer::compareTo).orElse(255) + 1;
@@ -83,16 +149,16 @@ public class Recompressor {
             log.accept(2, " Initial nextRuleId = " + initialMaxId);
 
             log.accept(3, " Computing initial metadata...");
-            Map<Integer, RuleMetadata> metadata = RuleMetadata.computeAll(
-                    new Parser.ParsedGrammar(rules, sequence, Collections.emptyMap()),
+            MetadataTable metadata = RuleMetadata.computeAll(
+                    new Parser.ParsedGrammar(rules, sequence, MetadataTable.EMPTY),
                     artificialTerminals
             );
             log.accept(3, RuleMetadata.metadataToString(metadata));
             log.accept(3, "================================");
 
-            String before = null;
+            byte[] before = null;
             if (roundtrip) {
-                before = Decompressor.decompress(buildCombinedGrammar(rules, artificialRules, sequence, metadata));
+                before = Decompressor.decompressToBytes(buildCombinedGrammar(rules, artificialRules, sequence, metadata));
                 log.accept(3, "===  Decompressed BEFORE All Passes ===");
             }
 
@@ -100,30 +166,34 @@ public class Recompressor {
             for (int pass = 1; pass <= maxPasses; pass++) {
                 long passStartNs = System.nanoTime();
                 log.accept(3, "===  Recompression Pass " + pass + " ===");
+                // A view of the grammar being rewritten; its size is only taken for recorded events
+                Parser.ParsedGrammar current = new Parser.ParsedGrammar(rules, sequence, MetadataTable.EMPTY);
 
                 // --- metadata (already timed) ---
+                phases.phaseStarted(pass, "metadata");
                 long metaStartNs = System.nanoTime();
-                metadata = RuleMetadata.computeAll(
-                        new Parser.ParsedGrammar(rules, sequence, Collections.emptyMap()),
-                        artificialTerminals
-                );
-                long metaEndNs = System.nanoTime();
-                log.accept(2, "Time for metadata computation: " +(double) (metaEndNs - metaStartNs) / 1_000_000 + "ms");
+                MetricsRegistry.Span metaSpan = MetricsRegistry.start("metadata", pass);
+                metadata = RuleMetadata.computeAll(current, artificialTerminals);
+                long metaNs = metaSpan.end(null, current, 0);
+                phases.phaseFinished(pass, "metadata", metaNs);
+                log.accept(2, "Time for metadata computation: " +(double) metaNs / 1_000_000 + "ms");
 
                 Parser.ParsedGrammar workingGrammar = new Parser.ParsedGrammar(rules, sequence, metadata);
 
                 // --- bigram frequencies ---
                 log.accept(3, " Computing bigram frequencies...");
-                long freqStartNs = System.nanoTime();
-                Map<Pair<Integer, Integer>, Integer> frequencies =
+                phases.phaseStarted(pass, "frequencies");
+                MetricsRegistry.Span freqSpan = MetricsRegistry.start("frequencies", pass);
+                Map<Pair<Integer, Integer>, Long> frequencies =
                         computeBigramFrequencies(
                                 workingGrammar,
                                 artificialTerminals,
                                 verbosity >= 3,
                                 msg -> log.accept(3, msg)
                         );
-                long freqEndNs = System.nanoTime();
-                log.accept(2, "Time for bigram frequency computation: " +(double) (freqEndNs - freqStartNs) / 1_000_000 + "ms");
+                long freqNs = freqSpan.end(null, current, 0);
+                phases.phaseFinished(pass, "frequencies", freqNs);
+                log.accept(2, "Time for bigram frequency computation: " +(double) freqNs / 1_000_000 + "ms");
 
                 if (frequencies.isEmpty()) {
                     log.accept(3, " No bigrams found. Stopping recompression.");
@@ -131,12 +201,14 @@ public class Recompressor {
                 }
 
                 // --- select most frequent bigram ---
-                long pickStartNs = System.nanoTime();
+                phases.phaseStarted(pass, "pick");
+                MetricsRegistry.Span pickSpan = MetricsRegistry.start("pick", pass);
                 Pair<Integer, Integer> bigram = getMostFrequentBigram(frequencies, artificialTerminals);
-                long pickEndNs = System.nanoTime();
-                log.accept(2, "Time to pick most frequent bigram: " +(double) (pickEndNs - pickStartNs) / 1_000_000 + "ms");
+                long pickNs = pickSpan.end(null, current, 0);
+                phases.phaseFinished(pass, "pick", pickNs);
+                log.accept(2, "Time to pick most frequent bigram: " +(double) pickNs / 1_000_000 + "ms");
 
-                if (bigram == null || frequencies.getOrDefault(bigram, 0) <= 1) {
+                if (bigram == null || frequencies.getOrDefault(bigram, 0L) <= 1) {
                     log.accept(3, "No more compressible bigrams (all <= 1 occurrence).");
                     break;
                 }
@@ -147,25 +219,31 @@ public class Recompressor {
                 int newRuleId = nextRuleId.getAndIncrement();
 
                 // --- uncross ---
-                long uncrossStartNs = System.nanoTime();
+                phases.phaseStarted(pass, "uncross");
+                MetricsRegistry.Span uncrossSpan = MetricsRegistry.start("uncross", pass);
                 uncrossBigrams(c1, c2, rules, metadata, artificialTerminals);
-                long uncrossEndNs = System.nanoTime();
-                log.accept(2, "Time for uncrossing bigrams: " +(double) (uncrossEndNs - uncrossStartNs) / 1_000_000 + "ms");
+                long uncrossNs = uncrossSpan.end(null, current, 0);
+                phases.phaseFinished(pass, "uncross", uncrossNs);
+                log.accept(2, "Time for uncrossing bigrams: " +(double) uncrossNs / 1_000_000 + "ms");
 
                 // --- replace ---
-                long replaceStartNs = System.nanoTime();
+                phases.phaseStarted(pass, "replace");
+                MetricsRegistry.Span replaceSpan = MetricsRegistry.start("replace", pass);
                 replaceBigramInRules(c1, c2, newRuleId, rules, artificialTerminals);
-                long replaceEndNs = System.nanoTime();
-                log.accept(2, "Time for replacing bigram with new rule: " +(double) (replaceEndNs - replaceStartNs) / 1_000_000 + "ms");
+                long replaceNs = replaceSpan.end(null, current, 0);
+                phases.phaseFinished(pass, "replace", replaceNs);
+                log.accept(2, "Time for replacing bigram with new rule: " +(double) replaceNs / 1_000_000 + "ms");
 
                 artificialRules.put(newRuleId, List.of(c1, c2));
                 artificialTerminals.add(newRuleId);
 
                 // --- prune redundant rules ---
-                long pruneStartNs = System.nanoTime();
+                phases.phaseStarted(pass, "prune");
+                MetricsRegistry.Span pruneSpan = MetricsRegistry.start("prune", pass);
                 removeRedundantRules(rules, sequence);
-                long pruneEndNs = System.nanoTime();
-                log.accept(2, "Time for removing redundant rules: " +(double) (pruneEndNs - pruneStartNs) / 1_000_000 + "ms");
+                long pruneNs = pruneSpan.end(null, current, 0);
+                phases.phaseFinished(pass, "prune", pruneNs);
+                log.accept(2, "Time for removing redundant rules: " +(double) pruneNs / 1_000_000 + "ms");
 
                 // --- per-pass total (before roundtrip to isolate transform time) ---
                 long preRoundtripEndNs = System.nanoTime();
@@ -180,11 +258,11 @@ public class Recompressor {
                     log.accept(2, "Time to build combined grammar: " +(double) (buildEndNs - buildStartNs) / 1_000_000 + "ms");
 
                     long decompStartNs = System.nanoTime();
-                    String after = Decompressor.decompress(combined);
+                    byte[] after = Decompressor.decompressToBytes(combined);
                     long decompEndNs = System.nanoTime();
                     log.accept(2, "Time to decompress for roundtrip: " +(double) (decompEndNs - decompStartNs) / 1_000_000 + "ms");
 
-                    if (!before.equals(after)) {
+                    if (!Arrays.equals(before, after)) {
                         log.accept(3, "Roundtrip mismatch detected! Stopping at pass " + pass);
                         break;
                     }
@@ -193,6 +271,7 @@ public class Recompressor {
                 }
 
                 long passEndNs = System.nanoTime();
+                MetricsRegistry.recordNanos("pass", passEndNs - passStartNs);
                 log.accept(1, "Time required for Pass " + pass + ": " +(double) (passEndNs - passStartNs) / 1_000_000 + "ms");
 
                 if (verbosity > 0) {
@@ -203,7 +282,7 @@ public class Recompressor {
             }
 
             removeRedundantRules(rules, sequence);
-            metadata = RuleMetadata.computeAll(new Parser.ParsedGrammar(rules, sequence, Collections.emptyMap()), artificialTerminals);
+            metadata = RuleMetadata.computeAll(new Parser.ParsedGrammar(rules, sequence, MetadataTable.EMPTY), artificialTerminals);
             log.accept(3, "Updated metadata:");
             log.accept(3, RuleMetadata.metadataToString(metadata));
 
@@ -213,8 +292,8 @@ public class Recompressor {
 
             if (roundtrip) {
                 log.accept(3, "Performing final roundtrip comparison...");
-                String finalResult = Decompressor.decompress(finalGrammar);
-                if (before != null && !finalResult.equals(before)) {
+                byte[] finalResult = Decompressor.decompressToBytes(finalGrammar);
+                if (before != null && !Arrays.equals(finalResult, before)) {
                     log.accept(3, "Final roundtrip mismatch detected after all passes!");
                 } else {
                     log.accept(3, "Final roundtrip result matches original input.");
@@ -229,39 +308,14 @@ public class Recompressor {
             log.accept(1, "Time required in total: " +(double) (endTime - startTime) / 1_000_000 + "ms");
 
             // Write final grammar to file
-            if (verbosity > 0) {
-                try (FileWriter writer = new FileWriter(output)) {
-                    StringBuilder sb = new StringBuilder();
-                    for (Map.Entry<Integer, List<Integer>> entry : finalGrammar.grammarRules().entrySet()) {
-                        sb.append("R").append(entry.getKey()).append(": ");
-                        String rhs = entry.getValue().stream().map(Object::toString).collect(Collectors.joining(","));
-                        sb.append(rhs).append("\n");
-                    }
-                    sb.append("SEQ:");
-                    for (int i = 0; i < finalGrammar.sequence().size(); i++) {
-                        sb.append(finalGrammar.sequence().get(i));
-                        if (i != finalGrammar.sequence().size() - 1) sb.append(",");
-                    }
-                    sb.append("\n\n");
-                    writer.write(sb.toString());
-                    log.accept(2, "Final grammar and stats written to " + output);
-                } catch (IOException e) {
-                    // ignore
+            if (writeOutput) {
+                try (GrammarWriter writer = GrammarWriter.open(Path.of(output))) {
+                    writer.writeText(finalGrammar, ": ");
+                    writer.writeByte('\n');
                 }
+                log.accept(2, "Final grammar and stats written to " + output);
             }
-
-            if (verbosity > 0) {
-                try { logWriter.flush(); } catch (IOException ignore) {}
-            }
-
-        } catch (IOException e) {
-            // ignore
-        } finally {
-            if (logWriter != null) {
-                try { logWriter.close(); } catch (IOException ignore) {}
-            }
-            // the only console print
-            System.out.println("Recompression has finished");
+            return finalGrammar;
         }
     }
 
@@ -274,7 +328,7 @@ public class Recompressor {
             Map<Integer, List<Integer>> rules,
             Map<Integer, List<Integer>> artificialRules,
             List<Integer> sequence,
-            Map<Integer, RuleMetadata> metadata
+            MetadataTable metadata
     ) {
         Map<Integer, List<Integer>> merged = new LinkedHashMap<>(rules);
         merged.putAll(artificialRules);
@@ -332,8 +386,8 @@ public class Recompressor {
         }
 
         // Step 5: Recompute metadata
-        Parser.ParsedGrammar normalizedPartial = new Parser.ParsedGrammar(normalizedRules, normalizedSequence, Collections.emptyMap());
-        Map<Integer, RuleMetadata> newMetadata = RuleMetadata.computeAll(normalizedPartial, Collections.emptySet());
+        Parser.ParsedGrammar normalizedPartial = new Parser.ParsedGrammar(normalizedRules, normalizedSequence, MetadataTable.EMPTY);
+        MetadataTable newMetadata = RuleMetadata.computeAll(normalizedPartial, Collections.emptySet());
 
         return new Parser.ParsedGrammar(normalizedRules, normalizedSequence, newMetadata);
     }
@@ -345,7 +399,7 @@ public class Recompressor {
      */
     private static List<Integer> buildContext(
             List<Integer> rhs,
-            Map<Integer, RuleMetadata> metadata,
+            MetadataTable metadata,
             Set<Integer> artificialTerminals
     ) {
         if (rhs.isEmpty()) return new ArrayList<>();
@@ -359,11 +413,10 @@ public class Recompressor {
             context.add(firstElement);
         } else {
             // Non-terminal - get its rightmost run
-            RuleMetadata firstMeta = metadata.get(firstElement);
-            if (firstMeta != null) {
-                int rightTerminal = firstMeta.getRightmostTerminal();
-                int rightRunLen = firstMeta.getRightRunLength();
-                for (int i = 0; i < rightRunLen; i++) {
+            if (metadata.contains(firstElement)) {
+                int rightTerminal = metadata.rightmostTerminal(firstElement);
+                long rightRunLen = metadata.rightRunLength(firstElement);
+                for (long i = 0; i < rightRunLen; i++) {
                     context.add(rightTerminal);
                 }
             }
@@ -382,11 +435,10 @@ public class Recompressor {
                 context.add(lastElement);
             } else {
                 // Non-terminal - get its leftmost run
-                RuleMetadata lastMeta = metadata.get(lastElement);
-                if (lastMeta != null) {
-                    int leftTerminal = lastMeta.getLeftmostTerminal();
-                    int leftRunLen = lastMeta.getLeftRunLength();
-                    for (int i = 0; i < leftRunLen; i++) {
+                if (metadata.contains(lastElement)) {
+                    int leftTerminal = metadata.leftmostTerminal(lastElement);
+                    long leftRunLen = metadata.leftRunLength(lastElement);
+                    for (long i = 0; i < leftRunLen; i++) {
                         context.add(leftTerminal);
                     }
                 }
@@ -504,23 +556,22 @@ public class Recompressor {
     /**
      * Computes frequencies of non-repeating bigrams (c1 != c2) for the grammar.
      */
-    public static Map<Pair<Integer, Integer>, Integer> computeNonRepeatingFrequencies(
+    public static Map<Pair<Integer, Integer>, Long> computeNonRepeatingFrequencies(
             Parser.ParsedGrammar grammar,
             Set<Integer> artificialTerminals,
             boolean verbose,
             Consumer<String> log
     ) {
-        Map<Pair<Integer, Integer>, Integer> bigramFreqs = new HashMap<>();
+        Map<Pair<Integer, Integer>, Long> bigramFreqs = new HashMap<>();
         Map<Integer, List<Integer>> rules = grammar.grammarRules();
-        Map<Integer, RuleMetadata> metadata = grammar.metadata();
+        MetadataTable metadata = grammar.metadata();
 
         for (Map.Entry<Integer, List<Integer>> entry : rules.entrySet()) {
             int ruleId = entry.getKey();
             if (artificialTerminals.contains(ruleId)) continue; // Skip artificial rules
 
-            RuleMetadata xMeta = metadata.get(ruleId);
-            if (xMeta == null) continue;
-            int vocc = xMeta.getVocc();
+            if (!metadata.contains(ruleId)) continue;
+            long vocc = metadata.vocc(ruleId);
 
             List<Integer> rhs = entry.getValue();
             if (rhs == null || rhs.isEmpty()) continue;
@@ -537,7 +588,7 @@ public class Recompressor {
                 int c1 = context.get(i);
                 int c2 = context.get(i + 1);
                 if (c1 != c2) {
-                    bigramFreqs.merge(Pair.of(c1, c2), vocc, Integer::sum);
+                    bigramFreqs.merge(Pair.of(c1, c2), vocc, Long::sum);
                     if (verbose || log != null) {
                         log.accept("added non-repeating pair (" + c1 + "," + c2 + ") " + vocc + " times");
                     }
@@ -557,24 +608,23 @@ public class Recompressor {
      * - Prefix/suffix blocks of val(X) are ignored if they belong to child variables
      *   that are single-block nonterminals (All required info is pulled from the metadata).
      */
-    public static Map<Pair<Integer, Integer>, Integer> computeRepeatingFrequencies(
+    public static Map<Pair<Integer, Integer>, Long> computeRepeatingFrequencies(
             Parser.ParsedGrammar grammar,
             Set<Integer> artificialTerminals,
             boolean verbose,
             Consumer<String> log
     ) {
-        Map<Pair<Integer, Integer>, Integer> freqMap = new HashMap<>();
+        Map<Pair<Integer, Integer>, Long> freqMap = new HashMap<>();
         Map<Integer, List<Integer>> rules = grammar.grammarRules();
-        Map<Integer, RuleMetadata> metadata = grammar.metadata();
+        MetadataTable metadata = grammar.metadata();
 
         for (Map.Entry<Integer, List<Integer>> entry : rules.entrySet()) {
             int Y = entry.getKey();
             if (artificialTerminals.contains(Y)) continue;
 
-            RuleMetadata yMeta = metadata.get(Y);
-            if (yMeta == null) continue;
+            if (!metadata.contains(Y)) continue;
 
-            int vocc = yMeta.getVocc();
+            long vocc = metadata.vocc(Y);
             List<Integer> rhs = entry.getValue();
             if (rhs == null || rhs.isEmpty()) continue;
 
@@ -604,9 +654,9 @@ public class Recompressor {
                     boolean isSuffixRun = (j == context.size() && rightIsTerminalOrSingleBlock);
 
                     if (!isPrefixRun && !isSuffixRun) {
-                        int add = (d / 2) * vocc;
+                        long add = (d / 2) * vocc;
                         if (add > 0) {
-                            freqMap.merge(Pair.of(c, c), add, Integer::sum);
+                            freqMap.merge(Pair.of(c, c), add, Long::sum);
                             if (verbose || log != null) {
                                 log.accept("added repeating pair (" + c + "," + c + ") " + add + " times"
                                         + " [run length=" + d + ", vocc=" + vocc + "]");
@@ -628,14 +678,13 @@ public class Recompressor {
     //Helper for repeating bigrams and prefix/suffix logic
     private static boolean isTerminalOrSingleBlock(
             int symbol,
-            Map<Integer, RuleMetadata> metadata,
+            MetadataTable metadata,
             Set<Integer> artificialTerminals
     ) {
         if (symbol < 256 || artificialTerminals.contains(symbol)) {
             return true;
         }
-        RuleMetadata m = metadata.get(symbol);
-        return m != null && m.isSingleBlock();
+        return metadata.contains(symbol) && metadata.isSingleBlock(symbol);
     }
 
 
@@ -659,20 +708,20 @@ public class Recompressor {
 //        return merged;
 //    }
 
-    public static Map<Pair<Integer, Integer>, Integer> computeBigramFrequencies(
+    public static Map<Pair<Integer, Integer>, Long> computeBigramFrequencies(
             Parser.ParsedGrammar grammar,
             Set<Integer> artificialTerminals,
             boolean verbose,
             Consumer<String> log
     ) {
-        Map<Pair<Integer, Integer>, Integer> nonRep =
+        Map<Pair<Integer, Integer>, Long> nonRep =
                 computeNonRepeatingFrequencies(grammar, artificialTerminals, verbose, log);
-        Map<Pair<Integer, Integer>, Integer> rep =
+        Map<Pair<Integer, Integer>, Long> rep =
                 computeRepeatingFrequencies(grammar, artificialTerminals, verbose, log);
 
-        Map<Pair<Integer, Integer>, Integer> merged = new HashMap<>(nonRep);
-        for (Map.Entry<Pair<Integer, Integer>, Integer> e : rep.entrySet()) {
-            merged.merge(e.getKey(), e.getValue(), Integer::sum);
+        Map<Pair<Integer, Integer>, Long> merged = new HashMap<>(nonRep);
+        for (Map.Entry<Pair<Integer, Integer>, Long> e : rep.entrySet()) {
+            merged.merge(e.getKey(), e.getValue(), Long::sum);
         }
 
         if (verbose && log != null) {
@@ -730,7 +779,7 @@ public class Recompressor {
         Set<Integer> artificialTerminals = new HashSet<>();
 
         return new InitializedGrammar(
-                new Parser.ParsedGrammar(newRules, newSeq, Collections.emptyMap()),
+                new Parser.ParsedGrammar(newRules, newSeq, MetadataTable.EMPTY),
                 artificialTerminals
         );
     }
@@ -741,7 +790,7 @@ public class Recompressor {
             int c1,
             int c2,
             Map<Integer, List<Integer>> rules,
-            Map<Integer, RuleMetadata> metadata,
+            MetadataTable metadata,
             Set<Integer> artificialTerminals
     ) {
         if (c1 == c2) {
@@ -758,7 +807,7 @@ private static void uncrossNonRepeating(
         int c1,
         int c2,
         Map<Integer, List<Integer>> rules,
-        Map<Integer, RuleMetadata> metadata,
+        MetadataTable metadata,
         Set<Integer> artificialTerminals
 ) {
     for (Map.Entry<Integer, List<Integer>> e : rules.entrySet()) {
@@ -790,8 +839,7 @@ private static void uncrossNonRepeating(
 
             //Effective popInlet for the left side of the RHS.
             if (isVariable(sym, rules, artificialTerminals)) {
-                RuleMetadata meta = metadata.get(sym);
-                if (meta != null && meta.getLeftmostTerminal() == c2 && !isFirstPos) {
+                if (metadata.contains(sym) && metadata.leftmostTerminal(sym) == c2 && !isFirstPos) {
                     newRhs.add(c2);
                 }
             }
@@ -801,8 +849,7 @@ private static void uncrossNonRepeating(
 
             //Effective popInlet for the right side of the RHS.
             if (isVariable(sym, rules, artificialTerminals)) {
-                RuleMetadata meta = metadata.get(sym);
-                if (meta != null && meta.getRightmostTerminal() == c1 && !isLastPos) {
+                if (metadata.contains(sym) && metadata.rightmostTerminal(sym) == c1 && !isLastPos) {
                     newRhs.add(c1);
                 }
             }
@@ -817,7 +864,7 @@ private static void uncrossNonRepeating(
     private static void uncrossRepeating(
             int c,
             Map<Integer, List<Integer>> rules,
-            Map<Integer, RuleMetadata> metadata,
+            MetadataTable metadata,
             Set<Integer> artificialTerminals
     ) {
         for (Map.Entry<Integer, List<Integer>> e : rules.entrySet()) {
@@ -865,9 +912,8 @@ private static void uncrossNonRepeating(
 
                 // Pop-in on left
                 if (isVariable(sym, rules, artificialTerminals)) {
-                    RuleMetadata m = metadata.get(sym);
-                    if (m != null && m.getLeftmostTerminal() == c && !isFirst) {
-                        for (int j = 0; j < m.getLeftRunLength(); j++) {
+                    if (metadata.contains(sym) && metadata.leftmostTerminal(sym) == c && !isFirst) {
+                        for (long j = 0; j < metadata.leftRunLength(sym); j++) {
                             newRhs.add(c);
                         }
                     }
@@ -878,9 +924,8 @@ private static void uncrossNonRepeating(
 
                 // Pop-in on right
                 if (isVariable(sym, rules, artificialTerminals)) {
-                    RuleMetadata m = metadata.get(sym);
-                    if (m != null && m.getRightmostTerminal() == c && !isLast) {
-                        for (int j = 0; j < m.getRightRunLength(); j++) {
+                    if (metadata.contains(sym) && metadata.rightmostTerminal(sym) == c && !isLast) {
+                        for (long j = 0; j < metadata.rightRunLength(sym); j++) {
                             newRhs.add(c);
                         }
                     }
@@ -894,16 +939,15 @@ private static void uncrossNonRepeating(
     private static boolean isSingleBlockOf(
             int symbol,
             int targetTerminal,
-            Map<Integer, RuleMetadata> metadata,
+            MetadataTable metadata,
             Set<Integer> artificialTerminals
     ) {
         if (symbol < 256 || artificialTerminals.contains(symbol)) {
             return symbol == targetTerminal;
         }
-        RuleMetadata m = metadata.get(symbol);
-        return m != null && m.isSingleBlock()
-                && m.getLeftmostTerminal() == targetTerminal
-                && m.getRightmostTerminal() == targetTerminal;
+        return metadata.contains(symbol) && metadata.isSingleBlock(symbol)
+                && metadata.leftmostTerminal(symbol) == targetTerminal
+                && metadata.rightmostTerminal(symbol) == targetTerminal;
     }
 
 
@@ -1057,15 +1101,15 @@ private static void uncrossNonRepeating(
 
     //As a tie breaker decide which one to keep according to Lexicographical Order.
     public static Pair<Integer, Integer> getMostFrequentBigram(
-            Map<Pair<Integer, Integer>, Integer> frequencies,
+            Map<Pair<Integer, Integer>, Long> frequencies,
             Set<Integer> artificialTerminals // unused
     ) {
         Pair<Integer, Integer> best = null;
-        int bestCount = Integer.MIN_VALUE;
+        long bestCount = Long.MIN_VALUE;
 
-        for (Map.Entry<Pair<Integer, Integer>, Integer> e : frequencies.entrySet()) {
+        for (Map.Entry<Pair<Integer, Integer>, Long> e : frequencies.entrySet()) {
             Pair<Integer, Integer> bg = e.getKey();
-            int count = e.getValue();
+            long count = e.getValue();
 
             if (count > bestCount
                     || (count == bestCount
@@ -1,20 +1,28 @@
 package grammarextractor;
 
 import java.util.*;
+import java.util.function.IntFunction;
 
 import static grammarextractor.Main.formatSymbol;
 
+/**
+ * Metadata of a single rule. Lengths, vocc and run lengths are 64-bit, since highly compressible
+ * grammars (e.g. Fibonacci words) expand far beyond 2^31 symbols.
+ *
+ * Grammars keep their metadata in a {@link MetadataTable}; instances of this class are views of
+ * one table entry (for printing) or hold the metadata of rules created during extraction.
+ */
 public class RuleMetadata {
-    private final int vocc;
-    private final int length;
+    private final long vocc;
+    private final long length;
+    private final long leftRunLength;
+    private final long rightRunLength;
     private final int leftmostTerminal;
     private final int rightmostTerminal;
     private final boolean isSB;
-    private final int leftRunLength;
-    private final int rightRunLength;
 
-    public RuleMetadata(int vocc, int length, int leftmostTerminal, int rightmostTerminal,
-                        boolean isSB, int leftRunLength, int rightRunLength) {
+    public RuleMetadata(long vocc, long length, int leftmostTerminal, int rightmostTerminal,
+                        boolean isSB, long leftRunLength, long rightRunLength) {
         this.vocc = vocc;
         this.length = length;
         this.leftmostTerminal = leftmostTerminal;
@@ -24,308 +32,305 @@ public class RuleMetadata {
         this.rightRunLength = rightRunLength;
     }
 
-    public int getVocc() { return vocc; }
-    public int getLength() { return length; }
+    public long getVocc() { return vocc; }
+    public long getLength() { return length; }
     public int getLeftmostTerminal() { return leftmostTerminal; }
     public int getRightmostTerminal() { return rightmostTerminal; }
     public boolean isSingleBlock() { return isSB; }
-    public int getLeftRunLength() { return leftRunLength; }
-    public int getRightRunLength() { return rightRunLength; }
+    public long getLeftRunLength() { return leftRunLength; }
+    public long getRightRunLength() { return rightRunLength; }
 
     /**
-     * Compute metadata for all rules in the grammar.
+     * Returns a copy of this metadata with a different vocc. Length, terminals, the single-block
+     * flag and the run lengths only depend on the rule body, so they stay valid for any grammar
+     * that contains the rule unchanged.
      */
-    public static Map<Integer, RuleMetadata> computeAll(Parser.ParsedGrammar grammar, Set<Integer> artificialTerminals) {
-        Map<Integer, List<Integer>> rules = grammar.grammarRules();
-        List<Integer> sequence = grammar.sequence();
-        Map<Integer, RuleMetadata> meta = new HashMap<>();
-
-        // Compute vocc for all rules
-        Map<Integer, Integer> allVocc = computeVocc(rules, sequence);
-
-        // Memoization maps
-        Map<Integer, Integer> lenMemo = new HashMap<>();
-        Map<Integer, Integer> leftTermMemo = new HashMap<>();
-        Map<Integer, Integer> rightTermMemo = new HashMap<>();
-        Map<Integer, Integer> sbMemo = new HashMap<>();
-        Map<Integer, Integer> leftRunMemo = new HashMap<>();
-        Map<Integer, Integer> rightRunMemo = new HashMap<>();
+    public RuleMetadata withVocc(long newVocc) {
+        return new RuleMetadata(newVocc, length, leftmostTerminal, rightmostTerminal, isSB, leftRunLength, rightRunLength);
+    }
 
-        // Precompute lengths for all rules
+    /**
+     * Compute metadata for all rules in the grammar. Rules are visited once in topological order,
+     * children before parents, so every RHS symbol is already in the table when its parent is
+     * computed.
+     */
+    public static MetadataTable computeAll(Parser.ParsedGrammar grammar, Set<Integer> artificialTerminals) {
+        Map<Integer, List<Integer>> rules = grammar.grammarRules();
+        MetadataTable table = new MetadataTable(maxRuleId(rules));
         for (int ruleId : rules.keySet()) {
-            computeLength(ruleId, rules, lenMemo, new HashSet<>(),artificialTerminals);
+            table.set(ruleId, 0, 0, -1, -1, false, 0, 0);
         }
-
-        // Compute all metadata for each rule
-        for (int ruleId : rules.keySet()) {
-            int vocc = allVocc.getOrDefault(ruleId, 0);
-            int length = lenMemo.getOrDefault(ruleId, 0);
-            int leftTerm = computeFirstTerminal(ruleId, rules, leftTermMemo, artificialTerminals);
-            int rightTerm = computeLastTerminal(ruleId, rules, rightTermMemo, artificialTerminals);
-            boolean isSB = isSingleBlock(ruleId, rules, sbMemo, leftTermMemo, rightTermMemo, artificialTerminals);
-            int leftRun = computeLeftRun(ruleId, rules, leftRunMemo, leftTermMemo, lenMemo, artificialTerminals, new HashSet<>());
-            int rightRun = computeRightRun(ruleId, rules, rightRunMemo, rightTermMemo, lenMemo, artificialTerminals, new HashSet<>());
-
-            meta.put(ruleId, new RuleMetadata(vocc, length, leftTerm, rightTerm, isSB, leftRun, rightRun));
+        List<Integer>[] bodies = bodies(rules, table);
+        int[] order = topologicalOrder(bodies, table);
+
+        for (int k = order.length - 1; k >= 0; k--) {
+            int ruleId = order[k];
+            if (isTerminalOrArtificial(ruleId, artificialTerminals)) {
+                table.set(ruleId, 0, 0, ruleId, ruleId, true, 1, 1);
+            } else {
+                computeStructural(ruleId, bodies[ruleId - 256], table, artificialTerminals);
+            }
         }
 
-        return meta;
+        computeVocc(bodies, grammar.sequence(), table, order);
+        return table;
     }
+
     /**
-     * Computes the virtual occurrences (vocc) of each rule in the grammar.
-     * A rule's vocc is the total number of times it is expanded, starting from the main sequence.
-     * This is calculated by summing its direct occurrences in the sequence and all its indirect
-     * occurrences from other rules that use it. The method uses a topological sort of the grammar
-     * dependency graph to ensure counts are propagated correctly.
-     *
-     * @param rules The grammar rules, mapping a rule ID to its right-hand side (RHS) symbols.
-     * @param sequence The initial sequence of symbols that forms the root of the derivation.
-     * @return A map from each rule ID to its total virtual occurrence count.
+     * Compute metadata for a grammar whose rules were all copied unchanged from a parent grammar
+     * (e.g. an excerpt). The structural fields are taken over from the parent metadata and only
+     * vocc is recomputed, in one topological pass over the given rules. Falls back to
+     * {@link #computeAll} if the parent has no metadata for one of the rules.
      */
-    private static Map<Integer, Integer> computeVocc(Map<Integer, List<Integer>> rules, List<Integer> sequence) {
-        Map<Integer, Integer> vocc = new HashMap<>();
-        Map<Integer, Integer> inDegree = new HashMap<>();
-        List<Integer> processingOrder = new ArrayList<>();
-        Queue<Integer> queue = new LinkedList<>();
+    public static MetadataTable inheritFromParent(Parser.ParsedGrammar grammar, MetadataTable parentMetadata) {
+        return inheritFromParent(grammar, parentMetadata, Collections.emptyMap());
+    }
 
-        //Initialize in-degree and vocc maps for all non-terminals.
+    /**
+     * Same as {@link #inheritFromParent(Parser.ParsedGrammar, MetadataTable)}, but rules that do not
+     * exist in the parent (e.g. boundary rules created during extraction) take their structural
+     * metadata from {@code newRuleMetadata}.
+     */
+    public static MetadataTable inheritFromParent(Parser.ParsedGrammar grammar,
+                                                  MetadataTable parentMetadata,
+                                                  Map<Integer, RuleMetadata> newRuleMetadata) {
+        Map<Integer, List<Integer>> rules = grammar.grammarRules();
         for (int ruleId : rules.keySet()) {
-            inDegree.put(ruleId, 0);
-            vocc.put(ruleId, 0);
-        }
-
-        //Calculate the in-degree for each rule, which is the number of times it's used by other rules.
-        for (List<Integer> rhs : rules.values()) {
-            for (int symbol : rhs) {
-                if (inDegree.containsKey(symbol)) { // Check if the symbol is a non-terminal.
-                    inDegree.put(symbol, inDegree.get(symbol) + 1);
-                }
+            if (!newRuleMetadata.containsKey(ruleId) && !parentMetadata.contains(ruleId)) {
+                return computeAll(grammar, Collections.emptySet());
             }
         }
 
-        //Initialize the queue for topological sort with rules that have an in-degree of 0.
-        // These are the "top-level" rules not used by any other rules.
-        for (Map.Entry<Integer, Integer> entry : inDegree.entrySet()) {
-            if (entry.getValue() == 0) {
-                queue.add(entry.getKey());
+        MetadataTable table = new MetadataTable(maxRuleId(rules));
+        for (int ruleId : rules.keySet()) {
+            RuleMetadata structural = newRuleMetadata.get(ruleId);
+            if (structural != null) {
+                table.set(ruleId, structural);
+            } else {
+                table.copyFrom(parentMetadata, ruleId, ruleId);
             }
         }
+        List<Integer>[] bodies = bodies(rules, table);
+        computeVocc(bodies, grammar.sequence(), table, topologicalOrder(bodies, table));
+        return table;
+    }
 
-        //Build the topological processing order using Kahn's algorithm.
-        while (!queue.isEmpty()) {
-            int u = queue.poll();
-            processingOrder.add(u);
-
-            // For each rule used by u, decrement its in-degree.
-            for (int v : rules.get(u)) {
-                if (inDegree.containsKey(v)) { // If v is a non-terminal.
-                    int newDegree = inDegree.get(v) - 1;
-                    inDegree.put(v, newDegree);
-                    if (newDegree == 0) {
-                        queue.add(v);
-                    }
-                }
-            }
+    /**
+     * Derives the structural metadata of a new rule from the metadata of its RHS symbols, without
+     * walking further down the grammar. vocc is left at 0. Gives the same result as
+     * {@link #computeAll} without artificial terminals.
+     */
+    public static RuleMetadata fromChildren(List<Integer> rhs, IntFunction<RuleMetadata> metadata) {
+        long length = 0;
+        int leftTerm = -1;
+        int rightTerm = -1;
+        for (int sym : rhs) {
+            length += lengthOf(sym, metadata);
+            if (leftTerm == -1) leftTerm = firstTerminalOf(sym, metadata);
         }
-
-        // A cycle is present if not all rules are in the processing order.
-        if (processingOrder.size() != rules.size()) {
-            System.err.println("Warning: Cycle detected in grammar rules. Vocc calculation may be incomplete for rules in a cycle.");
+        for (int i = rhs.size() - 1; i >= 0 && rightTerm == -1; i--) {
+            rightTerm = lastTerminalOf(rhs.get(i), metadata);
         }
 
-        //Initialize vocc with direct occurrences in the main sequence.
-        for (int symbol : sequence) {
-            if (vocc.containsKey(symbol)) {
-                vocc.put(symbol, vocc.get(symbol) + 1);
-            }
+        boolean isSB = leftTerm != -1 && leftTerm == rightTerm;
+        for (int sym : rhs) {
+            if (!isSB) break;
+            isSB = singleBlockOf(sym, metadata) && firstTerminalOf(sym, metadata) == leftTerm;
         }
 
-        //Propagate counts through the grammar according to the topological order.
-        for (int u : processingOrder) {
-            int voccOfU = vocc.get(u);
-            if (voccOfU == 0) {
-                continue; // This rule never occurs, so it can't contribute to others.
+        long leftRun = 0;
+        if (leftTerm != -1) {
+            for (int sym : rhs) {
+                if (firstTerminalOf(sym, metadata) != leftTerm) break;
+                long subRun = sym < 256 ? 1 : metadata.apply(sym).getLeftRunLength();
+                leftRun += subRun;
+                if (subRun < lengthOf(sym, metadata)) break;
             }
+        }
 
-            // Add this rule's vocc to the vocc of each non-terminal it uses.
-            for (int v : rules.get(u)) {
-                if (vocc.containsKey(v)) {
-                    vocc.put(v, vocc.get(v) + voccOfU);
-                }
+        long rightRun = 0;
+        if (rightTerm != -1) {
+            for (int i = rhs.size() - 1; i >= 0; i--) {
+                int sym = rhs.get(i);
+                if (lastTerminalOf(sym, metadata) != rightTerm) break;
+                long subRun = sym < 256 ? 1 : metadata.apply(sym).getRightRunLength();
+                rightRun += subRun;
+                if (subRun < lengthOf(sym, metadata)) break;
             }
         }
 
-        return vocc;
+        return new RuleMetadata(0, length, leftTerm, rightTerm, isSB, leftRun, rightRun);
     }
 
+    private static long lengthOf(int sym, IntFunction<RuleMetadata> metadata) {
+        return sym < 256 ? 1 : metadata.apply(sym).getLength();
+    }
 
+    private static int firstTerminalOf(int sym, IntFunction<RuleMetadata> metadata) {
+        return sym < 256 ? sym : metadata.apply(sym).getLeftmostTerminal();
+    }
 
-    private static boolean isTerminalOrArtificial(int sym, Set<Integer> artificialTerminals) {
-        return sym < 256 || (artificialTerminals != null && artificialTerminals.contains(sym));
+    private static int lastTerminalOf(int sym, IntFunction<RuleMetadata> metadata) {
+        return sym < 256 ? sym : metadata.apply(sym).getRightmostTerminal();
     }
 
-    private static int computeLength(int id, Map<Integer, List<Integer>> rules,
-                                     Map<Integer, Integer> memo, Set<Integer> visited,Set<Integer> artificialTerminals) {
-        if (isTerminalOrArtificial(id,artificialTerminals ) ) return 1;
-        if (memo.containsKey(id)) return memo.get(id);
-        if (!rules.containsKey(id)) return 0;
-        if (!visited.add(id)) return 0; // cycle guard
-
-        int len = 0;
-        for (int sym : rules.get(id)) len += computeLength(sym, rules, memo, visited,artificialTerminals);
-        visited.remove(id);
-        memo.put(id, len);
-        return len;
+    private static boolean singleBlockOf(int sym, IntFunction<RuleMetadata> metadata) {
+        return sym < 256 || metadata.apply(sym).isSingleBlock();
     }
 
-    private static int computeFirstTerminal(int id, Map<Integer, List<Integer>> rules,
-                                            Map<Integer, Integer> memo, Set<Integer> artificialTerminals) {
-        if (isTerminalOrArtificial(id, artificialTerminals)) return id;
-        if (memo.containsKey(id)) return memo.get(id);
-        if (!rules.containsKey(id)) return -1;
-        for (int sym : rules.get(id)) {
-            int first = computeFirstTerminal(sym, rules, memo, artificialTerminals);
-            if (first != -1) {
-                memo.put(id, first);
-                return first;
-            }
+    private static int maxRuleId(Map<Integer, List<Integer>> rules) {
+        int max = 255;
+        for (int ruleId : rules.keySet()) max = Math.max(max, ruleId);
+        return max;
+    }
+
+    // RHS of every rule indexed like the table, so the passes below do no map lookups.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<Integer>[] bodies(Map<Integer, List<Integer>> rules, MetadataTable table) {
+        List<Integer>[] bodies = new List[table.maxRuleId() - 255];
+        for (Map.Entry<Integer, List<Integer>> entry : rules.entrySet()) {
+            bodies[entry.getKey() - 256] = entry.getValue();
         }
-        memo.put(id, -1);
-        return -1;
+        return bodies;
     }
 
-    private static int computeLastTerminal(int id, Map<Integer, List<Integer>> rules,
-                                           Map<Integer, Integer> memo, Set<Integer> artificialTerminals) {
-        if (isTerminalOrArtificial(id, artificialTerminals)) return id;
-        if (memo.containsKey(id)) return memo.get(id);
-        if (!rules.containsKey(id)) return -1;
-        List<Integer> rhs = rules.get(id);
-        for (int i = rhs.size() - 1; i >= 0; i--) {
-            int last = computeLastTerminal(rhs.get(i), rules, memo, artificialTerminals);
-            if (last != -1) {
-                memo.put(id, last);
-                return last;
+    /**
+     * Orders the rules with Kahn's algorithm so that every rule comes before the rules it uses.
+     * Rules on a cycle are left out.
+     */
+    private static int[] topologicalOrder(List<Integer>[] bodies, MetadataTable table) {
+        int[] inDegree = new int[bodies.length];
+        for (List<Integer> rhs : bodies) {
+            if (rhs == null) continue;
+            for (int symbol : rhs) {
+                if (table.contains(symbol)) inDegree[symbol - 256]++;
             }
         }
-        memo.put(id, -1);
-        return -1;
-    }
 
-    private static boolean isSingleBlock(int id, Map<Integer, List<Integer>> rules, Map<Integer, Integer> memoSB,
-                                         Map<Integer, Integer> memoLeft, Map<Integer, Integer> memoRight,
-                                         Set<Integer> artificialTerminals) {
-        if (id < 256 || artificialTerminals.contains(id)) return true;
-        if (memoSB.containsKey(id)) return memoSB.get(id) == 1;
-        if (!rules.containsKey(id)) return false;
-        int leftTerm = computeFirstTerminal(id, rules, memoLeft, artificialTerminals);
-        int rightTerm = computeLastTerminal(id, rules, memoRight, artificialTerminals);
-        if (leftTerm == -1 || leftTerm != rightTerm) {
-            memoSB.put(id, 0);
-            return false;
+        int[] order = new int[table.size()];
+        int head = 0, tail = 0;
+        for (int i = 0; i < bodies.length; i++) {
+            if (bodies[i] != null && inDegree[i] == 0) order[tail++] = i + 256;
         }
-        for (int sym : rules.get(id)) {
-            if (!isSingleBlock(sym, rules, memoSB, memoLeft, memoRight, artificialTerminals)) {
-                memoSB.put(id, 0);
-                return false;
-            }
-            if (computeFirstTerminal(sym, rules, memoLeft, artificialTerminals) != leftTerm) {
-                memoSB.put(id, 0);
-                return false;
+        while (head < tail) {
+            int u = order[head++];
+            for (int v : bodies[u - 256]) {
+                if (table.contains(v) && --inDegree[v - 256] == 0) order[tail++] = v;
             }
         }
-        memoSB.put(id, 1);
-        return true;
-    }
 
-    private static int computeLeftRun(
-            int id,
-            Map<Integer, List<Integer>> rules,
-            Map<Integer, Integer> memoLeftRun,
-            Map<Integer, Integer> memoFirstTerminal,
-            Map<Integer, Integer> memoLength,
-            Set<Integer> artificialTerminals,
-            Set<Integer> visited
-    ) {
-        if (isTerminalOrArtificial(id, artificialTerminals)) return 1;
-        if (memoLeftRun.containsKey(id)) return memoLeftRun.get(id);
-        if (!rules.containsKey(id)) return 0;
-        if (!visited.add(id)) return 0; // cycle guard
-
-        int base = computeFirstTerminal(id, rules, memoFirstTerminal, artificialTerminals);
-        if (base == -1) {
-            memoLeftRun.put(id, 0);
-            visited.remove(id);
-            return 0;
+        if (tail != order.length) {
+            System.err.println("Warning: Cycle detected in grammar rules. Vocc calculation may be incomplete for rules in a cycle.");
+            order = Arrays.copyOf(order, tail);
         }
+        return order;
+    }
 
-        int run = 0;
-        for (int sym : rules.get(id)) {
-            if (computeFirstTerminal(sym, rules, memoFirstTerminal, artificialTerminals) != base) break;
-
-            int subRun = computeLeftRun(sym, rules, memoLeftRun, memoFirstTerminal, memoLength, artificialTerminals, visited);
-            int symLen = memoLength.getOrDefault(sym, 1);
-
-            run += subRun;
-            if (subRun < symLen) break;
+    /**
+     * Computes the virtual occurrences (vocc) of each rule in the grammar.
+     * A rule's vocc is the total number of times it is expanded, starting from the main sequence:
+     * its direct occurrences in the sequence plus the vocc of every occurrence inside another rule.
+     * Counts are pushed down in topological order, so a rule is final before it is propagated.
+     */
+    private static void computeVocc(List<Integer>[] bodies, List<Integer> sequence, MetadataTable table, int[] order) {
+        table.clearVocc();
+        for (int symbol : sequence) {
+            if (table.contains(symbol)) table.addVocc(symbol, 1);
         }
+        for (int u : order) {
+            long voccOfU = table.vocc(u);
+            if (voccOfU == 0) continue; // This rule never occurs, so it can't contribute to others.
+            for (int v : bodies[u - 256]) {
+                if (table.contains(v)) table.addVocc(v, voccOfU);
+            }
+        }
+    }
 
-        visited.remove(id);
-        memoLeftRun.put(id, run);
-        return run;
+    private static boolean isTerminalOrArtificial(int sym, Set<Integer> artificialTerminals) {
+        return sym < 256 || (artificialTerminals != null && !artificialTerminals.isEmpty() && artificialTerminals.contains(sym));
     }
 
-    private static int computeRightRun(
-            int id,
-            Map<Integer, List<Integer>> rules,
-            Map<Integer, Integer> memoRightRun,
-            Map<Integer, Integer> memoLastTerminal,
-            Map<Integer, Integer> memoLength,
-            Set<Integer> artificialTerminals,
-            Set<Integer> visited
-    ) {
-        if (isTerminalOrArtificial(id, artificialTerminals)) return 1;
-        if (memoRightRun.containsKey(id)) return memoRightRun.get(id);
-        if (!rules.containsKey(id)) return 0;
-        if (!visited.add(id)) return 0; // cycle guard
-
-        int base = computeLastTerminal(id, rules, memoLastTerminal, artificialTerminals);
-        if (base == -1) {
-            memoRightRun.put(id, 0);
-            visited.remove(id);
-            return 0;
+    // Structural fields of one rule from its (already computed) children. Symbols without a rule
+    // count as length 0 with no terminal.
+    private static void computeStructural(int ruleId, List<Integer> rhs, MetadataTable table,
+                                          Set<Integer> artificialTerminals) {
+        int n = rhs.size();
+        long length = 0;
+        int leftTerm = -1;
+        int rightTerm = -1;
+        for (int i = 0; i < n; i++) {
+            int sym = rhs.get(i);
+            if (isTerminalOrArtificial(sym, artificialTerminals)) {
+                length++;
+                if (leftTerm == -1) leftTerm = sym;
+            } else if (table.contains(sym)) {
+                length += table.length(sym);
+                if (leftTerm == -1) leftTerm = table.leftmostTerminal(sym);
+            }
+        }
+        for (int i = n - 1; i >= 0 && rightTerm == -1; i--) {
+            rightTerm = lastTerminal(rhs.get(i), table, artificialTerminals);
         }
 
-        int run = 0;
-        List<Integer> rhs = rules.get(id);
-        for (int i = rhs.size() - 1; i >= 0; i--) {
+        boolean isSB = leftTerm != -1 && leftTerm == rightTerm;
+        for (int i = 0; i < n && isSB; i++) {
             int sym = rhs.get(i);
-            if (computeLastTerminal(sym, rules, memoLastTerminal, artificialTerminals) != base) break;
+            if (isTerminalOrArtificial(sym, artificialTerminals)) {
+                isSB = sym == leftTerm;
+            } else {
+                isSB = table.contains(sym) && table.isSingleBlock(sym) && table.leftmostTerminal(sym) == leftTerm;
+            }
+        }
 
-            int subRun = computeRightRun(sym, rules, memoRightRun, memoLastTerminal, memoLength, artificialTerminals, visited);
-            int symLen = memoLength.getOrDefault(sym, 1);
+        long leftRun = 0;
+        if (leftTerm != -1) {
+            for (int i = 0; i < n; i++) {
+                int sym = rhs.get(i);
+                if (firstTerminal(sym, table, artificialTerminals) != leftTerm) break;
+                boolean leaf = isTerminalOrArtificial(sym, artificialTerminals);
+                long subRun = leaf ? 1 : table.leftRunLength(sym);
+                leftRun += subRun;
+                if (subRun < (leaf ? 1 : table.length(sym))) break;
+            }
+        }
 
-            run += subRun;
-            if (subRun < symLen) break;
+        long rightRun = 0;
+        if (rightTerm != -1) {
+            for (int i = n - 1; i >= 0; i--) {
+                int sym = rhs.get(i);
+                if (lastTerminal(sym, table, artificialTerminals) != rightTerm) break;
+                boolean leaf = isTerminalOrArtificial(sym, artificialTerminals);
+                long subRun = leaf ? 1 : table.rightRunLength(sym);
+                rightRun += subRun;
+                if (subRun < (leaf ? 1 : table.length(sym))) break;
+            }
         }
 
-        visited.remove(id);
-        memoRightRun.put(id, run);
-        return run;
+        table.set(ruleId, 0, length, leftTerm, rightTerm, isSB, leftRun, rightRun);
+    }
+
+    private static int firstTerminal(int sym, MetadataTable table, Set<Integer> artificialTerminals) {
+        if (isTerminalOrArtificial(sym, artificialTerminals)) return sym;
+        return table.contains(sym) ? table.leftmostTerminal(sym) : -1;
+    }
+
+    private static int lastTerminal(int sym, MetadataTable table, Set<Integer> artificialTerminals) {
+        if (isTerminalOrArtificial(sym, artificialTerminals)) return sym;
+        return table.contains(sym) ? table.rightmostTerminal(sym) : -1;
     }
 
     /**
      * Print metadata for debugging.
      */
-    public static void printMetadata(Map<Integer, RuleMetadata> metadata) {
+    public static void printMetadata(MetadataTable metadata) {
         if (metadata == null || metadata.isEmpty()) {
             System.out.println("No metadata available.");
             return;
         }
 
         System.out.println("===  Rule Metadata ===");
-        for (Map.Entry<Integer, RuleMetadata> entry : metadata.entrySet()) {
-            int ruleId = entry.getKey();
-            RuleMetadata meta = entry.getValue();
+        for (int ruleId : metadata.ruleIds()) {
+            RuleMetadata meta = metadata.get(ruleId);
             System.out.printf(
                     "R%d: vocc=%d, length=%d, leftmost=%s, rightmost=%s, singleBlock=%s, leftRun=%d, rightRun=%d%n",
                     ruleId,
@@ -340,16 +345,15 @@ public class RuleMetadata {
         }
         System.out.println("========================\n");
     }
-    public static String metadataToString(Map<Integer, RuleMetadata> metadata) {
+    public static String metadataToString(MetadataTable metadata) {
         if (metadata == null || metadata.isEmpty()) {
             return "No metadata available.\n";
         }
 
         StringBuilder sb = new StringBuilder();
         sb.append("===  Rule Metadata ===\n");
-        for (Map.Entry<Integer, RuleMetadata> entry : metadata.entrySet()) {
-            int ruleId = entry.getKey();
-            RuleMetadata meta = entry.getValue();
+        for (int ruleId : metadata.ruleIds()) {
+            RuleMetadata meta = metadata.get(ruleId);
             sb.append(String.format(
                     "R%d: vocc=%d, length=%d, leftmost=%s, rightmost=%s, singleBlock=%s, leftRun=%d, rightRun=%d%n",
                     ruleId,
@@ -0,0 +1,266 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Runs recompression over a sweep of input sizes and corpus types and reports how the cost of
+ * every phase of a pass grows with the grammar size.
+ *
+ * Each input is a {@link CorpusGenerator} spec, or "file:&lt;path&gt;" for prefixes of a text
+ * file. For every size the text is compressed with {@link RePairCompressor} and recompressed for
+ * a fixed number of passes; the time and allocated bytes of each phase are summed over the
+ * passes, and the peak heap is taken over the whole run. The growth exponent of a phase is the
+ * slope of a least-squares fit of log(time per pass) against log(grammar size).
+ *
+ * The report is written as CSV (one row per input, size and phase) and as JSON with the
+ * exponents; {@link #compare} reads two CSV reports and flags phases that scale worse.
+ */
+public class ScalingBenchmark {
+    public static final List<String> PHASES = List.of("metadata", "frequencies", "pick", "uncross", "replace", "prune");
+    private static final int WARM_UP_LENGTH = 1 << 17;
+    private static final double MIN_FLAGGED_MS = 1.0;
+    private static final String CSV_HEADER =
+            "corpus,textLength,grammarSize,passes,phase,totalMs,perPassMs,allocatedBytes,peakHeapBytes";
+
+    /** Totals of one phase in one run. */
+    public record Measurement(String corpus, long textLength, long grammarSize, int passes, String phase,
+                              long nanos, long allocatedBytes, long peakHeapBytes) {
+        double perPassMs() {
+            return passes == 0 ? 0 : nanos / 1e6 / passes;
+        }
+    }
+
+    /** Runs the sweep and writes {@code <report>.csv} and {@code <report>.json}. */
+    public static List<Measurement> run(List<String> corpora, List<Long> sizes, int passes, long seed, Path report)
+            throws IOException {
+        // One untimed run first, so the first measurement does not include JIT compilation
+        System.out.println("\n=== Warm-up ===");
+        measure("warm-up", CorpusGenerator.generate(CorpusGenerator.model("zipf", seed), WARM_UP_LENGTH, seed), passes);
+
+        List<Measurement> measurements = new ArrayList<>();
+        for (String corpus : corpora) {
+            byte[] file = corpus.startsWith("file:") ? Files.readAllBytes(Path.of(corpus.substring(5))) : null;
+            CorpusGenerator.Model model = file == null ? CorpusGenerator.model(corpus, seed) : null;
+            for (long size : sizes) {
+                if (size > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Size too large for one run: " + size);
+                byte[] text = file != null
+                        ? Arrays.copyOf(file, (int) Math.min(size, file.length))
+                        : CorpusGenerator.generate(model, (int) size, seed);
+                System.out.println("\n=== " + corpus + ", " + text.length + " bytes ===");
+                measurements.addAll(measure(corpus, text, passes));
+            }
+        }
+        writeCsv(measurements, report.resolveSibling(report.getFileName() + ".csv"));
+        writeJson(measurements, report.resolveSibling(report.getFileName() + ".json"));
+        printExponents(exponents(measurements));
+        return measurements;
+    }
+
+    /** Compresses the text and recompresses it for the given number of passes. */
+    static List<Measurement> measure(String corpus, byte[] text, int passes) throws IOException {
+        Parser.ParsedGrammar grammar = RePairCompressor.compress(text);
+        long grammarSize = Parser.sizeOfGrammar(grammar);
+        PhaseTotals totals = new PhaseTotals();
+        Path output = Files.createTempFile("scaling", ".txt");
+        try {
+            System.gc();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) heapPools.add(pool);
+            }
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+            Recompressor.recompressNTimes(grammar, passes, 0, true, false, output.toString(), totals);
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) peakHeap += pool.getPeakUsage().getUsed();
+
+            List<Measurement> result = new ArrayList<>();
+            for (String phase : PHASES) {
+                long[] total = totals.byPhase.getOrDefault(phase, new long[2]);
+                result.add(new Measurement(corpus, text.length, grammarSize, totals.passes, phase,
+                        total[0], total[1], peakHeap));
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    /** Sums time and allocation per phase over all passes. */
+    private static final class PhaseTotals implements Recompressor.PhaseListener {
+        private final com.sun.management.ThreadMXBean threads =
+                ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean t
+                        && t.isThreadAllocatedMemorySupported() ? t : null;
+        final Map<String, long[]> byPhase = new HashMap<>();
+        int passes;
+        private long allocatedAtStart;
+
+        @Override
+        public void phaseStarted(int pass, String phase) {
+            allocatedAtStart = allocatedBytes();
+        }
+
+        @Override
+        public void phaseFinished(int pass, String phase, long nanos) {
+            long[] total = byPhase.computeIfAbsent(phase, p -> new long[2]);
+            total[0] += nanos;
+            total[1] += threads != null ? allocatedBytes() - allocatedAtStart : 0;
+            passes = Math.max(passes, pass);
+        }
+
+        private long allocatedBytes() {
+            return threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+        }
+    }
+
+    /** Growth exponent per corpus and phase; phases with fewer than two sizes are left out. */
+    public static Map<String, Map<String, Double>> exponents(List<Measurement> measurements) {
+        Map<String, Map<String, List<Measurement>>> grouped = new TreeMap<>();
+        for (Measurement m : measurements) {
+            if (m.passes() == 0 || m.nanos() <= 0 || m.grammarSize() <= 0) continue;
+            grouped.computeIfAbsent(m.corpus(), c -> new LinkedHashMap<>())
+                    .computeIfAbsent(m.phase(), p -> new ArrayList<>()).add(m);
+        }
+        Map<String, Map<String, Double>> result = new TreeMap<>();
+        for (Map.Entry<String, Map<String, List<Measurement>>> corpus : grouped.entrySet()) {
+            for (Map.Entry<String, List<Measurement>> phase : corpus.getValue().entrySet()) {
+                double slope = logLogSlope(phase.getValue());
+                if (!Double.isNaN(slope)) {
+                    result.computeIfAbsent(corpus.getKey(), c -> new LinkedHashMap<>()).put(phase.getKey(), slope);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static double logLogSlope(List<Measurement> points) {
+        int n = points.size();
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        for (Measurement m : points) {
+            double x = Math.log(m.grammarSize());
+            double y = Math.log(m.perPassMs());
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+        }
+        double denominator = n * sumXX - sumX * sumX;
+        if (n < 2 || Math.abs(denominator) < 1e-12) return Double.NaN; // all at the same size
+        return (n * sumXY - sumX * sumY) / denominator;
+    }
+
+    /**
+     * Compares the exponents of two CSV reports and prints every corpus and phase found in both.
+     * Returns the phases whose exponent grew by more than {@code tolerance}, as "corpus/phase";
+     * phases that never take 1 ms per pass are not flagged.
+     */
+    public static List<String> compare(Path baseline, Path current, double tolerance) throws IOException {
+        Map<String, Map<String, Double>> before = exponents(readCsv(baseline));
+        List<Measurement> currentMeasurements = readCsv(current);
+        Map<String, Map<String, Double>> after = exponents(currentMeasurements);
+        // Phases that stay below MIN_FLAGGED_MS per pass are too noisy to judge
+        Map<String, Double> slowestPass = new HashMap<>();
+        for (Measurement m : currentMeasurements) {
+            slowestPass.merge(m.corpus() + "/" + m.phase(), m.perPassMs(), Math::max);
+        }
+        List<String> worse = new ArrayList<>();
+        System.out.printf("%-40s %-12s %9s %9s %8s%n", "corpus", "phase", "baseline", "current", "change");
+        for (Map.Entry<String, Map<String, Double>> corpus : after.entrySet()) {
+            Map<String, Double> old = before.get(corpus.getKey());
+            if (old == null) continue;
+            for (Map.Entry<String, Double> phase : corpus.getValue().entrySet()) {
+                Double oldExponent = old.get(phase.getKey());
+                if (oldExponent == null) continue;
+                double change = phase.getValue() - oldExponent;
+                boolean flagged = change > tolerance
+                        && slowestPass.getOrDefault(corpus.getKey() + "/" + phase.getKey(), 0.0) >= MIN_FLAGGED_MS;
+                if (flagged) worse.add(corpus.getKey() + "/" + phase.getKey());
+                System.out.printf("%-40s %-12s %9.3f %9.3f %+8.3f%s%n", corpus.getKey(), phase.getKey(),
+                        oldExponent, phase.getValue(), change, flagged ? "  WORSE" : "");
+            }
+        }
+        if (worse.isEmpty()) System.out.println("No phase scales worse than the baseline (tolerance " + tolerance + ").");
+        return worse;
+    }
+
+    static void writeCsv(List<Measurement> measurements, Path file) throws IOException {
+        StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+        for (Measurement m : measurements) {
+            csv.append(m.corpus()).append(',').append(m.textLength()).append(',').append(m.grammarSize())
+                    .append(',').append(m.passes()).append(',').append(m.phase())
+                    .append(',').append(String.format(Locale.ROOT, "%.3f", m.nanos() / 1e6))
+                    .append(',').append(String.format(Locale.ROOT, "%.3f", m.perPassMs()))
+                    .append(',').append(m.allocatedBytes()).append(',').append(m.peakHeapBytes()).append('\n');
+        }
+        Files.writeString(file, csv, StandardCharsets.UTF_8);
+        System.out.println("Report saved as " + file);
+    }
+
+    static List<Measurement> readCsv(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(CSV_HEADER)) throw new IOException("Not a scaling report: " + file);
+        List<Measurement> measurements = new ArrayList<>();
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            String[] f = line.split(",");
+            if (f.length != 9) throw new IOException("Malformed line in " + file + ": " + line);
+            measurements.add(new Measurement(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Integer.parseInt(f[3]),
+                    f[4], Math.round(Double.parseDouble(f[5]) * 1e6), Long.parseLong(f[7]), Long.parseLong(f[8])));
+        }
+        return measurements;
+    }
+
+    static void writeJson(List<Measurement> measurements, Path file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"measurements\": [");
+        for (int i = 0; i < measurements.size(); i++) {
+            Measurement m = measurements.get(i);
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"corpus\": ").append(quote(m.corpus()))
+                    .append(", \"textLength\": ").append(m.textLength())
+                    .append(", \"grammarSize\": ").append(m.grammarSize())
+                    .append(", \"passes\": ").append(m.passes())
+                    .append(", \"phase\": ").append(quote(m.phase()))
+                    .append(", \"totalMs\": ").append(String.format(Locale.ROOT, "%.3f", m.nanos() / 1e6))
+                    .append(", \"perPassMs\": ").append(String.format(Locale.ROOT, "%.3f", m.perPassMs()))
+                    .append(", \"allocatedBytes\": ").append(m.allocatedBytes())
+                    .append(", \"peakHeapBytes\": ").append(m.peakHeapBytes()).append('}');
+        }
+        json.append("\n  ],\n  \"exponents\": {");
+        boolean firstCorpus = true;
+        for (Map.Entry<String, Map<String, Double>> corpus : exponents(measurements).entrySet()) {
+            json.append(firstCorpus ? "\n" : ",\n").append("    ").append(quote(corpus.getKey())).append(": {");
+            firstCorpus = false;
+            boolean firstPhase = true;
+            for (Map.Entry<String, Double> phase : corpus.getValue().entrySet()) {
+                json.append(firstPhase ? "" : ", ").append(quote(phase.getKey())).append(": ")
+                        .append(String.format(Locale.ROOT, "%.3f", phase.getValue()));
+                firstPhase = false;
+            }
+            json.append('}');
+        }
+        json.append("\n  }\n}\n");
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+        System.out.println("Report saved as " + file);
+    }
+
+    private static void printExponents(Map<String, Map<String, Double>> exponents) {
+        System.out.println("\nGrowth exponents of the time per pass against the grammar size:");
+        for (Map.Entry<String, Map<String, Double>> corpus : exponents.entrySet()) {
+            StringBuilder line = new StringBuilder(corpus.getKey()).append(':');
+            for (Map.Entry<String, Double> phase : corpus.getValue().entrySet()) {
+                line.append(String.format(Locale.ROOT, " %s=%.2f", phase.getKey(), phase.getValue()));
+            }
+            System.out.println(line);
+        }
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -0,0 +1,89 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveFormatTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void reportsSizeInBitsPerCharacter() throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.bundled("A_tale_of_two_cities_translated.txt");
+        Path file = dir.resolve("grammar.slpa");
+        ArchiveFormat.Summary summary = ArchiveFormat.write(grammar, file);
+        long textLength = Decompressor.decompressToBytes(grammar).length;
+        assertEquals(Files.size(file), summary.bytes());
+        assertEquals(textLength, summary.textLength());
+        assertEquals(Parser.sizeOfGrammar(grammar), summary.grammarSize());
+        assertEquals(8.0 * Files.size(file) / textLength, summary.bitsPerCharacter(), 1e-12);
+    }
+
+    @Test
+    void renumbersRulesInPostOrderAndDropsUnusedOnes() throws IOException {
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        rules.put(280, new ArrayList<>(List.of((int) 'q', (int) 'q')));
+        rules.put(290, new ArrayList<>(List.of(300, (int) 'z', 300)));
+        rules.put(300, new ArrayList<>(List.of((int) 'x', (int) 'y')));
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, new ArrayList<>(List.of(290, 300)));
+
+        Path file = dir.resolve("grammar.slpa");
+        ArchiveFormat.write(grammar, file);
+        Parser.ParsedGrammar read = ArchiveFormat.read(file);
+        assertEquals(Map.of(256, List.of((int) 'x', (int) 'y'), 257, List.of(256, (int) 'z', 256)), read.grammarRules());
+        assertEquals(List.of(257, 256), read.sequence());
+
+        // The canonical grammar is written as the same bytes again
+        Path again = dir.resolve("again.slpa");
+        ArchiveFormat.write(read, again);
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(again));
+    }
+
+    @Test
+    void codesASingleSymbolAlphabet() throws IOException {
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(new HashMap<>(),
+                new ArrayList<>(Collections.nCopies(100, (int) 'a')));
+        Path file = dir.resolve("grammar.slpa");
+        ArchiveFormat.Summary summary = ArchiveFormat.write(grammar, file);
+        Parser.ParsedGrammar read = ArchiveFormat.read(file);
+        assertEquals(grammar.sequence(), read.sequence());
+        assertTrue(read.grammarRules().isEmpty());
+        // 9 header bytes; token table: count, 97 unused entries and 'a' with length 1; empty
+        // length table; then one bit per token
+        long bits = 9 + 97 + (1 + 5) + 9 + 100;
+        assertEquals(9 + (bits + 7) / 8, summary.bytes());
+    }
+
+    @Test
+    void roundTripsEmptyGrammar() throws IOException {
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(new HashMap<>(), new ArrayList<>());
+        Path file = dir.resolve("grammar.slpa");
+        ArchiveFormat.Summary summary = ArchiveFormat.write(grammar, file);
+        assertEquals(0, summary.textLength());
+        assertEquals(0.0, summary.bitsPerCharacter());
+        Parser.ParsedGrammar read = ArchiveFormat.read(file);
+        assertTrue(read.grammarRules().isEmpty());
+        assertTrue(read.sequence().isEmpty());
+    }
+
+    @Test
+    void rejectsBadMagicAndVersion() throws IOException {
+        Path file = dir.resolve("grammar.slpa");
+        ArchiveFormat.write(TestGrammars.edgeCases(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[4] = ArchiveFormat.VERSION + 1;
+        Files.write(file, bytes);
+        assertThrows(IOException.class, () -> ArchiveFormat.read(file));
+        bytes[0] = 'X';
+        Files.write(file, bytes);
+        assertFalse(ArchiveFormat.isArchive(file));
+        assertThrows(IOException.class, () -> ArchiveFormat.read(file));
+    }
+}
@@ -0,0 +1,62 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BigramCounterTest {
+    /** Runs, repeated artificial terminals and a rule (258) that is itself an artificial terminal. */
+    private static Parser.ParsedGrammar grammar() {
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        rules.put(256, new ArrayList<>(List.of((int) 'a', (int) 'a', (int) 'b')));
+        rules.put(257, new ArrayList<>(List.of(256, 300, 300, 300, 256)));
+        rules.put(258, new ArrayList<>(List.of((int) 'b', (int) 'b')));
+        return new Parser.ParsedGrammar(rules,
+                new ArrayList<>(List.of(257, 258, 258, (int) 'a', 256, (int) 'a', (int) 'a', (int) 'a', 300)));
+    }
+
+    @Test
+    void artificialTerminalsCountAsLetters() {
+        Parser.ParsedGrammar grammar = grammar();
+        Set<Integer> artificial = Set.of(258, 300);
+        assertEquals(reference(grammar, artificial, true), BigramCounter.count(grammar, artificial, false, true));
+    }
+
+    @Test
+    void noArtificialTerminalsCountsTheText() throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.bundled("Test_from_paper.txt");
+        assertEquals(reference(grammar, Set.of(), false), BigramCounter.count(grammar, Set.of(), false, false));
+        assertEquals(BigramCounter.count(grammar, false, false, 4), BigramCounter.count(grammar, Set.of(), false, false));
+    }
+
+    /** Expands the grammar into a list and counts maximal runs c^len as len / 2 pairs (c, c). */
+    private static Map<Pair<Integer, Integer>, Long> reference(Parser.ParsedGrammar grammar, Set<Integer> artificial,
+                                                               boolean addSentinels) {
+        List<Integer> text = new ArrayList<>();
+        if (addSentinels) text.add((int) '#');
+        for (int symbol : grammar.sequence()) expand(symbol, grammar.grammarRules(), artificial, text);
+        if (addSentinels) text.add((int) '$');
+
+        Map<Pair<Integer, Integer>, Long> counts = new HashMap<>();
+        int i = 0;
+        while (i < text.size()) {
+            int j = i;
+            while (j < text.size() && text.get(j).equals(text.get(i))) j++;
+            if (j - i >= 2) counts.merge(Pair.of(text.get(i), text.get(i)), (long) (j - i) / 2, Long::sum);
+            if (j < text.size()) counts.merge(Pair.of(text.get(i), text.get(j)), 1L, Long::sum);
+            i = j;
+        }
+        return counts;
+    }
+
+    private static void expand(int symbol, Map<Integer, List<Integer>> rules, Set<Integer> artificial, List<Integer> out) {
+        if (symbol < 256 || artificial.contains(symbol)) {
+            out.add(symbol);
+            return;
+        }
+        for (int child : rules.get(symbol)) expand(child, rules, artificial, out);
+    }
+}
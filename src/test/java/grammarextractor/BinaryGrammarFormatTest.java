@@ -0,0 +1,81 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryGrammarFormatTest {
+    @TempDir
+    Path dir;
+
+    private Parser.ParsedGrammar roundTrip(Parser.ParsedGrammar grammar) throws IOException {
+        Path file = dir.resolve("grammar.bin");
+        BinaryGrammarFormat.write(grammar, file);
+        return BinaryGrammarFormat.read(file);
+    }
+
+    @Test
+    void roundTripsRuleIdDeltasBeyondThirtyBits() throws IOException {
+        // Symbol codes of these references need 33 bits
+        int far = (1 << 30) + 300;
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        rules.put(256, new ArrayList<>(List.of(far, (int) 'a')));
+        rules.put(far, new ArrayList<>(List.of((int) 'b', (int) 'c')));
+        rules.put(Integer.MAX_VALUE, new ArrayList<>(List.of(256, far)));
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, new ArrayList<>(List.of(Integer.MAX_VALUE, 256)));
+        Parser.ParsedGrammar read = roundTrip(grammar);
+        assertEquals(grammar.grammarRules(), read.grammarRules());
+        assertEquals(grammar.sequence(), read.sequence());
+    }
+
+    @Test
+    void codesNearbyRulesInOneByte() throws IOException {
+        Path file = dir.resolve("grammar.bin");
+        BinaryGrammarFormat.write(TestGrammars.edgeCases(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        // magic, version, 3 rules, 4 sequence symbols, then R256 = [0, 'a', 0]: gap 0, length 3
+        assertArrayEquals(new byte[]{'S', 'L', 'P', 'G', 1, 3, 4, 0, 3, 0, (byte) 0xC2, 0x01, 0},
+                Arrays.copyOf(bytes, 13));
+        // R257 = [R256, 'b', R256, 255]: R256 is one back, zigzag(1) << 1 | 1 = 5
+        assertArrayEquals(new byte[]{0, 4, 5, (byte) 0xC4, 0x01, 5, (byte) 0xFE, 0x03},
+                Arrays.copyOfRange(bytes, 13, 21));
+    }
+
+    @Test
+    void rejectsBadMagic() throws IOException {
+        Path file = dir.resolve("grammar.bin");
+        BinaryGrammarFormat.write(TestGrammars.edgeCases(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[3] = 'X';
+        Files.write(file, bytes);
+        assertFalse(BinaryGrammarFormat.isBinaryGrammar(file));
+        IOException e = assertThrows(IOException.class, () -> BinaryGrammarFormat.read(file));
+        assertTrue(e.getMessage().startsWith("Not a binary grammar file"), e.getMessage());
+    }
+
+    @Test
+    void rejectsUnknownVersion() throws IOException {
+        Path file = dir.resolve("grammar.bin");
+        BinaryGrammarFormat.write(TestGrammars.edgeCases(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[4] = BinaryGrammarFormat.VERSION + 1;
+        Files.write(file, bytes);
+        IOException e = assertThrows(IOException.class, () -> BinaryGrammarFormat.read(file));
+        assertEquals("Unsupported binary grammar version " + (BinaryGrammarFormat.VERSION + 1), e.getMessage());
+    }
+
+    @Test
+    void rejectsTruncatedFile() throws IOException {
+        Path file = dir.resolve("grammar.bin");
+        BinaryGrammarFormat.write(TestGrammars.edgeCases(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        assertThrows(IOException.class, () -> BinaryGrammarFormat.read(file));
+    }
+}
@@ -0,0 +1,51 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DecompressRangeTest {
+    @Test
+    void everyRangeMatchesTheText() throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.edgeCases();
+        byte[] text = Decompressor.decompressToBytes(grammar);
+        Decompressor.RangeIndex index = new Decompressor.RangeIndex(grammar);
+        for (int start = 0; start <= text.length; start++) {
+            for (int end = start; end <= text.length; end++) {
+                byte[] expected = Arrays.copyOfRange(text, start, end);
+                assertArrayEquals(expected, Decompressor.decompressRange(index, start, end, null));
+                ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                Decompressor.decompressRange(index, start, end, null, Channels.newChannel(streamed));
+                assertArrayEquals(expected, streamed.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    void rangesOfABundledGrammar() throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.bundled("A_tale_of_two_cities_translated.txt");
+        byte[] text = Decompressor.decompressToBytes(grammar);
+        Decompressor.RangeIndex index = new Decompressor.RangeIndex(grammar);
+        Random random = new Random(42);
+        for (int k = 0; k < 200; k++) {
+            int start = random.nextInt(text.length + 1);
+            int end = Math.min(text.length, start + random.nextInt(1000));
+            assertArrayEquals(Arrays.copyOfRange(text, start, end), Decompressor.decompressRange(index, start, end, null));
+        }
+    }
+
+    @Test
+    void rejectsRangesOutsideTheText() {
+        Decompressor.RangeIndex index = new Decompressor.RangeIndex(TestGrammars.edgeCases());
+        assertThrows(IllegalArgumentException.class, () -> Decompressor.decompressRange(index, -1, 2, null));
+        assertThrows(IllegalArgumentException.class, () -> Decompressor.decompressRange(index, 3, 2, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> Decompressor.decompressRange(index, 0, index.textLength() + 1, null));
+    }
+}
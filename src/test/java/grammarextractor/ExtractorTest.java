@@ -0,0 +1,42 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ExtractorTest {
+    @Test
+    void excerptsDeriveTheirRange() throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.bundled("A_tale_of_two_cities_translated.txt");
+        byte[] text = Decompressor.decompressToBytes(grammar);
+        Random random = new Random(7);
+        for (int k = 0; k < 50; k++) {
+            int start = random.nextInt(text.length);
+            int end = Math.min(text.length, start + 1 + random.nextInt(5000));
+            byte[] expected = Arrays.copyOfRange(text, start, end);
+            assertArrayEquals(expected, Decompressor.decompressToBytes(Extractor.extractExcerpt(grammar, start, end, false)));
+            Parser.ParsedGrammar slp = Extractor.extractView(grammar, start, end).asGrammar();
+            assertEquals(1, slp.sequence().size());
+            assertArrayEquals(expected, Decompressor.decompressToBytes(slp));
+        }
+    }
+
+    @Test
+    void boundaryPathsAsDeepAsTheGrammar() {
+        // R256 = ab, R(256 + k) = R(255 + k) c: a left-deep chain far deeper than the thread stack allows
+        int height = 200_000;
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        rules.put(256, new ArrayList<>(List.of((int) 'a', (int) 'b')));
+        for (int k = 1; k < height; k++) rules.put(256 + k, new ArrayList<>(List.of(255 + k, (int) 'c')));
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, new ArrayList<>(List.of(255 + height)));
+        byte[] text = Decompressor.decompressToBytes(grammar);
+
+        byte[] expected = Arrays.copyOfRange(text, 1, text.length - 1);
+        assertArrayEquals(expected, Decompressor.decompressToBytes(Extractor.extractExcerpt(grammar, 1, text.length - 1, false)));
+        assertArrayEquals(expected, Decompressor.decompressToBytes(Extractor.extractView(grammar, 1, text.length - 1).asGrammar()));
+    }
+}
@@ -0,0 +1,51 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/** Every grammar file format must give back a grammar for the same text. */
+class GrammarFormatRoundTripTest {
+    interface Writer {
+        void write(Parser.ParsedGrammar grammar, Path file) throws IOException;
+    }
+
+    interface Reader {
+        Parser.ParsedGrammar read(Path file) throws IOException;
+    }
+
+    @TempDir
+    Path dir;
+
+    static Stream<Arguments> formats() {
+        return Stream.of(
+                Arguments.of("grammar.txt", (Writer) (g, f) -> Extractor.writeGrammarToFile(g, f.toString()),
+                        (Reader) Parser::parseFile),
+                Arguments.of("grammar.bin", (Writer) BinaryGrammarFormat::write, (Reader) BinaryGrammarFormat::read),
+                Arguments.of("grammar.rp", (Writer) RePairFormat::write, (Reader) RePairFormat::read),
+                Arguments.of("grammar.slpa", (Writer) ArchiveFormat::write, (Reader) ArchiveFormat::read));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("formats")
+    void roundTripsTerminalZeroAndLongRules(String name, Writer writer, Reader reader) throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.edgeCases();
+        Path file = dir.resolve(name);
+        writer.write(grammar, file);
+        TestGrammars.assertSameText(grammar, reader.read(file));
+    }
+
+    @ParameterizedTest(name = "{0}")
+    @MethodSource("formats")
+    void roundTripsBundledGrammar(String name, Writer writer, Reader reader) throws IOException {
+        Parser.ParsedGrammar grammar = TestGrammars.bundled("A_tale_of_two_cities_translated.txt");
+        Path file = dir.resolve(name);
+        writer.write(grammar, file);
+        TestGrammars.assertSameText(grammar, reader.read(file));
+    }
+}
@@ -0,0 +1,51 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataSidecarTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsAcrossManyWindows() throws IOException {
+        MetadataTable table = TestGrammars.bundled("A_tale_of_two_cities_translated.txt").metadata();
+        Path sidecar = dir.resolve("grammar.txt.meta");
+        // 100-byte windows split every column into many mappings, as 1 GiB windows do for huge grammars
+        MetadataSidecar.write(sidecar, table, 1234, 42, 100);
+        assertEquals(24 + (long) table.capacity() * MetadataTable.BYTES_PER_SLOT, Files.size(sidecar));
+
+        MetadataTable read = MetadataSidecar.load(sidecar, 1234, 42, 100);
+        assertNotNull(read);
+        assertEquals(table.capacity(), read.capacity());
+        for (int ruleId = 256; ruleId < 256 + table.capacity(); ruleId++) {
+            assertEquals(table.contains(ruleId), read.contains(ruleId));
+            if (!table.contains(ruleId)) continue;
+            assertEquals(table.vocc(ruleId), read.vocc(ruleId));
+            assertEquals(table.length(ruleId), read.length(ruleId));
+            assertEquals(table.leftmostTerminal(ruleId), read.leftmostTerminal(ruleId));
+            assertEquals(table.rightmostTerminal(ruleId), read.rightmostTerminal(ruleId));
+            assertEquals(table.isSingleBlock(ruleId), read.isSingleBlock(ruleId));
+            assertEquals(table.leftRunLength(ruleId), read.leftRunLength(ruleId));
+            assertEquals(table.rightRunLength(ruleId), read.rightRunLength(ruleId));
+        }
+        // Default windows read what small ones wrote
+        assertEquals(table.size(), MetadataSidecar.load(sidecar, 1234, 42).size());
+    }
+
+    @Test
+    void ignoresSidecarOfAnotherFile() throws IOException {
+        MetadataTable table = TestGrammars.edgeCases().metadata();
+        Path sidecar = dir.resolve("grammar.txt.meta");
+        MetadataSidecar.write(sidecar, table, 1234, 42);
+        assertNull(MetadataSidecar.load(sidecar, 1234, 43));
+        assertNull(MetadataSidecar.load(sidecar, 1235, 42));
+        assertNull(MetadataSidecar.load(dir.resolve("missing.meta"), 1234, 42));
+    }
+}
@@ -0,0 +1,97 @@
+package grammarextractor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class RePairFormatTest {
+    @TempDir
+    Path dir;
+
+    private Parser.ParsedGrammar roundTrip(Parser.ParsedGrammar grammar) throws IOException {
+        Path file = dir.resolve("grammar.rp");
+        RePairFormat.write(grammar, file);
+        return RePairFormat.read(file);
+    }
+
+    @Test
+    void rewritesTheBundledEncoderOutputByteForByte() throws Exception {
+        Path encoder = Path.of("encoder").toAbsolutePath();
+        assumeTrue(Files.isExecutable(encoder) && System.getProperty("os.name").startsWith("Linux"),
+                "the bundled encoder is a Linux binary");
+        byte[] text = "abracadabra abracadabra abracadabra\n".getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(dir.resolve("small.txt"), text);
+        Process process = new ProcessBuilder(encoder.toString(), "small.txt").directory(dir.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectErrorStream(true).start();
+        assertTrue(process.waitFor(30, TimeUnit.SECONDS) && process.exitValue() == 0, "encoder failed");
+
+        Path encoded = dir.resolve("small.txt.rp");
+        Parser.ParsedGrammar grammar = RePairFormat.read(encoded);
+        assertArrayEquals(text, Decompressor.decompressToBytes(grammar));
+        Path rewritten = dir.resolve("rewritten.rp");
+        RePairFormat.write(grammar, rewritten);
+        assertArrayEquals(Files.readAllBytes(encoded), Files.readAllBytes(rewritten));
+    }
+
+    @Test
+    void splitsLongRulesIntoBinaryRules() throws IOException {
+        // R256 = [0, 'a', 0] becomes R257, R258; R257 = [R256, 'b', R256, 255] becomes R259..R261,
+        // left-deep and numbered in post-order
+        Parser.ParsedGrammar grammar = TestGrammars.edgeCases();
+        Parser.ParsedGrammar read = roundTrip(grammar);
+        assertEquals(Map.of(
+                257, List.of(0, (int) 'a'),
+                258, List.of(257, 0),
+                259, List.of(258, (int) 'b'),
+                260, List.of(259, 258),
+                261, List.of(260, 255),
+                262, List.of(261, 261)), read.grammarRules());
+        assertEquals(List.of(262, 0, 258, (int) 'c'), read.sequence());
+    }
+
+    @Test
+    void dropsEmptyRulesAndInlinesSingleSymbols() throws IOException {
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        rules.put(256, new ArrayList<>());
+        rules.put(257, new ArrayList<>(List.of(256, (int) 'a', 256, (int) 'b')));
+        rules.put(258, new ArrayList<>(List.of((int) 'c')));
+        Parser.ParsedGrammar grammar = new Parser.ParsedGrammar(rules, new ArrayList<>(List.of(256, 257, 258, 256)));
+        Parser.ParsedGrammar read = roundTrip(grammar);
+        assertEquals(Map.of(257, List.of((int) 'a', (int) 'b')), read.grammarRules());
+        assertEquals(List.of(257, (int) 'c'), read.sequence());
+    }
+
+    @Test
+    void rejectsTruncatedFile() throws IOException {
+        Path file = dir.resolve("grammar.rp");
+        RePairFormat.write(TestGrammars.bundled("Test_from_paper.txt"), file);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+        IOException e = assertThrows(IOException.class, () -> RePairFormat.read(file));
+        assertEquals("Unexpected end of .rp file", e.getMessage());
+
+        Files.write(file, Arrays.copyOf(bytes, 8));
+        assertThrows(IOException.class, () -> RePairFormat.read(file));
+    }
+
+    @Test
+    void rejectsEmptySequenceElement() throws IOException {
+        Path file = dir.resolve("grammar.rp");
+        RePairFormat.write(TestGrammars.edgeCases(), file);
+        byte[] bytes = Files.readAllBytes(file);
+        // The first bit would pop from an empty stack
+        Arrays.fill(bytes, 12, bytes.length, (byte) 0);
+        Files.write(file, bytes);
+        IOException e = assertThrows(IOException.class, () -> RePairFormat.read(file));
+        assertTrue(e.getMessage().startsWith("Corrupt .rp file"), e.getMessage());
+    }
+}
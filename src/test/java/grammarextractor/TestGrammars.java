@@ -0,0 +1,31 @@
+package grammarextractor;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** Grammars and checks shared by the format round-trip tests. */
+final class TestGrammars {
+    private TestGrammars() {
+    }
+
+    /** Small grammar using terminals 0 and 255, with rules of three and four symbols. */
+    static Parser.ParsedGrammar edgeCases() {
+        Map<Integer, List<Integer>> rules = new HashMap<>();
+        rules.put(256, new ArrayList<>(List.of(0, (int) 'a', 0)));
+        rules.put(257, new ArrayList<>(List.of(256, (int) 'b', 256, 255)));
+        rules.put(258, new ArrayList<>(List.of(257, 257)));
+        return new Parser.ParsedGrammar(rules, new ArrayList<>(List.of(258, 0, 256, (int) 'c')));
+    }
+
+    /** A grammar bundled with the repository, looked up from the project directory. */
+    static Parser.ParsedGrammar bundled(String name) throws IOException {
+        return Parser.parseFile(Path.of(name));
+    }
+
+    static void assertSameText(Parser.ParsedGrammar expected, Parser.ParsedGrammar actual) {
+        assertEquals(Decompressor.decompress(expected), Decompressor.decompress(actual));
+    }
+}